@@ -5,6 +5,21 @@ import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.widget.TextView;
+import net.fortytwo.smsn.brainstem.BatchingAgent;
+import net.fortytwo.smsn.brainstem.BluetoothManager;
+import net.fortytwo.smsn.brainstem.Brainstem;
+import net.fortytwo.smsn.brainstem.ConnectionSupervisor;
+import net.fortytwo.smsn.brainstem.FrameQueue;
+import net.fortytwo.smsn.brainstem.KnowledgeIndex;
+import net.fortytwo.smsn.brainstem.NotificationCoalescer;
+import net.fortytwo.smsn.brainstem.NotificationToneGenerator;
+import net.fortytwo.smsn.brainstem.Outbox;
+import net.fortytwo.smsn.brainstem.QueryCatalog;
+import net.fortytwo.smsn.brainstem.QueryWindow;
+import net.fortytwo.smsn.brainstem.ResultSuppressor;
+import net.fortytwo.smsn.brainstem.RttSampler;
+import net.fortytwo.smsn.brainstem.SparqlNotificationListener;
+import net.fortytwo.smsn.p2p.SmSnAgent;
 
 import java.util.Map;
 
@@ -24,7 +39,112 @@ public class Info extends Activity {
             sb.append(key).append(": ");
             sb.append(map.get(key)).append("\n");
         }
+
+        sb.append("\nboot:\n").append(Brainstem.getInstance().getBootTrace());
+
+        appendDeviceInfo(sb);
+
+        sb.append("\nquery result handlers:\n");
+        Brainstem.getInstance().getHandlerExecutor().appendTo(sb);
+
+        QueryWindow queryWindow = Brainstem.getInstance().getQueryWindow();
+        if (null != queryWindow) {
+            sb.append("\nquery engine:\n");
+            queryWindow.appendTo(sb);
+        }
+
+        KnowledgeIndex knowledgeIndex = Brainstem.getInstance().getKnowledgeIndex();
+        if (null != knowledgeIndex) {
+            sb.append("knowledge index: ").append(knowledgeIndex.getFactCount()).append(" facts, ")
+                    .append(knowledgeIndex.getTermCount()).append(" terms, ")
+                    .append(knowledgeIndex.getOverflow()).append(" overflowed, ")
+                    .append(knowledgeIndex.getExpired()).append(" expired\n");
+        }
+
+        QueryCatalog queryCatalog = Brainstem.getInstance().getQueryCatalog();
+        if (null != queryCatalog) {
+            for (ResultSuppressor suppressor : queryCatalog.getSuppressors()) {
+                sb.append(suppressor.getName()).append(": ").append(suppressor.getPassed()).append(" passed, ")
+                        .append(suppressor.getDuplicates()).append(" duplicates, ")
+                        .append(suppressor.getRateLimited()).append(" rate-limited\n");
+            }
+        }
+
+        SmSnAgent agent = Brainstem.getInstance().getAgent();
+        if (agent instanceof BatchingAgent) {
+            sb.append("\noutbound batching:\n");
+            ((BatchingAgent) agent).appendTo(sb);
+        }
+
+        NotificationToneGenerator toneGenerator = Brainstem.getInstance().getToneGenerator();
+        if (null != toneGenerator) {
+            sb.append("\nearcons:\n");
+            for (NotificationToneGenerator.Earcon e : NotificationToneGenerator.Earcon.values()) {
+                sb.append(e).append(": synthesized in ").append(toneGenerator.getSynthesisNanos(e) / 1000)
+                        .append("us\n");
+            }
+            toneGenerator.getEngine().appendTo(sb);
+        }
+
+        Main.Speaker speaker = Brainstem.getInstance().getSpeaker();
+        if (null != speaker) {
+            sb.append("\nspeech:\n");
+            speaker.getQueue().appendTo(sb);
+        }
+
+        Outbox outbox = Brainstem.getInstance().getOutbox();
+        if (null != outbox) {
+            sb.append("\noutbox:\n");
+            outbox.appendTo(sb);
+        }
+
+        RttSampler rttSampler = Brainstem.getInstance().getRttSampler();
+        if (null != rttSampler) {
+            sb.append("\nfacilitator round trip:\n");
+            rttSampler.appendTo(sb);
+        }
+
+        SparqlNotificationListener notificationListener = Brainstem.getInstance().getNotificationListener();
+        if (null != notificationListener) {
+            sb.append("\nfacilitator notifications:\n");
+            notificationListener.appendTo(sb);
+        }
+        NotificationCoalescer coalescer = Brainstem.getInstance().getNotificationCoalescer();
+        if (null != coalescer) {
+            sb.append("coalesced: ").append(coalescer.getNotifications()).append(" notifications into ")
+                    .append(coalescer.getBursts()).append(" side effects\n");
+        }
+
         TextView text = (TextView) findViewById(R.id.text);
         text.setText(sb.toString());
     }
+
+    private void appendDeviceInfo(final StringBuilder sb) {
+        BluetoothManager manager = Brainstem.getInstance().getBluetoothManager();
+
+        for (String address : manager.getRegisteredAddresses()) {
+            sb.append("\n");
+
+            manager.getLinkMetrics(address).appendTo(sb);
+            sb.append("  state: ").append(manager.getDeviceState(address)).append("\n");
+
+            FrameQueue queue = manager.getFrameQueue(address);
+            if (null != queue) {
+                sb.append("  queue: depth ").append(queue.getDepth())
+                        .append(", max ").append(queue.getHighWaterMark())
+                        .append(", dropped ").append(queue.getDropped())
+                        .append(", coalesced ").append(queue.getCoalesced()).append("\n");
+            }
+
+            ConnectionSupervisor.Status status = manager.getConnectionStatus(address);
+            if (null != status) {
+                sb.append("  time to connect: ").append(status.getLastTimeToConnect())
+                        .append("ms, to reconnect: ").append(status.getLastTimeToReconnect()).append("ms\n");
+                if (status.getGaveUpAt() > 0) {
+                    sb.append("  gave up after ").append(status.getFailures())
+                            .append(" failed attempts; reopen the app to connect again\n");
+                }
+            }
+        }
+    }
 }
@@ -18,7 +18,7 @@ import android.widget.EditText;
 import android.widget.Toast;
 import net.fortytwo.smsn.brain.Brain;
 import net.fortytwo.smsn.brainstem.Brainstem;
-import net.fortytwo.smsn.brainstem.BluetoothManager;
+import net.fortytwo.smsn.brainstem.SpeechQueue;
 import net.fortytwo.smsn.events.EventLocationListener;
 import net.fortytwo.smsn.events.EventsActivity;
 import net.fortytwo.smsn.flashcards.android.Flashcards4Android;
@@ -66,7 +66,11 @@ public class Main extends Activity implements TextToSpeech.OnInitListener {
         // want to do various programmatic things with it.
         texter = new Texter((EditText) findViewById(R.id.editor));
 
-        speaker = new Speaker(new TextToSpeech(this, this));
+        // note: the files directory is set first, as the speech queue caches phrases there
+        brainstem.setFilesDirectory(getFilesDir());
+
+        // each activity has its own engine, but all of them share the Brainstem's speech queue
+        speaker = new Speaker(new TextToSpeech(this, this), brainstem.getSpeechQueue());
 
         // Force the service to start.
         //     startService(new Intent(this, BrainPingService.class));
@@ -76,11 +80,8 @@ public class Main extends Activity implements TextToSpeech.OnInitListener {
         lm.requestLocationUpdates(LocationManager.NETWORK_PROVIDER, 0, 0, l);
         lm.requestLocationUpdates(LocationManager.GPS_PROVIDER, 0, 0, l);
 
-        try {
-            brainstem.getBluetoothManager().start(this);
-        } catch (BluetoothManager.BluetoothException e) {
-            Log.e(Brainstem.TAG, "bluetooth error: " + e.getMessage());
-        }
+        // note: Bluetooth is started in the background, once the Brainstem has registered its devices
+        brainstem.startBluetooth(this);
     }
 
     @Override
@@ -99,9 +100,9 @@ public class Main extends Activity implements TextToSpeech.OnInitListener {
         brainstem.initialize(toaster, speaker, texter, emacsAvailable);
 
         // note: calling this method on demand, when the Brainstem application starts/wakes, gives
-        // the user control and avoids draining the battery by repeatedly checking for devices in a
-        // background thread.
-        brainstem.getBluetoothManager().connectDevices();
+        // the user control over connection attempts. Devices are connected in the background, and retries
+        // back off exponentially so as to avoid draining the battery.
+        brainstem.connectDevices();
     }
 
     /**
@@ -119,6 +120,20 @@ public class Main extends Activity implements TextToSpeech.OnInitListener {
         Log.i(Brainstem.TAG, "Brainstem stop()");
     }
 
+    @Override
+    protected void onDestroy() {
+        Log.i(Brainstem.TAG, "Brainstem destroy()");
+
+        // the engine goes with the activity, while the queue is kept for the next activity unless the app is finishing
+        speaker.getQueue().setEngine(null);
+        speaker.getTextToSpeech().shutdown();
+        if (isFinishing()) {
+            brainstem.shutdownSpeechQueue();
+        }
+
+        super.onDestroy();
+    }
+
     /**
      * Called when your activity's options menu needs to be created.
      */
@@ -238,10 +253,12 @@ public class Main extends Activity implements TextToSpeech.OnInitListener {
                     || result == TextToSpeech.LANG_NOT_SUPPORTED) {
                 Log.e("TTS", "This Language is not supported");
             } else {
+                speaker.getQueue().setEngine(speaker.getTextToSpeech());
                 speaker.speak("text-to-speech ready");
             }
         } else {
             Log.e("TTS", "Initilization Failed!");
+            // note: messages wait for the engine of a later activity, but no more than SpeechQueue.MAX_PENDING of them
         }
     }
 
@@ -274,22 +291,30 @@ public class Main extends Activity implements TextToSpeech.OnInitListener {
 
     public class Speaker {
         private final TextToSpeech textToSpeech;
+        private final SpeechQueue queue;
 
-        public Speaker(TextToSpeech textToSpeech) {
+        public Speaker(final TextToSpeech textToSpeech,
+                       final SpeechQueue queue) {
             this.textToSpeech = textToSpeech;
+            this.queue = queue;
         }
 
         public TextToSpeech getTextToSpeech() {
             return textToSpeech;
         }
 
+        public SpeechQueue getQueue() {
+            return queue;
+        }
+
         public void speak(final String text) {
-            // note: unknown whether (but strongly suspected that) runOnUiThread is necessary here
-            Main.this.runOnUiThread(new Runnable() {
-                public void run() {
-                    textToSpeech.speak(text, TextToSpeech.QUEUE_FLUSH, null);
-                }
-            });
+            speak(text, SpeechQueue.Priority.NORMAL);
+        }
+
+        // note: messages are spoken in turn by the queue's own thread, rather than flushing one another
+        public void speak(final String text,
+                          final SpeechQueue.Priority priority) {
+            queue.speak(text, priority);
         }
     }
 }
@@ -0,0 +1,296 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Plays earcons on a dedicated audio thread, so that the threads which deliver query results and notifications
+ * never wait on audio output.
+ * Requests are queued without blocking and rendered in small chunks into a single streaming track.
+ * Overlapping earcons are mixed, up to a maximum number of voices, or, if preemption is enabled, an earcon stops
+ * any lower-priority earcons already playing.
+ * Under load, requests are dropped rather than delayed: when the queue is full, when all voices are busy with
+ * earcons of equal or higher priority, or when the same earcon has just started.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class AudioFeedbackEngine {
+    private static final int
+            QUEUE_CAPACITY = 16,
+            MAX_VOICES = 4,
+            CHUNK_MS = 10;
+
+    // a request for an earcon which started within this time is redundant
+    private static final long DUPLICATE_WINDOW_NANOS = 50 * 1000000L;
+
+    private final Map<NotificationToneGenerator.Earcon, short[]> bank;
+    private final int sampleRate;
+    private final BlockingQueue<Request> queue = new ArrayBlockingQueue<Request>(QUEUE_CAPACITY);
+
+    private volatile boolean preempt;
+    private volatile boolean running = true;
+
+    // rendering state, accessed only by the audio thread
+    private final Voice[] voices = new Voice[MAX_VOICES];
+    private int voiceCount;
+    private final short[] chunk;
+    private final int[] mix;
+    private final long[] lastStarted = new long[NotificationToneGenerator.Earcon.values().length];
+    private final List<Request> drained = new ArrayList<Request>(QUEUE_CAPACITY);
+
+    // from a request to its removal from the queue, and to the write which includes its first samples
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram startLatency = new LatencyHistogram();
+
+    private final AtomicLong
+            requested = new AtomicLong(),
+            played = new AtomicLong(),
+            queueFull = new AtomicLong(),
+            duplicates = new AtomicLong(),
+            noVoice = new AtomicLong(),
+            preempted = new AtomicLong();
+
+    private final Thread thread;
+
+    /**
+     * @param bank       the samples of each earcon, at the given sample rate
+     * @param sampleRate the sample rate of the output
+     */
+    public AudioFeedbackEngine(final Map<NotificationToneGenerator.Earcon, short[]> bank,
+                               final int sampleRate) {
+        this.bank = bank;
+        this.sampleRate = sampleRate;
+
+        int chunkSamples = sampleRate * CHUNK_MS / 1000;
+        chunk = new short[chunkSamples];
+        mix = new int[chunkSamples];
+        for (int i = 0; i < MAX_VOICES; i++) {
+            voices[i] = new Voice();
+        }
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                try {
+                    renderLoop();
+                } catch (InterruptedException e) {
+                    Log.i(Brainstem.TAG, "audio feedback engine stopped");
+                } catch (Throwable t) {
+                    Log.e(Brainstem.TAG, "audio feedback engine failed: " + t.getMessage());
+                    t.printStackTrace(System.err);
+                }
+            }
+        }, "audio-feedback");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param preempt if true, an earcon stops any lower-priority earcons which are playing;
+     *                otherwise, overlapping earcons are mixed
+     */
+    public void setPreempt(final boolean preempt) {
+        this.preempt = preempt;
+    }
+
+    /**
+     * Requests that an earcon be played.  This method does not block
+     *
+     * @return whether the request was accepted; it may still be dropped as redundant
+     */
+    public boolean play(final NotificationToneGenerator.Earcon earcon) {
+        requested.incrementAndGet();
+        if (!queue.offer(new Request(earcon, System.nanoTime()))) {
+            queueFull.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void renderLoop() throws InterruptedException {
+        int minSize = AudioTrack.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC,
+                sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT,
+                Math.max(minSize, chunk.length * 2 * 2),
+                AudioTrack.MODE_STREAM);
+        track.play();
+
+        try {
+            while (running) {
+                if (0 == voiceCount) {
+                    // idle; wait for a request
+                    admit(queue.take());
+                }
+                queue.drainTo(drained);
+                for (Request r : drained) {
+                    admit(r);
+                }
+                drained.clear();
+
+                if (voiceCount > 0) {
+                    renderChunk(track);
+                }
+            }
+        } finally {
+            track.stop();
+            track.release();
+        }
+    }
+
+    private void admit(final Request r) {
+        long now = System.nanoTime();
+        queueLatency.record(now - r.requestedAt);
+
+        int index = r.earcon.ordinal();
+        if (lastStarted[index] > 0 && now - lastStarted[index] < DUPLICATE_WINDOW_NANOS) {
+            duplicates.incrementAndGet();
+            return;
+        }
+
+        int priority = r.earcon.getPriority();
+        if (preempt) {
+            for (int i = voiceCount - 1; i >= 0; i--) {
+                if (voices[i].earcon.getPriority() < priority) {
+                    removeVoice(i);
+                    preempted.incrementAndGet();
+                }
+            }
+        }
+
+        if (MAX_VOICES == voiceCount) {
+            // displace the lowest-priority voice, if it is of lower priority than the new one
+            int lowest = 0;
+            for (int i = 1; i < voiceCount; i++) {
+                if (voices[i].earcon.getPriority() < voices[lowest].earcon.getPriority()) {
+                    lowest = i;
+                }
+            }
+            if (voices[lowest].earcon.getPriority() >= priority) {
+                noVoice.incrementAndGet();
+                return;
+            }
+            removeVoice(lowest);
+            preempted.incrementAndGet();
+        }
+
+        Voice v = voices[voiceCount++];
+        v.earcon = r.earcon;
+        v.samples = bank.get(r.earcon);
+        v.position = 0;
+        v.requestedAt = r.requestedAt;
+        lastStarted[index] = now;
+        played.incrementAndGet();
+    }
+
+    private void renderChunk(final AudioTrack track) {
+        int length = chunk.length;
+        for (int i = 0; i < length; i++) {
+            mix[i] = 0;
+        }
+
+        long now = System.nanoTime();
+        for (int v = 0; v < voiceCount; v++) {
+            Voice voice = voices[v];
+            if (0 == voice.position) {
+                startLatency.record(now - voice.requestedAt);
+            }
+            int n = Math.min(length, voice.samples.length - voice.position);
+            for (int i = 0; i < n; i++) {
+                mix[i] += voice.samples[voice.position + i];
+            }
+            voice.position += n;
+        }
+
+        for (int i = 0; i < length; i++) {
+            int s = mix[i];
+            chunk[i] = (short) (s > Short.MAX_VALUE ? Short.MAX_VALUE : s < Short.MIN_VALUE ? Short.MIN_VALUE : s);
+        }
+
+        for (int v = voiceCount - 1; v >= 0; v--) {
+            if (voices[v].position >= voices[v].samples.length) {
+                removeVoice(v);
+            }
+        }
+
+        // blocks only this thread, until there is room in the track's buffer
+        track.write(chunk, 0, length);
+    }
+
+    // swaps the voice with the last active one, so that the active voices stay at the front of the array
+    private void removeVoice(final int index) {
+        Voice removed = voices[index];
+        voices[index] = voices[voiceCount - 1];
+        voices[voiceCount - 1] = removed;
+        removed.samples = null;
+        voiceCount--;
+    }
+
+    /**
+     * @return the number of requests which were admitted and began to play
+     */
+    public long getPlayed() {
+        return played.get();
+    }
+
+    /**
+     * @return the time, in nanoseconds, for which each request waited in the queue
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+
+    /**
+     * @return the time, in nanoseconds, from each request to the write of its first samples
+     */
+    public LatencyHistogram getStartLatency() {
+        return startLatency;
+    }
+
+    public void appendTo(final StringBuilder sb) {
+        sb.append("requests: ").append(requested.get()).append(", ")
+                .append(played.get()).append(" played, ")
+                .append(preempted.get()).append(" preempted, dropped: ")
+                .append(queueFull.get()).append(" queue full, ")
+                .append(duplicates.get()).append(" duplicate, ")
+                .append(noVoice.get()).append(" no voice\n");
+        sb.append("queueing us: ").append(queueLatency.summarize(1000)).append("\n");
+        sb.append("playback start us: ").append(startLatency.summarize(1000)).append("\n");
+    }
+
+    private static class Request {
+        private final NotificationToneGenerator.Earcon earcon;
+        private final long requestedAt;
+
+        private Request(final NotificationToneGenerator.Earcon earcon,
+                        final long requestedAt) {
+            this.earcon = earcon;
+            this.requestedAt = requestedAt;
+        }
+    }
+
+    private static class Voice {
+        private NotificationToneGenerator.Earcon earcon;
+        private short[] samples;
+        private int position;
+        private long requestedAt;
+    }
+}
@@ -0,0 +1,376 @@
+package net.fortytwo.smsn.brainstem;
+
+import net.fortytwo.rdfagents.model.Dataset;
+import net.fortytwo.smsn.p2p.SmSnAgent;
+import org.json.JSONObject;
+import org.openrdf.model.Statement;
+import org.openrdf.model.vocabulary.RDF;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.ntriples.NTriplesWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An agent which combines the small datasets produced by individual gestures into larger batches before they
+ * are sent, so that a burst of activity costs a few large writes rather than many small ones.
+ * A batch is sent when it reaches a maximum number of statements, when its oldest dataset has waited for a
+ * maximum delay, or as soon as it contains a priority event: a resource with one of a configured set of types.
+ * Batches are sent in order on a dedicated thread, so that the device controls which produce datasets are never
+ * blocked by the network.
+ * <p>
+ * The sizes of batches and the latency added to each dataset are recorded, for tuning the trade-off between
+ * throughput and latency.  A maximum delay of 0 disables batching.
+ * If an {@link Outbox} is set, batches which cannot be sent are appended to it, to be sent after a reconnect.
+ * <p>
+ * If a {@link QueryWindow} is set, each dataset is also added to the local query engine through the window,
+ * as an event, on the caller's thread and before it is batched.  Only the publication of datasets to the
+ * facilitator is batched, so local answers are neither delayed by batching nor stopped while the facilitator is
+ * unreachable.
+ * <p>
+ * Batches are published through a {@link Outbox.Link} which sends them over the facilitator connection and
+ * nowhere else.  The agent's own sendDataset is not used for them, as it may also add a dataset to the local
+ * query engine: a dataset would then reach the engine twice, and batches replayed from the outbox would produce
+ * answers to stale gestures.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BatchingAgent extends SmSnAgent {
+    public static final int DEFAULT_MAX_STATEMENTS = 64;
+    public static final long DEFAULT_MAX_DELAY_MS = 50;
+
+    // the facilitator's message for a published dataset, given in N-Triples with its time-to-live
+    static final String
+            DATASET_MESSAGE = "dataset",
+            DATASET_KEY = "dataset",
+            TTL_KEY = "ttl";
+
+    private volatile int maxStatements = DEFAULT_MAX_STATEMENTS;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MS;
+    private volatile Set<String> priorityTypes = Collections.emptySet();
+
+    private final ScheduledExecutorService sender;
+
+    // the batch being collected; guarded by this
+    private List<Statement> pending = new ArrayList<Statement>();
+    private List<Long> pendingAddedAt = new ArrayList<Long>();
+    private int pendingTtl;
+    private ScheduledFuture<?> timer;
+
+    private volatile long lastSendTime;
+
+    private final LatencyHistogram batchSizes = new LatencyHistogram();
+    private final LatencyHistogram addedLatency = new LatencyHistogram();
+    private final AtomicLong
+            sizeFlushes = new AtomicLong(),
+            delayFlushes = new AtomicLong(),
+            priorityFlushes = new AtomicLong(),
+            failures = new AtomicLong(),
+            outboxed = new AtomicLong(),
+            lost = new AtomicLong();
+
+    private volatile Exception lastFailure;
+
+    private volatile Outbox outbox;
+    private volatile QueryWindow queryWindow;
+
+    private volatile Outbox.Link facilitatorLink = new Outbox.Link() {
+        public boolean isConnected() {
+            return getFacilitatorConnection().isActive();
+        }
+
+        public void send(final Collection<Statement> statements,
+                         final int ttl) throws Exception {
+            publish(statements, ttl);
+        }
+    };
+
+    private final Runnable delayFlush = new Runnable() {
+        public void run() {
+            synchronized (BatchingAgent.this) {
+                timer = null;
+                if (pending.size() > 0) {
+                    delayFlushes.incrementAndGet();
+                    flushPending();
+                }
+            }
+        }
+    };
+
+    public BatchingAgent(final boolean listenForServices) throws Exception {
+        super(listenForServices);
+
+        sender = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "outbound-batcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @param maxStatements the number of statements at which a batch is sent
+     */
+    public void setMaxStatements(final int maxStatements) {
+        if (maxStatements < 1) {
+            throw new IllegalArgumentException("maximum batch size must be at least 1");
+        }
+        this.maxStatements = maxStatements;
+    }
+
+    /**
+     * @param maxDelayMillis the longest time, in milliseconds, for which a dataset may wait to be sent,
+     *                       or 0 to send each dataset as soon as it is produced
+     */
+    public void setMaxDelayMillis(final long maxDelayMillis) {
+        if (maxDelayMillis < 0) {
+            throw new IllegalArgumentException("negative delay");
+        }
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * @param priorityTypes the URIs of the types of events which are sent immediately, together with any
+     *                      datasets waiting ahead of them
+     */
+    public void setPriorityTypes(final Set<String> priorityTypes) {
+        this.priorityTypes = new HashSet<String>(priorityTypes);
+    }
+
+    /**
+     * @param outbox a durable outbox for batches which cannot be sent because the facilitator is not connected,
+     *               or null to send batches regardless
+     */
+    public void setOutbox(final Outbox outbox) {
+        this.outbox = outbox;
+    }
+
+    /**
+     * @param queryWindow the window through which datasets are added to the local query engine,
+     *                    or null not to add them
+     */
+    public void setQueryWindow(final QueryWindow queryWindow) {
+        this.queryWindow = queryWindow;
+    }
+
+    /**
+     * @return the link through which batches are published to the facilitator, and through which an outbox
+     * should drain.  Nothing sent through it reaches the local query engine
+     */
+    public Outbox.Link getFacilitatorLink() {
+        return facilitatorLink;
+    }
+
+    /**
+     * @param facilitatorLink a link to use in place of the facilitator connection, for instance in tests
+     */
+    public void setFacilitatorLink(final Outbox.Link facilitatorLink) {
+        this.facilitatorLink = facilitatorLink;
+    }
+
+    private void publish(final Collection<Statement> statements,
+                         final int ttl) throws Exception {
+        StringWriter dataset = new StringWriter();
+        RDFWriter writer = new NTriplesWriter(dataset);
+        writer.startRDF();
+        for (Statement s : statements) {
+            writer.handleStatement(s);
+        }
+        writer.endRDF();
+
+        JSONObject message = new JSONObject();
+        message.put(DATASET_KEY, dataset.toString());
+        message.put(TTL_KEY, ttl);
+        getFacilitatorConnection().sendNewMessage(DATASET_MESSAGE, message);
+    }
+
+    @Override
+    public void sendDataset(final Dataset dataset,
+                            final int ttl) {
+        lastSendTime = System.currentTimeMillis();
+        boolean priority = isPriority(dataset);
+
+        QueryWindow window = queryWindow;
+        if (null != window) {
+            Collection<Statement> statements = dataset.getStatements();
+            try {
+                window.addEvent(statements.toArray(new Statement[statements.size()]));
+            } catch (IOException e) {
+                BrainstemLog.e(Brainstem.TAG, "failed to add dataset to the query engine: " + e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            // datasets with different time-to-live values cannot share a batch
+            if (pending.size() > 0 && ttl != pendingTtl) {
+                flushPending();
+            }
+
+            pendingTtl = ttl;
+            pending.addAll(dataset.getStatements());
+            pendingAddedAt.add(System.nanoTime());
+
+            if (0 == maxDelayMillis) {
+                flushPending();
+            } else if (priority) {
+                priorityFlushes.incrementAndGet();
+                flushPending();
+            } else if (pending.size() >= maxStatements) {
+                sizeFlushes.incrementAndGet();
+                flushPending();
+            } else if (null == timer) {
+                timer = sender.schedule(delayFlush, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends any waiting datasets now
+     */
+    public synchronized void flush() {
+        if (pending.size() > 0) {
+            flushPending();
+        }
+    }
+
+    private boolean isPriority(final Dataset dataset) {
+        Set<String> types = priorityTypes;
+        if (types.isEmpty()) {
+            return false;
+        }
+
+        for (Statement s : dataset.getStatements()) {
+            if (s.getPredicate().equals(RDF.TYPE) && types.contains(s.getObject().stringValue())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // note: call only while holding this object's lock
+    private void flushPending() {
+        if (null != timer) {
+            timer.cancel(false);
+            timer = null;
+        }
+
+        final List<Statement> batch = pending;
+        final List<Long> addedAt = pendingAddedAt;
+        final int ttl = pendingTtl;
+        pending = new ArrayList<Statement>();
+        pendingAddedAt = new ArrayList<Long>();
+
+        sender.execute(new Runnable() {
+            public void run() {
+                long now = System.nanoTime();
+                for (Long t : addedAt) {
+                    addedLatency.record(now - t);
+                }
+                batchSizes.record(batch.size());
+
+                // while earlier batches wait in the outbox, later ones must wait behind them
+                Outbox o = outbox;
+                Outbox.Link link = facilitatorLink;
+                if (null != o && (!o.isEmpty() || !link.isConnected())) {
+                    toOutbox(o, batch, ttl);
+                    return;
+                }
+
+                try {
+                    link.send(batch, ttl);
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    lastFailure = e;
+                    BrainstemLog.e(Brainstem.TAG, "failed to send batch of " + batch.size() + " statements: "
+                            + e.getMessage());
+                    e.printStackTrace(System.err);
+                    if (null != o) {
+                        toOutbox(o, batch, ttl);
+                    } else {
+                        lost.incrementAndGet();
+                        BrainstemLog.w(Brainstem.TAG, "no outbox; " + batch.size() + " statements are lost");
+                    }
+                }
+            }
+        });
+    }
+
+    private void toOutbox(final Outbox o,
+                          final List<Statement> batch,
+                          final int ttl) {
+        if (o.append(batch, ttl)) {
+            outboxed.incrementAndGet();
+        } else {
+            lost.incrementAndGet();
+            BrainstemLog.w(Brainstem.TAG, "outbox rejected batch; " + batch.size() + " statements are lost");
+        }
+    }
+
+    /**
+     * @return the time, in milliseconds since the epoch, at which a dataset was last given to this agent,
+     * or 0 if none has been
+     */
+    public long getLastSendTime() {
+        return lastSendTime;
+    }
+
+    /**
+     * @return the most recent exception thrown while sending a batch, or null if every batch has been sent
+     */
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * @return the number of batches which could be neither sent nor kept in an outbox, e.g. because there is no
+     * outbox, or because the outbox rejected them
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    /**
+     * @return the distribution of the number of statements in each batch sent
+     */
+    public LatencyHistogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    /**
+     * @return the distribution of the time, in nanoseconds, for which each dataset waited to be sent
+     */
+    public LatencyHistogram getAddedLatency() {
+        return addedLatency;
+    }
+
+    public void appendTo(final StringBuilder sb) {
+        sb.append("policy: ").append(maxStatements).append(" statements, ")
+                .append(maxDelayMillis).append("ms, ")
+                .append(priorityTypes.size()).append(" priority types\n");
+        sb.append("flushes: ").append(sizeFlushes.get()).append(" size, ")
+                .append(delayFlushes.get()).append(" delay, ")
+                .append(priorityFlushes.get()).append(" priority, ")
+                .append(failures.get()).append(" failed, ")
+                .append(outboxed.get()).append(" to outbox, ")
+                .append(lost.get()).append(" lost\n");
+        Exception e = lastFailure;
+        if (null != e) {
+            sb.append("last failure: ").append(e).append("\n");
+        }
+        sb.append("batch size: ").append(batchSizes.summarize(1)).append("\n");
+        sb.append("added latency ms: ").append(addedLatency.summarize(1000000)).append("\n");
+    }
+}
@@ -10,20 +10,28 @@ import android.util.Log;
 import net.fortytwo.smsn.p2p.osc.OscControl;
 import net.fortytwo.smsn.p2p.osc.OscReceiver;
 import net.fortytwo.smsn.p2p.osc.SlipOscSender;
-import net.fortytwo.smsn.util.slip.SlipInputStream;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
-import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * An interface for Serial Line Internet Protocol (SLIP) communication with a single device over Bluetooth.
- * Uses the Serial Port Profile (SPP)
+ * An interface for Serial Line Internet Protocol (SLIP) communication with devices over Bluetooth.
+ * Uses the Serial Port Profile (SPP) by default, although any other {@link DeviceTransport}
+ * (e.g. TCP, or in-memory pipes) may be substituted, so that the same stack can run on a plain JVM.
  *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
@@ -31,22 +39,54 @@ public class BluetoothManager {
 
     private static final int REQUEST_ENABLE_BT = 424242;
 
-    // Serial Port Profile UUID
-    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // the largest SLIP frame we expect from a device; longer frames are discarded
+    private static final int MAX_FRAME_LENGTH = 1024;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    // the maximum number of devices to which connections may be attempted at the same time
+    private static final int MAX_CONCURRENT_CONNECTIONS = 8;
+
+    // the maximum number of accepted connections which may wait for a worker to set them up;
+    // connections beyond this are closed, and the devices may try again
+    private static final int MAX_PENDING_ACCEPTS = 16;
+
+    // how long stop() waits for each device's threads to finish
+    private static final long THREAD_STOP_TIMEOUT_MS = 5000;
 
     private boolean started = false;
 
     // note: currently, we never change this variable once Bluetooth is initially enabled
-    private Boolean bluetoothEnabled;
+    private volatile boolean bluetoothEnabled;
+    // released when the result of a request to enable Bluetooth arrives
+    private final CountDownLatch bluetoothEnabledResult = new CountDownLatch(1);
 
     private BluetoothAdapter adapter;
 
-    private final Map<String, OscControl> registeredDeviceControlsByAddress;
-    private final Map<String, BluetoothDevice> managedDevicesByAddress;
-    private final Set<String> connectedDeviceAddresses;
+    private volatile DeviceTransport transport;
+
+    // registered devices, with their connection states, frame queues and link metrics.
+    // note: accessed from the UI thread, connection threads and reader threads
+    private final DeviceRegistry registry;
+
+    private final ConnectionSupervisor supervisor;
+
+    // sets up connections opened by devices, so that the server thread can return to accepting immediately
+    private final ThreadPoolExecutor acceptExecutor;
+
+    // the reader threads of all open links, so that they can be closed when the manager stops
+    private final Set<BluetoothOSCThread> readerThreads
+            = Collections.newSetFromMap(new ConcurrentHashMap<BluetoothOSCThread, Boolean>());
 
     private OscReceiver dispatcher;
 
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private FrameQueue.OverflowPolicy overflowPolicy = FrameQueue.OverflowPolicy.BLOCK;
+    private OscDeliveryPolicy deliveryPolicy = OscDeliveryPolicy.DELIVER_ALL_POLICY;
+
+    // if set, the frames of each connection are recorded to a capture file in this directory
+    private File captureDirectory;
+
     private ServerThread serverThread;
     //private ClientThread clientThread;
 
@@ -58,16 +98,118 @@ public class BluetoothManager {
     }
 
     private BluetoothManager() {
-        registeredDeviceControlsByAddress = new HashMap<String, OscControl>();
-        managedDevicesByAddress = new HashMap<String, BluetoothDevice>();
-        connectedDeviceAddresses = new HashSet<String>();
+        registry = new DeviceRegistry();
+
+        supervisor = new ConnectionSupervisor(registry, new ConnectionSupervisor.Connector() {
+            public void connect(final DeviceRegistry.Device device) throws IOException {
+                connectDevice(device);
+            }
+        }, MAX_CONCURRENT_CONNECTIONS);
+
+        final AtomicInteger count = new AtomicInteger();
+        acceptExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_CONNECTIONS, MAX_CONCURRENT_CONNECTIONS,
+                30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(MAX_PENDING_ACCEPTS), new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "device-acceptor-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        acceptExecutor.allowCoreThreadTimeOut(true);
     }
 
     public void register(final String bluetoothAddress,
                          final OscControl device) {
-        registeredDeviceControlsByAddress.put(bluetoothAddress, device);
+        registry.register(bluetoothAddress, device);
+    }
+
+    /**
+     * @param bluetoothAddress the address of a device
+     * @return the current connection state of the device, or null if no device is registered at that address
+     */
+    public DeviceRegistry.State getDeviceState(final String bluetoothAddress) {
+        DeviceRegistry.Device device = registry.get(bluetoothAddress);
+        return null == device ? null : device.getState();
+    }
+
+    /**
+     * Sets the capacity of the queue between each device's reader and dispatcher.
+     * Takes effect for subsequently opened connections.
+     */
+    public void setQueueCapacity(final int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets the policy to apply when a device produces frames faster than they can be dispatched.
+     * Takes effect for subsequently opened connections.
+     */
+    public void setOverflowPolicy(final FrameQueue.OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
     }
 
+    /**
+     * Sets the per-address delivery policy, which determines the OSC messages for which only the latest value
+     * is delivered.  Takes effect for subsequently opened connections.
+     */
+    public void setDeliveryPolicy(final OscDeliveryPolicy deliveryPolicy) {
+        this.deliveryPolicy = deliveryPolicy;
+    }
+
+    /**
+     * Enables or disables the recording of device traffic.
+     * Takes effect for subsequently opened connections.
+     *
+     * @param captureDirectory a directory in which to create a capture file for each connection,
+     *                         or null to disable recording
+     */
+    public void setCaptureDirectory(final File captureDirectory) {
+        this.captureDirectory = captureDirectory;
+    }
+
+    /**
+     * @param bluetoothAddress the address of a device
+     * @return the frame queue of the device's current or most recent connection, which exposes queue depth and
+     * drop counters, or null if the device has not been connected
+     */
+    public FrameQueue getFrameQueue(final String bluetoothAddress) {
+        DeviceRegistry.Device device = registry.get(bluetoothAddress);
+        return null == device ? null : device.getFrameQueue();
+    }
+
+    /**
+     * @return the addresses of all registered devices
+     */
+    public Set<String> getRegisteredAddresses() {
+        return registry.getAddresses();
+    }
+
+    /**
+     * @param bluetoothAddress the address of a device
+     * @return packet and byte counts and rates, decode and dispatch time histograms, and connection time for the
+     * device, or null if no device is registered at that address
+     */
+    public LinkMetrics getLinkMetrics(final String bluetoothAddress) {
+        DeviceRegistry.Device device = registry.get(bluetoothAddress);
+        return null == device ? null : device.getMetrics();
+    }
+
+    /**
+     * @param bluetoothAddress the address of a device
+     * @return connection statistics for the device, including time to connect and time to reconnect,
+     * or null if no connection to the device has been attempted
+     */
+    public ConnectionSupervisor.Status getConnectionStatus(final String bluetoothAddress) {
+        return supervisor.getStatus(bluetoothAddress);
+    }
+
+    /**
+     * Enables Bluetooth, if necessary, and finds the bonded devices to manage.
+     * If Bluetooth is not yet enabled, this method blocks until the user has answered the enable request,
+     * so it must not be called on the UI thread.
+     *
+     * @param activity the activity which will receive the result of the enable request
+     */
     public synchronized void start(final Activity activity) throws BluetoothException {
         if (started) {
             return;
@@ -82,16 +224,18 @@ public class BluetoothManager {
             bluetoothEnabled = true;
         } else {
             Log.i(Brainstem.TAG, "attempting to enable Bluetooth");
-            Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
-            activity.startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
+            activity.runOnUiThread(new Runnable() {
+                public void run() {
+                    Intent enableBtIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
+                    activity.startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
+                }
+            });
 
             Log.i(Brainstem.TAG, "waiting for Bluetooth activation result");
-            while (null == bluetoothEnabled) {
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    throw new BluetoothException(e);
-                }
+            try {
+                bluetoothEnabledResult.await();
+            } catch (InterruptedException e) {
+                throw new BluetoothException(e);
             }
         }
 
@@ -116,7 +260,7 @@ public class BluetoothManager {
                             .append(", ").append(d.getBluetoothClass())
                             .append(", ").append(d.getBondState());
 
-                    managedDevicesByAddress.put(d.getAddress(), d);
+                    registry.get(d.getAddress()).setManaged(true);
                 }
             }
 
@@ -129,8 +273,15 @@ public class BluetoothManager {
             Log.i(Brainstem.TAG, "no paired SmSn devices");
         }
 
-        //serverThread = new ServerThread();
-        //serverThread.start();
+        transport = new BluetoothTransport(adapter);
+
+        // accept connections from devices alongside our own outbound connections to them
+        try {
+            serverThread = new ServerThread();
+            serverThread.start();
+        } catch (IOException e) {
+            Log.w(Brainstem.TAG, "could not listen for Bluetooth connections from devices: " + e.getMessage());
+        }
 
         //clientThread = new ClientThread();
         //clientThread.start();
@@ -138,10 +289,53 @@ public class BluetoothManager {
         started = true;
     }
 
-    public void stop() throws IOException {
+    /**
+     * Starts managing all registered devices over a transport other than Bluetooth,
+     * e.g. TCP or in-memory pipes for testing and measurement outside of Android.
+     * The addresses with which devices are registered are interpreted by the given transport.
+     *
+     * @param transport the transport through which to connect to devices
+     */
+    public synchronized void start(final DeviceTransport transport) {
+        if (started) {
+            return;
+        }
+
+        this.transport = transport;
+        for (DeviceRegistry.Device device : registry.getDevices()) {
+            device.setManaged(true);
+        }
+        started = true;
+    }
+
+    /**
+     * Stops connecting to devices, closes all open links, and waits for their reader and dispatch threads to finish
+     */
+    public void stop() throws IOException, InterruptedException {
+        supervisor.stop();
+
+        for (DeviceRegistry.Device device : registry.getDevices()) {
+            device.close();
+        }
+
         if (null != serverThread) {
             serverThread.cancel();
         }
+        acceptExecutor.shutdownNow();
+
+        // note: a link which is still being set up is either closed here, or by startLink, as its device is CLOSED
+        List<BluetoothOSCThread> threads = new ArrayList<BluetoothOSCThread>(readerThreads);
+        for (BluetoothOSCThread thread : threads) {
+            thread.close();
+        }
+        for (BluetoothOSCThread thread : threads) {
+            thread.join(THREAD_STOP_TIMEOUT_MS);
+            thread.dispatchThread.join(THREAD_STOP_TIMEOUT_MS);
+            if (thread.isAlive() || thread.dispatchThread.isAlive()) {
+                Log.w(Brainstem.TAG, "threads of " + thread.link.getName() + " did not stop within "
+                        + THREAD_STOP_TIMEOUT_MS + "ms");
+            }
+        }
 
         //if (null != clientThread) {
         //    clientThread.cancel();
@@ -151,68 +345,181 @@ public class BluetoothManager {
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == REQUEST_ENABLE_BT) {
             bluetoothEnabled = resultCode == Activity.RESULT_OK;
+            bluetoothEnabledResult.countDown();
         }
     }
 
     private boolean isBondedSmSnDevice(final BluetoothDevice device) {
-        return null != registeredDeviceControlsByAddress.get(device.getAddress())
+        return null != registry.get(device.getAddress())
                 && BluetoothDevice.BOND_BONDED == device.getBondState();
     }
 
-    private synchronized void deviceDisconnected(final BluetoothDevice device) {
-        Log.i(Brainstem.TAG, "Bluetooth device disconnected: " + device.getName());
-        connectedDeviceAddresses.remove(device.getAddress());
-        registeredDeviceControlsByAddress.get(device.getAddress()).disconnect();
+    private void deviceDisconnected(final DeviceRegistry.Device device,
+                                    final DeviceTransport.DeviceLink link) {
+        Log.i(Brainstem.TAG, "device disconnected: " + link.getName());
+        device.getControl().disconnect();
+
+        supervisor.disconnected(device);
     }
 
-    private void connectToSocket(final BluetoothSocket socket) throws IOException {
-        if (null == socket) {
-            Log.w(Brainstem.TAG, "null Bluetooth socket");
-        } else if (null == socket.getInputStream() || null == socket.getOutputStream()) {
-            Log.e(Brainstem.TAG, "Bluetooth socket for " + socket.getRemoteDevice().getName()
-                    + " has null input or output stream");
-        } else {
-            Log.i(Brainstem.TAG, "attempting connection to SmSn device " + socket.getRemoteDevice().getName());
-            socket.connect();
+    // attaches a reader thread to a newly opened link.  The device must be in the CONNECTING state.
+    // acceptedAt is the nanosecond time at which a link opened by the device was accepted, or -1 for our own links
+    private void startLink(final DeviceRegistry.Device device,
+                           final DeviceTransport.DeviceLink link,
+                           final long acceptedAt) throws IOException {
+        BluetoothOSCThread thread;
+        try {
+            if (null == link.getInputStream() || null == link.getOutputStream()) {
+                throw new IOException("link to " + link.getName() + " has null input or output stream");
+            }
 
-            new BluetoothOSCThread(socket).start();
+            thread = new BluetoothOSCThread(device, link, acceptedAt);
+        } catch (IOException e) {
+            link.close();
+            throw e;
+        }
 
-            connectedDeviceAddresses.add(socket.getRemoteDevice().getAddress());
+        // registered before the transition, so that stop() closes the link once the device can be CONNECTED
+        readerThreads.add(thread);
+
+        // the device must be CONNECTED before its reader thread can end and report a disconnection
+        if (!device.transition(DeviceRegistry.State.CONNECTING, DeviceRegistry.State.CONNECTED)) {
+            readerThreads.remove(thread);
+            link.close();
+            throw new IOException("device at " + device.getAddress() + " changed state to " + device.getState()
+                    + " while connecting");
         }
+
+        thread.start();
     }
 
-    public synchronized void connectDevices() {
-        for (BluetoothDevice device : managedDevicesByAddress.values()) {
-            if (!connectedDeviceAddresses.contains(device.getAddress())) {
-                Log.i(Brainstem.TAG, "attempting to connect to Bluetooth device " + device.getName()
-                        + " at " + device.getAddress());
-                try {
-                    BluetoothSocket socket = device.createRfcommSocketToServiceRecord(SPP_UUID);
-                    connectToSocket(socket);
-                } catch (IOException e) {
-                    Log.i(Brainstem.TAG, "could not connect to Bluetooth device " + device.getName()
-                            + ". Will try again later.");
-                } catch (Throwable t) {
-                    Log.e(Brainstem.TAG, "error while attempting to connect to Bluetooth device "
-                            + device.getName() + ": " + t.getMessage());
-                    t.printStackTrace(System.err);
+    // makes a single, blocking connection attempt.  Called by the connection supervisor
+    private void connectDevice(final DeviceRegistry.Device device) throws IOException {
+        Log.i(Brainstem.TAG, "attempting to connect to SmSn device at " + device.getAddress());
+        startLink(device, transport.connect(device.getAddress()), -1);
+    }
+
+    /**
+     * Hands off a connection which a device has opened to this phone, e.g. through a server socket.
+     * The connection is set up by a bounded pool of workers, so this method returns immediately.
+     * If the device is already connected, or a connection to it is in progress, the new link is closed.
+     *
+     * @param link a newly accepted link
+     */
+    public void acceptLink(final DeviceTransport.DeviceLink link) {
+        final long acceptedAt = System.nanoTime();
+
+        try {
+            acceptExecutor.execute(new Runnable() {
+                public void run() {
+                    setUpAcceptedLink(link, acceptedAt);
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(Brainstem.TAG, "too many pending connections; refusing " + link.getName());
+            closeQuietly(link);
+        }
+    }
+
+    private void setUpAcceptedLink(final DeviceTransport.DeviceLink link,
+                                   final long acceptedAt) {
+        final DeviceRegistry.Device device = registry.get(link.getAddress());
+        if (null == device || !device.isManaged()) {
+            Log.w(Brainstem.TAG, "refusing connection from unknown device " + link.getName());
+            closeQuietly(link);
+            return;
+        }
+
+        boolean accepted = supervisor.accept(device, new ConnectionSupervisor.Connector() {
+            public void connect(final DeviceRegistry.Device device) throws IOException {
+                Log.i(Brainstem.TAG, "accepted connection from SmSn device at " + device.getAddress());
+                startLink(device, link, acceptedAt);
             }
+        });
+
+        if (accepted) {
+            device.getMetrics().accepted();
+        } else {
+            // either the device already has a link or is being connected to, and we keep only one,
+            // or the link failed during set-up
+            Log.i(Brainstem.TAG, "closing connection from " + link.getName()
+                    + " (device is " + device.getState() + ")");
+            closeQuietly(link);
         }
     }
 
+    private void closeQuietly(final DeviceTransport.DeviceLink link) {
+        try {
+            link.close();
+        } catch (IOException e) {
+            Log.w(Brainstem.TAG, "failed to close link to " + link.getName());
+        }
+    }
+
+    /**
+     * Begins connecting to all managed devices which are not already connected.
+     * Connection attempts are made concurrently in the background, so this method returns immediately.
+     * Devices which fail to connect are retried with exponential backoff,
+     * and devices which lose their connection are reconnected automatically.
+     */
+    public void connectDevices() {
+        supervisor.connectAll();
+    }
+
     private class BluetoothOSCThread extends Thread {
-        private final BluetoothDevice device;
+        private final DeviceRegistry.Device device;
+        private final DeviceTransport.DeviceLink link;
         private final InputStream inputStream;
         private final OutputStream outputStream;
 
-        private boolean closed;
-
-        public BluetoothOSCThread(final BluetoothSocket socket) throws IOException {
-            this.device = socket.getRemoteDevice();
-            this.inputStream = socket.getInputStream();
-            this.outputStream = socket.getOutputStream();
+        // decoder, pool and handler are created once per connection and reused for every frame
+        private final SlipFramePool framePool;
+        private final SlipFrameDecoder decoder;
+        private final SlipFrameDecoder.FrameHandler frameHandler;
+        private final FrameQueue frameQueue;
+        private final DispatchThread dispatchThread;
+        private final LinkMetrics metrics;
+        private final OscDeliveryPolicy delivery;
+        private final long acceptedAt;
+
+        private FrameRecorder recorder;
+
+        // set by another thread, when the link is closed deliberately
+        private volatile boolean closed;
+
+        public BluetoothOSCThread(final DeviceRegistry.Device device,
+                                  final DeviceTransport.DeviceLink link,
+                                  final long acceptedAt) throws IOException {
+            this.device = device;
+            this.link = link;
+            this.acceptedAt = acceptedAt;
+            this.inputStream = link.getInputStream();
+            this.outputStream = link.getOutputStream();
             //Log.i(Brainstem.TAG, "inputStream = " + inputStream + ", outputStream = " + outputStream);
+
+            delivery = deliveryPolicy;
+            int latestValueKeys = delivery.getNumberOfLatestValueKeys();
+            framePool = new SlipFramePool(
+                    FrameQueue.requiredPoolSize(queueCapacity, latestValueKeys), MAX_FRAME_LENGTH);
+            decoder = new SlipFrameDecoder(framePool);
+            frameQueue = new FrameQueue(framePool, queueCapacity, overflowPolicy, latestValueKeys);
+            metrics = device.getMetrics();
+            dispatchThread = new DispatchThread(link.getName(), frameQueue, framePool, metrics);
+            frameHandler = new SlipFrameDecoder.FrameHandler() {
+                public void handle(final SlipFrame frame) throws Exception {
+                    handleFrame(frame);
+                }
+            };
+
+            device.setFrameQueue(frameQueue);
+
+            if (null != captureDirectory) {
+                File file = new File(captureDirectory,
+                        link.getAddress().replaceAll("[^A-Za-z0-9]", "_")
+                                + "-" + System.currentTimeMillis() + ".slipcap");
+                Log.i(Brainstem.TAG, "recording traffic from " + link.getName() + " to " + file);
+                recorder = new FrameRecorder(file);
+            }
         }
 
         public OutputStream getOutputStream() {
@@ -220,96 +527,193 @@ public class BluetoothManager {
         }
 
         public void close() {
-            Log.i(Brainstem.TAG, "closing device " + device.getName() + ". The device will not be reconnected.");
+            Log.i(Brainstem.TAG, "closing device " + link.getName() + ". The device will not be reconnected.");
             closed = true;
+
+            // ends the blocking read, and with it the thread
+            try {
+                link.close();
+            } catch (IOException e) {
+                Log.w(Brainstem.TAG, "failed to close link to " + link.getName());
+            }
         }
 
         private boolean isConnected;
 
+        private void handleFrame(final SlipFrame frame) {
+            metrics.frameReceived(frame);
+
+            if (null != recorder) {
+                try {
+                    recorder.record(frame);
+                } catch (IOException e) {
+                    Log.e(Brainstem.TAG, "failed to record frame from " + link.getName()
+                            + "; recording stopped: " + e.getMessage());
+                    closeRecorder();
+                }
+            }
+
+            if (isConnected) {
+                // ownership of the frame passes to the dispatch thread
+                int key = delivery.getKey(frame.getData(), frame.getLength());
+                if (OscDeliveryPolicy.DELIVER_ALL == key) {
+                    frameQueue.offer(frame);
+                } else {
+                    frameQueue.offerLatest(key, frame);
+                }
+            } else {
+                if (acceptedAt >= 0) {
+                    metrics.firstPacketAfterAccept(frame.getTimestamp() - acceptedAt);
+                }
+                framePool.release(frame);
+
+                // at this point, we are sure we have a SLIP connection,
+                // so fire the device's connection event(s)
+                // TODO: do we really need to wait until we have incoming data,
+                // or do we know earlier that we have a SLIP connection?
+                SlipOscSender sender = new SlipOscSender(outputStream, false);
+                device.getControl().connect(sender);
+            }
+
+            isConnected = true;
+        }
+
+        private void closeRecorder() {
+            if (null != recorder) {
+                try {
+                    recorder.close();
+                    Log.i(Brainstem.TAG, "recorded " + recorder.getFramesRecorded()
+                            + " frames from " + link.getName());
+                } catch (IOException e) {
+                    Log.w(Brainstem.TAG, "failed to close capture file for " + link.getName());
+                }
+                recorder = null;
+            }
+        }
+
         @Override
         public void run() {
+            metrics.connected();
+            dispatchThread.start();
+
             try {
-                Log.i(Brainstem.TAG, "starting Bluetooth+OSC thread");
-
-                while (!closed) {
-                    isConnected = false;
-
-                    SlipInputStream slipStream = new SlipInputStream(inputStream);
-                    slipStream.receive(new SlipInputStream.PacketHandler() {
-                        public void handle(byte[] packet, int length) throws Exception {
-                            if (isConnected) {
-                                dispatcher.receive(packet, length);
-                            } else {
-                                // at this point, we are sure we have a SLIP connection,
-                                // so fire the device's connection event(s)
-                                // TODO: do we really need to wait until we have incoming data,
-                                // or do we know earlier that we have a SLIP connection?
-                                SlipOscSender sender = new SlipOscSender(outputStream, false);
-                                registeredDeviceControlsByAddress.get(device.getAddress()).connect(sender);
-                            }
-
-                            isConnected = true;
-                        }
-                    });
-                }
+                Log.i(Brainstem.TAG, "starting device I/O thread for " + link.getName());
+
+                isConnected = false;
+
+                // returns at the end of the stream, i.e. when the connection has been closed
+                decoder.decode(inputStream, frameHandler);
             } catch (Throwable t) {
-                Log.e(Brainstem.TAG, "Bluetooth I/O thread failed with error: " + t.getMessage());
+                Log.e(Brainstem.TAG, "device I/O thread failed with error: " + t.getMessage());
                 t.printStackTrace(System.err);
             }
 
+            frameQueue.close();
+            closeRecorder();
+            metrics.disconnected();
+
+            try {
+                link.close();
+            } catch (IOException e) {
+                Log.w(Brainstem.TAG, "failed to close link to " + link.getName());
+            }
+
+            readerThreads.remove(this);
+
             // If the connection was not deliberately closed (i.e. if the connection ended with an error or EOI),
-            // wait a short time and then attempt to reconnect.
+            // the supervisor will wait a short time and then attempt to reconnect.
             if (!closed) {
-                deviceDisconnected(device);
+                deviceDisconnected(device, link);
+            }
+        }
+    }
+
+    // takes frames from a device's queue and dispatches them as OSC messages,
+    // so that slow handlers do not block reading from the device
+    private class DispatchThread extends Thread {
+        private final String deviceName;
+        private final FrameQueue frameQueue;
+        private final SlipFramePool framePool;
+        private final LinkMetrics metrics;
+
+        public DispatchThread(final String deviceName,
+                              final FrameQueue frameQueue,
+                              final SlipFramePool framePool,
+                              final LinkMetrics metrics) {
+            this.deviceName = deviceName;
+            this.frameQueue = frameQueue;
+            this.framePool = framePool;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void run() {
+            Log.i(Brainstem.TAG, "starting OSC dispatch thread for " + deviceName);
+
+            SlipFrame frame;
+            while (null != (frame = frameQueue.take())) {
+                try {
+                    long start = System.nanoTime();
+                    dispatcher.receive(frame.getData(), frame.getLength());
+                    metrics.frameDispatched(start - frame.getTimestamp(), System.nanoTime() - start);
+                } catch (Throwable t) {
+                    Log.e(Brainstem.TAG, "error while dispatching OSC message from " + deviceName
+                            + ": " + t.getMessage());
+                    t.printStackTrace(System.err);
+                } finally {
+                    framePool.release(frame);
+                }
             }
+
+            frameQueue.drain();
+
+            Log.i(Brainstem.TAG, "OSC dispatch thread for " + deviceName + " stopped after "
+                    + frameQueue.getOffered() + " frames, " + frameQueue.getDropped() + " dropped, "
+                    + frameQueue.getCoalesced() + " coalesced");
         }
     }
 
+    // accepts connections opened by devices, and hands them off to the accept workers
     private class ServerThread extends Thread {
         private final BluetoothServerSocket serverSocket;
 
-        public ServerThread() {
-            // Use a temporary object that is later assigned to serverSocket,
-            // because serverSocket is final
-            BluetoothServerSocket tmp = null;
-            try {
-                // MY_UUID is the app's UUID string, also used by the client code
-                tmp = adapter.listenUsingRfcommWithServiceRecord(Brainstem.BLUETOOTH_NAME, SPP_UUID);
-            } catch (IOException e) {
-            }
-            serverSocket = tmp;
+        public ServerThread() throws IOException {
+            super("bluetooth-listener");
+            setDaemon(true);
+
+            serverSocket = adapter.listenUsingRfcommWithServiceRecord(
+                    Brainstem.BLUETOOTH_NAME, BluetoothTransport.SPP_UUID);
         }
 
         @Override
         public void run() {
-            try {
-                Log.i(Brainstem.TAG, "starting Bluetooth listener thread");
+            Log.i(Brainstem.TAG, "starting Bluetooth listener thread");
 
+            // Keep listening until the server socket is closed
+            while (true) {
                 BluetoothSocket socket;
-                // Keep listening until exception occurs
-                while (true) {
-                    try {
-                        socket = serverSocket.accept();
-                        Log.i(Brainstem.TAG, "got a Bluetooth socket: " + socket);
-                    } catch (IOException e) {
-                        break;
-                    }
-                    // If a connection was accepted
-                    if (socket != null) {
-                        if (isBondedSmSnDevice(socket.getRemoteDevice())) {
-                            // Do work to manage the connection (in a separate thread)
-                            connectToSocket(socket);
-
-                            // do *not* close the socket or break out; there may be other devices out there
-                        } else {
-                            socket.close();
-                        }
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    break;
+                }
+
+                try {
+                    if (isBondedSmSnDevice(socket.getRemoteDevice())) {
+                        // do *not* close the server socket or break out; there may be other devices out there
+                        acceptLink(BluetoothTransport.wrap(socket));
+                    } else {
+                        Log.w(Brainstem.TAG, "refusing Bluetooth connection from "
+                                + socket.getRemoteDevice().getAddress());
+                        socket.close();
                     }
+                } catch (Throwable t) {
+                    Log.e(Brainstem.TAG, "error while accepting Bluetooth connection: " + t.getMessage());
+                    t.printStackTrace(System.err);
                 }
-            } catch (Throwable t) {
-                Log.e(Brainstem.TAG, "Bluetooth listener thread failed with error: " + t.getMessage());
-                t.printStackTrace(System.err);
             }
+
+            Log.i(Brainstem.TAG, "Bluetooth listener thread stopped");
         }
 
         public void cancel() throws IOException {
@@ -0,0 +1,82 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * A device transport over the Bluetooth Serial Port Profile (SPP)
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BluetoothTransport implements DeviceTransport {
+
+    // Serial Port Profile UUID
+    public static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter adapter;
+
+    public BluetoothTransport(final BluetoothAdapter adapter) {
+        this.adapter = adapter;
+    }
+
+    public DeviceLink connect(final String address) throws IOException {
+        BluetoothDevice device = adapter.getRemoteDevice(address);
+        BluetoothSocket socket = device.createRfcommSocketToServiceRecord(SPP_UUID);
+        if (null == socket) {
+            throw new IOException("null Bluetooth socket");
+        }
+
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        return wrap(socket);
+    }
+
+    /**
+     * @param socket a connected Bluetooth socket, e.g. one obtained from a server socket
+     * @return a link backed by the socket
+     */
+    public static DeviceLink wrap(final BluetoothSocket socket) {
+        return new BluetoothLink(socket);
+    }
+
+    private static class BluetoothLink implements DeviceLink {
+        private final BluetoothSocket socket;
+        private final BluetoothDevice device;
+
+        private BluetoothLink(final BluetoothSocket socket) {
+            this.socket = socket;
+            this.device = socket.getRemoteDevice();
+        }
+
+        public String getAddress() {
+            return device.getAddress();
+        }
+
+        public String getName() {
+            return device.getName();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of named startup stages which run on background threads as soon as the stages they depend on are
+ * complete, so that independent stages run in parallel and none of them runs on the UI thread.
+ * The start time and duration of each stage are recorded, so that cold-start time can be measured.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BootSequence {
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+    private final ExecutorService executor;
+
+    public BootSequence() {
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "boot-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Adds a stage and schedules it to run in the background once all of its dependencies have completed.
+     * If any dependency fails, the stage fails without running.
+     *
+     * @param name         a unique name for the stage
+     * @param task         the work of the stage
+     * @param dependencies the names of previously added stages which must complete first
+     */
+    public void addStage(final String name,
+                         final Task task,
+                         final String... dependencies) {
+        final Stage stage;
+        final List<Stage> deps = new ArrayList<Stage>(dependencies.length);
+
+        synchronized (stages) {
+            if (stages.containsKey(name)) {
+                throw new IllegalArgumentException("duplicate boot stage: " + name);
+            }
+            for (String d : dependencies) {
+                Stage dep = stages.get(d);
+                if (null == dep) {
+                    throw new IllegalArgumentException("no such boot stage: " + d);
+                }
+                deps.add(dep);
+            }
+
+            stage = new Stage(name);
+            stages.put(name, stage);
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    for (Stage dep : deps) {
+                        dep.latch.await();
+                        if (null != dep.failure) {
+                            throw new BootException("dependency '" + dep.name + "' failed", dep.failure);
+                        }
+                    }
+
+                    stage.thread = Thread.currentThread().getName();
+                    stage.startOffset = System.nanoTime() - startNanos;
+                    task.run();
+                    stage.duration = System.nanoTime() - startNanos - stage.startOffset;
+                    Log.i(Brainstem.TAG, "boot stage '" + name + "' completed in "
+                            + stage.duration / 1000000 + "ms");
+                } catch (Throwable t) {
+                    stage.failure = t;
+                    Log.e(Brainstem.TAG, "boot stage '" + name + "' failed: " + t.getMessage());
+                    t.printStackTrace(System.err);
+                } finally {
+                    stage.latch.countDown();
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs an action in the background once a stage has completed successfully.
+     * Unlike a stage, the action is not recorded in the trace.
+     *
+     * @param stageName the name of the stage to wait for
+     * @param action    the action to run
+     */
+    public void whenComplete(final String stageName,
+                             final Runnable action) {
+        final Stage stage = getStage(stageName);
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    stage.latch.await();
+                    if (null == stage.failure) {
+                        action.run();
+                    } else {
+                        Log.w(Brainstem.TAG, "not running action, as boot stage '" + stageName + "' failed");
+                    }
+                } catch (Throwable t) {
+                    Log.e(Brainstem.TAG, "action after boot stage '" + stageName + "' failed: " + t.getMessage());
+                    t.printStackTrace(System.err);
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for a stage to complete
+     *
+     * @param stageName the name of the stage
+     * @param timeout   the maximum time to wait, in milliseconds
+     * @return whether the stage completed successfully within the timeout
+     */
+    public boolean await(final String stageName,
+                         final long timeout) throws InterruptedException {
+        Stage stage = getStage(stageName);
+        return stage.latch.await(timeout, TimeUnit.MILLISECONDS) && null == stage.failure;
+    }
+
+    public boolean isComplete(final String stageName) {
+        Stage stage = getStage(stageName);
+        return 0 == stage.latch.getCount() && null == stage.failure;
+    }
+
+    /**
+     * @return a human-readable trace of all stages, with the start time of each stage relative to the start of the
+     * boot sequence, its duration, and the thread on which it ran
+     */
+    public String getTrace() {
+        StringBuilder sb = new StringBuilder();
+        long end = 0;
+
+        synchronized (stages) {
+            for (Stage s : stages.values()) {
+                sb.append(s.name).append(": ");
+                if (0 != s.latch.getCount()) {
+                    sb.append(null == s.thread ? "waiting" : "running since +" + s.startOffset / 1000000 + "ms");
+                } else if (null != s.failure) {
+                    sb.append("failed (").append(s.failure.getMessage()).append(")");
+                } else {
+                    sb.append("+").append(s.startOffset / 1000000).append("ms, took ")
+                            .append(s.duration / 1000000).append("ms on ").append(s.thread);
+                    end = Math.max(end, s.startOffset + s.duration);
+                }
+                sb.append("\n");
+            }
+        }
+
+        sb.append("total: ").append(end / 1000000).append("ms\n");
+        return sb.toString();
+    }
+
+    private Stage getStage(final String name) {
+        synchronized (stages) {
+            Stage stage = stages.get(name);
+            if (null == stage) {
+                throw new IllegalArgumentException("no such boot stage: " + name);
+            }
+            return stage;
+        }
+    }
+
+    private static class Stage {
+        private final String name;
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private volatile String thread;
+        private volatile long startOffset;
+        private volatile long duration;
+        private volatile Throwable failure;
+
+        private Stage(final String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * The work of a single boot stage
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    public static class BootException extends Exception {
+        public BootException(final String message,
+                             final Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package net.fortytwo.smsn.brainstem;
 
+import android.app.Activity;
 import android.util.Log;
 import edu.rpi.twc.sesamestream.BindingSetHandler;
 import edu.rpi.twc.sesamestream.QueryEngine;
@@ -11,7 +12,6 @@ import net.fortytwo.smsn.p2p.Pinger;
 import net.fortytwo.smsn.p2p.SideEffects;
 import net.fortytwo.smsn.p2p.osc.OscControl;
 import net.fortytwo.smsn.p2p.osc.OscReceiver;
-import net.fortytwo.smsn.rdf.Activities;
 import net.fortytwo.smsn.typeatron.TypeatronControl;
 import net.fortytwo.smsn.util.TypedProperties;
 import org.openrdf.model.URI;
@@ -19,12 +19,17 @@ import org.openrdf.query.BindingSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class Brainstem {
-    // no query expiration for now
+    // no query expiration for now; the query engine's memory is bounded by a QueryWindow instead
     private static final int QUERY_TTL = 0;
 
     /**
@@ -40,7 +45,29 @@ public class Brainstem {
 
     public static final String
             PROP_EXTENDOHAND_ADDRESS = "net.fortytwo.smsn.brainstem.handAddress",
-            PROP_TYPEATRON_ADDRESS = "net.fortytwo.smsn.brainstem.typeatronAddress";
+            PROP_TYPEATRON_ADDRESS = "net.fortytwo.smsn.brainstem.typeatronAddress",
+            PROP_QUEUE_CAPACITY = "net.fortytwo.smsn.brainstem.queueCapacity",
+            PROP_OVERFLOW_POLICY = "net.fortytwo.smsn.brainstem.overflowPolicy",
+            PROP_CAPTURE_DIRECTORY = "net.fortytwo.smsn.brainstem.captureDirectory",
+            PROP_LATEST_VALUE_ADDRESSES = "net.fortytwo.smsn.brainstem.latestValueAddresses",
+            PROP_QUERY_WINDOW_SECONDS = "net.fortytwo.smsn.brainstem.queryWindowSeconds",
+            PROP_QUERY_WINDOW_RESULTS = "net.fortytwo.smsn.brainstem.queryWindowResults",
+            PROP_QUERY_HEAP_CEILING_MB = "net.fortytwo.smsn.brainstem.queryHeapCeilingMB",
+            PROP_QUERIES_FILE = "net.fortytwo.smsn.brainstem.queriesFile",
+            PROP_INDEX_FILE = "net.fortytwo.smsn.brainstem.indexFile",
+            PROP_INDEX_PREDICATES = "net.fortytwo.smsn.brainstem.indexPredicates",
+            PROP_INDEX_MAX_AGE_DAYS = "net.fortytwo.smsn.brainstem.indexMaxAgeDays",
+            PROP_BATCH_MAX_STATEMENTS = "net.fortytwo.smsn.brainstem.batchMaxStatements",
+            PROP_BATCH_MAX_DELAY_MS = "net.fortytwo.smsn.brainstem.batchMaxDelayMs",
+            PROP_BATCH_PRIORITY_TYPES = "net.fortytwo.smsn.brainstem.batchPriorityTypes",
+            PROP_OUTBOX_DIRECTORY = "net.fortytwo.smsn.brainstem.outboxDirectory",
+            PROP_OUTBOX_COMMIT_INTERVAL_MS = "net.fortytwo.smsn.brainstem.outboxCommitIntervalMs",
+            PROP_OUTBOX_DRAIN_RATE = "net.fortytwo.smsn.brainstem.outboxDrainRate",
+            PROP_NOTIFICATION_ENDPOINTS = "net.fortytwo.smsn.brainstem.notificationEndpoints",
+            PROP_NOTIFICATION_FRAMED = "net.fortytwo.smsn.brainstem.notificationFramed",
+            PROP_NOTIFICATION_WINDOW_MS = "net.fortytwo.smsn.brainstem.notificationWindowMs",
+            PROP_EARCON_BENCHMARK_ITERATIONS = "net.fortytwo.smsn.brainstem.earconBenchmarkIterations",
+            PROP_EARCON_PREEMPT = "net.fortytwo.smsn.brainstem.earconPreempt";
 
     /**
      * The expected location of Brainstem's configuration file
@@ -49,46 +76,222 @@ public class Brainstem {
      */
     public static final String PROPS_PATH = "/sdcard/smsn.properties";
 
-    private SmSnAgent agent;
+    /**
+     * The default location of the file declaring the Brainstem's continuous queries.
+     * If there is no such file, built-in declarations are used
+     */
+    public static final String QUERIES_PATH = "/sdcard/smsn-queries.properties";
+
+    // how often the query file is checked for changes
+    private static final long QUERIES_CHECK_INTERVAL_MS = 10000;
+
+    // how long the earcon benchmark waits for the last boot stages
+    private static final long EARCON_BENCHMARK_WAIT_MS = 60000;
+
+    /**
+     * The default name of the on-device cache of facilitator knowledge, which is kept in the app's private
+     * files directory
+     */
+    public static final String INDEX_FILE_NAME = "smsn-index.bin";
+
+    /**
+     * The default directory, within the app's private files directory, of the outbox of events waiting for the
+     * facilitator
+     */
+    public static final String OUTBOX_DIRECTORY = "outbox";
+
+    /**
+     * The directory, within the app's private files directory, of the cache of synthesized speech for frequently
+     * spoken phrases
+     */
+    public static final String SPEECH_CACHE_DIRECTORY = "speech";
+
+    // the predicates of the facts which the pointing queries join on: names, organizations and interests
+    private static final String DEFAULT_INDEX_PREDICATES
+            = "http://xmlns.com/foaf/0.1/name,"
+            + "http://xmlns.com/foaf/0.1/interest,"
+            + "http://xmlns.com/foaf/0.1/member,"
+            + "http://www.w3.org/ns/org#memberOf,"
+            + "http://www.w3.org/2000/01/rdf-schema#label";
+
+    // the continuous sensor streams of the Extend-o-Hand and the Typeatron, for which only the newest sample matters
+    private static final String DEFAULT_LATEST_VALUE_ADDRESSES
+            = "/exo/hand/motion,"
+            + "/exo/tt/photo/data";
+
+    // names of the boot stages
+    private static final String
+            STAGE_CONFIGURATION = "configuration",
+            STAGE_AUDIO = "audio",
+            STAGE_AGENT = "agent",
+            STAGE_INDEX = "index",
+            STAGE_QUERIES = "queries",
+            STAGE_NOTIFICATIONS = "notifications",
+            STAGE_DEVICES = "devices",
+            STAGE_BLUETOOTH = "bluetooth";
+
+    // the app's private files directory, which is supplied by the activity once it has been created
+    private volatile File filesDirectory;
+    private final CountDownLatch filesDirectorySet = new CountDownLatch(1);
+
+    // note: the following are assigned by boot stages, on background threads
+    private volatile TypedProperties configuration;
+    private volatile BatchingAgent agent;
+    private volatile NotificationToneGenerator toneGenerator;
+    private volatile QueryWindow queryWindow;
+    private volatile QueryCatalog queryCatalog;
+    private volatile KnowledgeIndex knowledgeIndex;
+    private volatile RttSampler rttSampler;
+    private volatile Outbox outbox;
+    private volatile SparqlNotificationListener notificationListener;
+    private volatile NotificationCoalescer notificationCoalescer;
 
     private final BluetoothManager bluetoothManager;
     // receives OSC messages from the Bluetooth devices (as opposed to the WiFi interface)
     private final OscReceiver bluetoothOscReceiver;
 
-    private final NotificationToneGenerator toneGenerator = new NotificationToneGenerator();
+    private final BootSequence boot;
+    private boolean bluetoothStarted;
+
+    // runs query result handlers in priority lanes, off of the device reader threads
+    private final HandlerExecutor handlerExecutor;
+
+    // outlives any one activity, and with it the activity's text-to-speech engine; guarded by this
+    private SpeechQueue speechQueue;
+
     private Main.Speaker speaker;
     private Main.Texter texter;
     private Main.Toaster toaster;
 
-    private static final Brainstem INSTANCE;
-
-    static {
-        try {
-            INSTANCE = new Brainstem();
-        } catch (BrainstemException e) {
-            throw new ExceptionInInitializerError(e);
-        }
-    }
+    private static final Brainstem INSTANCE = new Brainstem();
 
-    private Brainstem() throws BrainstemException {
+    // note: construction is cheap; the expensive work happens in boot stages on background threads
+    private Brainstem() {
         bluetoothOscReceiver = new OscReceiver();
         bluetoothManager = BluetoothManager.getInstance(bluetoothOscReceiver);
 
-        try {
-            loadConfiguration();
-        } catch (TypedProperties.PropertyException e) {
-            throw new BrainstemException(e);
-        } catch (IOException e) {
-            throw new BrainstemException(e);
-        } catch (OscControl.DeviceInitializationException e) {
-            throw new BrainstemException(e);
-        }
+        handlerExecutor = new HandlerExecutor();
+
+        boot = new BootSequence();
+        startBoot();
     }
 
     public static Brainstem getInstance() {
         return INSTANCE;
     }
 
+    private void startBoot() {
+        boot.addStage(STAGE_CONFIGURATION, new BootSequence.Task() {
+            public void run() throws Exception {
+                loadConfiguration();
+            }
+        });
+        boot.addStage(STAGE_AUDIO, new BootSequence.Task() {
+            public void run() throws Exception {
+                NotificationToneGenerator g = new NotificationToneGenerator();
+                String preempt = configuration.getProperty(PROP_EARCON_PREEMPT);
+                if (null != preempt) {
+                    g.getEngine().setPreempt(Boolean.valueOf(preempt.trim()));
+                }
+                toneGenerator = g;
+            }
+        }, STAGE_CONFIGURATION);
+        boot.addStage(STAGE_AGENT, new BootSequence.Task() {
+            public void run() throws Exception {
+                createAgent();
+            }
+        }, STAGE_CONFIGURATION);
+        boot.addStage(STAGE_INDEX, new BootSequence.Task() {
+            public void run() throws Exception {
+                loadKnowledgeIndex();
+            }
+        }, STAGE_CONFIGURATION);
+        boot.addStage(STAGE_QUERIES, new BootSequence.Task() {
+            public void run() throws Exception {
+                addQueries();
+            }
+        }, STAGE_AGENT, STAGE_AUDIO, STAGE_INDEX);
+        boot.addStage(STAGE_NOTIFICATIONS, new BootSequence.Task() {
+            public void run() throws Exception {
+                startNotificationListener();
+            }
+        }, STAGE_CONFIGURATION, STAGE_AUDIO);
+        // devices wait for the queries, so that no gesture arrives before there is a query to receive it
+        boot.addStage(STAGE_DEVICES, new BootSequence.Task() {
+            public void run() throws Exception {
+                addDevices();
+            }
+        }, STAGE_CONFIGURATION, STAGE_AGENT, STAGE_QUERIES);
+
+        // the earcon benchmark plays many tones, so it waits until nothing else is booting
+        boot.whenComplete(STAGE_DEVICES, new Runnable() {
+            public void run() {
+                try {
+                    runEarconBenchmark();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "interrupted before earcon benchmark");
+                }
+            }
+        });
+    }
+
+    private void runEarconBenchmark() throws InterruptedException {
+        String iterations = configuration.getProperty(PROP_EARCON_BENCHMARK_ITERATIONS);
+        if (null == iterations) {
+            return;
+        }
+
+        if (!boot.await(STAGE_NOTIFICATIONS, EARCON_BENCHMARK_WAIT_MS)) {
+            Log.w(TAG, "not running earcon benchmark, as boot did not complete");
+            return;
+        }
+
+        Log.i(TAG, "earcon benchmark:\n"
+                + new EarconBenchmark(toneGenerator).run(Integer.valueOf(iterations.trim())));
+    }
+
+    /**
+     * Starts Bluetooth in the background, as soon as the devices have been registered.
+     * If Bluetooth is not enabled, the user is asked to enable it.
+     *
+     * @param activity the activity which will receive the result of the Bluetooth enable request
+     */
+    public synchronized void startBluetooth(final Activity activity) {
+        if (bluetoothStarted) {
+            return;
+        }
+        bluetoothStarted = true;
+
+        boot.addStage(STAGE_BLUETOOTH, new BootSequence.Task() {
+            public void run() throws Exception {
+                bluetoothManager.start(activity);
+            }
+        }, STAGE_DEVICES);
+    }
+
+    /**
+     * Begins connecting to all managed devices, in the background, once Bluetooth has started
+     */
+    public synchronized void connectDevices() {
+        if (!bluetoothStarted) {
+            Log.w(TAG, "can't connect devices; Bluetooth has not been started");
+            return;
+        }
+
+        boot.whenComplete(STAGE_BLUETOOTH, new Runnable() {
+            public void run() {
+                bluetoothManager.connectDevices();
+            }
+        });
+    }
+
+    /**
+     * @return a human-readable trace of the Brainstem's boot stages, with their start times and durations
+     */
+    public String getBootTrace() {
+        return boot.getTrace();
+    }
+
     /**
      * Load and configure resources with dependencies which cannot be resolved at construction time,
      * such as (currently) the text editor
@@ -102,6 +305,17 @@ public class Brainstem {
         this.texter = texter;
     }
 
+    /**
+     * Supplies the app's private files directory, in which the Brainstem keeps its caches by default.
+     * Boot stages which need the directory wait for it
+     *
+     * @param directory the directory given by the activity's <code>getFilesDir()</code>
+     */
+    public void setFilesDirectory(final File directory) {
+        filesDirectory = directory;
+        filesDirectorySet.countDown();
+    }
+
     public SmSnAgent getAgent() {
         return agent;
     }
@@ -110,6 +324,80 @@ public class Brainstem {
         return bluetoothManager;
     }
 
+    public HandlerExecutor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    /**
+     * Reloads the declared continuous queries now, rather than waiting for the query file to be checked.
+     * Added, removed and changed queries take effect immediately
+     */
+    public void reloadQueries() throws IOException {
+        if (null == queryCatalog) {
+            Log.w(TAG, "can't reload queries; they have not yet been loaded");
+            return;
+        }
+
+        queryCatalog.load();
+    }
+
+    /**
+     * @return the declared continuous queries, or null if they have not yet been loaded
+     */
+    public QueryCatalog getQueryCatalog() {
+        return queryCatalog;
+    }
+
+    /**
+     * @return the on-device cache of facilitator knowledge, or null if it has not yet been loaded
+     */
+    public KnowledgeIndex getKnowledgeIndex() {
+        return knowledgeIndex;
+    }
+
+    /**
+     * @return the generator of audible feedback, or null if it has not yet been created
+     */
+    public NotificationToneGenerator getToneGenerator() {
+        return toneGenerator;
+    }
+
+    /**
+     * @return the outbox of events waiting for the facilitator, or null if it has not been opened
+     */
+    public Outbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * @return the listener for notifications from the facilitator, or null if none is configured
+     */
+    public SparqlNotificationListener getNotificationListener() {
+        return notificationListener;
+    }
+
+    /**
+     * @return the stage which combines bursts of facilitator notifications, or null if none is configured
+     */
+    public NotificationCoalescer getNotificationCoalescer() {
+        return notificationCoalescer;
+    }
+
+    /**
+     * @return the background sampler of round-trip times to the facilitator,
+     * or null if the agent has not yet been created
+     */
+    public RttSampler getRttSampler() {
+        return rttSampler;
+    }
+
+    /**
+     * @return the window which bounds the query engine's memory, or null if queries have not yet been added
+     */
+    public QueryWindow getQueryWindow() {
+        return queryWindow;
+    }
+
     public Main.Texter getTexter() {
         return texter;
     }
@@ -122,89 +410,305 @@ public class Brainstem {
         return speaker;
     }
 
+    /**
+     * @return the queue through which all speech passes.  It is created on first use, after the files directory
+     * has been set, so that synthesized phrases are cached in the app's private storage
+     */
+    public synchronized SpeechQueue getSpeechQueue() {
+        if (null == speechQueue) {
+            File directory = filesDirectory;
+            speechQueue = new SpeechQueue(
+                    null == directory ? null : new UtteranceCache(new File(directory, SPEECH_CACHE_DIRECTORY)));
+        }
+        return speechQueue;
+    }
+
+    /**
+     * Stops the speech queue, for instance when the application is finishing.  A new queue is created on next use
+     */
+    public synchronized void shutdownSpeechQueue() {
+        if (null != speechQueue) {
+            speechQueue.shutdown();
+            speechQueue = null;
+        }
+    }
+
     // note: in Android, SharedPreferences are preferred to properties files.  This file specifically contains those
     // settings which change more frequently than the APK is loaded, such as network settings.
     // Ideally, this file will go away entirely once the Brainstem becomes reusable software rather than a
     // special-purpose component of a demo.
-    private void loadConfiguration()
-            throws BrainstemException, TypedProperties.PropertyException,
-            IOException, OscControl.DeviceInitializationException {
-
+    private void loadConfiguration() throws TypedProperties.PropertyException, IOException {
         SemanticSynchrony.addConfiguration(new File(PROPS_PATH));
-        TypedProperties configuration = SemanticSynchrony.getConfiguration();
+        configuration = SemanticSynchrony.getConfiguration();
 
-        // note: currently, setTextEditor() must be called before passing textEditor to the device controls
+        String queueCapacity = configuration.getProperty(PROP_QUEUE_CAPACITY);
+        if (null != queueCapacity) {
+            bluetoothManager.setQueueCapacity(Integer.valueOf(queueCapacity.trim()));
+        }
 
-        try {
-            agent = new SmSnAgent(true);
+        String overflowPolicy = configuration.getProperty(PROP_OVERFLOW_POLICY);
+        if (null != overflowPolicy) {
+            bluetoothManager.setOverflowPolicy(
+                    FrameQueue.OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase()));
+        }
 
-            final BindingSetHandler gbGestureAnswerHandler = new BindingSetHandler() {
-                public void handle(final BindingSet bindings) {
-                    //long delay = System.currentTimeMillis() - agent.timeOfLastEvent;
+        // continuous sensor streams for which only the newest sample matters; all other messages,
+        // such as chords and keystrokes, are delivered in full.  An empty list delivers everything
+        String latestValueAddresses = configuration.getProperty(PROP_LATEST_VALUE_ADDRESSES);
+        List<String> addresses = new LinkedList<String>();
+        for (String a : (null == latestValueAddresses ? DEFAULT_LATEST_VALUE_ADDRESSES : latestValueAddresses)
+                .split(",")) {
+            if (a.trim().length() > 0) {
+                addresses.add(a.trim());
+            }
+        }
+        Log.i(TAG, "delivering only the latest value of OSC addresses " + addresses);
+        bluetoothManager.setDeliveryPolicy(new OscDeliveryPolicy(addresses));
 
-                    toneGenerator.play();
+        String captureDirectory = configuration.getProperty(PROP_CAPTURE_DIRECTORY);
+        if (null != captureDirectory) {
+            bluetoothManager.setCaptureDirectory(new File(captureDirectory.trim()));
+        }
+    }
 
-                    //toaster.makeText("latency (before tone) = " + delay + "ms");
+    private void createAgent() throws Exception {
+        BatchingAgent a = new BatchingAgent(true);
 
-                    Log.i(Brainstem.TAG, "received SPARQL query result: " + bindings);
+        String maxStatements = configuration.getProperty(PROP_BATCH_MAX_STATEMENTS);
+        if (null != maxStatements) {
+            a.setMaxStatements(Integer.valueOf(maxStatements.trim()));
+        }
+        String maxDelay = configuration.getProperty(PROP_BATCH_MAX_DELAY_MS);
+        if (null != maxDelay) {
+            a.setMaxDelayMillis(Long.valueOf(maxDelay.trim()));
+        }
+        String priorityTypes = configuration.getProperty(PROP_BATCH_PRIORITY_TYPES);
+        if (null != priorityTypes) {
+            Set<String> types = new HashSet<String>();
+            for (String t : priorityTypes.split(",")) {
+                if (t.trim().length() > 0) {
+                    types.add(t.trim());
                 }
-            };
-            agent.getQueryEngine().addQuery(QUERY_TTL, Activities.QUERY_FOR_ALL_GB_GESTURES, gbGestureAnswerHandler);
+            }
+            a.setPriorityTypes(types);
+        }
 
-            final BindingSetHandler twcDemoHandler0 = new BindingSetHandler() {
-                public void handle(final BindingSet bindings) {
-                    Log.i(Brainstem.TAG, "person " + bindings.getValue("pointedTo")
-                            + " pointed to: " + bindings.getValue("pointedTo"));
-                }
-            };
-            agent.getQueryEngine().addQuery(QUERY_TTL, Activities.QUERY_FOR_THINGS_POINTED_TO, twcDemoHandler0);
+        openOutbox(a);
+        agent = a;
 
-            final BindingSetHandler twcDemoHandler1 = new BindingSetHandler() {
-                public void handle(final BindingSet bindings) {
-                    //long delay = System.currentTimeMillis() - agent.timeOfLastEvent;
+        RttSampler sampler = new RttSampler(a);
+        sampler.start();
+        rttSampler = sampler;
+    }
 
-                    toneGenerator.play();
+    private void openOutbox(final BatchingAgent a) throws InterruptedException {
+        String outboxDirectory = configuration.getProperty(PROP_OUTBOX_DIRECTORY);
+        File directory;
+        if (null == outboxDirectory) {
+            filesDirectorySet.await();
+            directory = new File(filesDirectory, OUTBOX_DIRECTORY);
+        } else {
+            directory = new File(outboxDirectory.trim());
+        }
+        // drained batches go only to the facilitator, so that replayed gestures produce no local answers
+        Outbox o = new Outbox(directory, a.getFacilitatorLink());
 
-                    String speech = bindings.getValue("personPointedToName").stringValue()
-                            + ", you're both members of "
-                            + bindings.getValue("orgLabel").stringValue();
-                    speaker.speak(speech);
+        String commitInterval = configuration.getProperty(PROP_OUTBOX_COMMIT_INTERVAL_MS);
+        if (null != commitInterval) {
+            o.setCommitIntervalMillis(Long.valueOf(commitInterval.trim()));
+        }
+        String drainRate = configuration.getProperty(PROP_OUTBOX_DRAIN_RATE);
+        if (null != drainRate) {
+            o.setDrainRate(Double.valueOf(drainRate.trim()));
+        }
 
-                    //toaster.makeText("latency (before tone) = " + delay + "ms");
+        try {
+            o.open();
+        } catch (IOException e) {
+            // events are sent as before, without durability
+            Log.e(TAG, "failed to open outbox: " + e.getMessage());
+            return;
+        }
+        a.setOutbox(o);
+        outbox = o;
+    }
+
+    // listens to the facilitators given as a comma-separated list of host:port pairs, if any
+    private void startNotificationListener() throws IOException {
+        String endpoints = configuration.getProperty(PROP_NOTIFICATION_ENDPOINTS);
+        if (null == endpoints) {
+            return;
+        }
 
-                    Log.i(Brainstem.TAG, "pointed to: " + bindings.getValue("personPointedTo") + " with org: "
-                            + bindings.getValue("orgLabel"));
+        String framed = configuration.getProperty(PROP_NOTIFICATION_FRAMED);
+        SparqlNotificationListener listener = new SparqlNotificationListener(
+                null != framed && Boolean.valueOf(framed.trim())
+                        ? NotificationDecoder.Protocol.FRAMED : NotificationDecoder.Protocol.LINES);
+
+        // a burst of notifications produces a single tone
+        String window = configuration.getProperty(PROP_NOTIFICATION_WINDOW_MS);
+        NotificationCoalescer coalescer = new NotificationCoalescer(
+                null == window ? NotificationCoalescer.DEFAULT_WINDOW_MS : Long.valueOf(window.trim()),
+                new NotificationCoalescer.SideEffect() {
+                    public void apply(final int type,
+                                      final int count) {
+                        Log.i(TAG, count + " notification(s) of type " + type + " from facilitator");
+                        toneGenerator.play(NotificationToneGenerator.Earcon.NOTIFICATION);
+                    }
+                });
+        listener.setHandler(NotificationDecoder.TYPE_TEXT, coalescer);
+        listener.setHandler(NotificationDecoder.TYPE_QUERY_RESULT, coalescer);
+        notificationCoalescer = coalescer;
+
+        for (String e : endpoints.split(",")) {
+            if (e.trim().length() > 0) {
+                int i = e.lastIndexOf(':');
+                if (i < 0) {
+                    throw new IllegalArgumentException("bad notification endpoint (expected host:port): " + e);
                 }
-            };
-            agent.getQueryEngine().addQuery(
-                    QUERY_TTL, Activities.QUERY_FOR_THINGS_POINTED_TO_WITH_COMMON_ORG, twcDemoHandler1);
+                listener.addEndpoint(e.substring(0, i).trim(), Integer.valueOf(e.substring(i + 1).trim()));
+            }
+        }
+        listener.start();
+        notificationListener = listener;
+    }
 
-            final BindingSetHandler twcDemoHandler2 = new BindingSetHandler() {
-                public void handle(final BindingSet bindings) {
-                    //long delay = System.currentTimeMillis() - agent.timeOfLastEvent;
+    private void addQueries() throws BrainstemException {
+        QueryWindow window = new QueryWindow(agent.getQueryEngine(), QUERY_TTL);
+        String windowSeconds = configuration.getProperty(PROP_QUERY_WINDOW_SECONDS);
+        if (null != windowSeconds) {
+            window.setWindowMillis(Long.valueOf(windowSeconds.trim()) * 1000);
+        }
+        String windowResults = configuration.getProperty(PROP_QUERY_WINDOW_RESULTS);
+        if (null != windowResults) {
+            window.setWindowResults(Long.valueOf(windowResults.trim()));
+        }
+        String heapCeiling = configuration.getProperty(PROP_QUERY_HEAP_CEILING_MB);
+        if (null != heapCeiling) {
+            window.setHeapCeiling(Long.valueOf(heapCeiling.trim()) * 1024 * 1024);
+        }
 
-                    toneGenerator.play();
+        // note: a handler which plays a tone is declared separately from one which speaks,
+        // so that the tone is never delayed by text-to-speech
+        final BindingSetHandler toneHandler = new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                //long delay = System.currentTimeMillis() - agent.timeOfLastEvent;
 
-                    String speech = bindings.getValue("personPointedToName").stringValue() + ", you both like "
-                            + ((URI) bindings.getValue("interest")).getLocalName().replaceAll("_", " ");
-                    speaker.speak(speech);
+                toneGenerator.play();
 
-                    //toaster.makeText("latency (before tone) = " + delay + "ms");
+                //toaster.makeText("latency (before tone) = " + delay + "ms");
+            }
+        };
 
-                    Log.i(Brainstem.TAG, "pointed to: " + bindings.getValue("personPointedTo") + " with interest: "
-                            + bindings.getValue("interest"));
-                }
-            };
-            agent.getQueryEngine().addQuery(
-                    QUERY_TTL, Activities.QUERY_FOR_THINGS_POINTED_TO_WITH_COMMON_INTEREST, twcDemoHandler2);
-        } catch (QueryEngine.InvalidQueryException e) {
-            throw new BrainstemException(e);
+        final BindingSetHandler personToneHandler = new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                toneGenerator.play(NotificationToneGenerator.Earcon.PERSON);
+            }
+        };
+
+        final BindingSetHandler gbGestureAnswerHandler = new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                Log.i(Brainstem.TAG, "received SPARQL query result: " + bindings);
+            }
+        };
+
+        final BindingSetHandler twcDemoHandler0 = new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                Log.i(Brainstem.TAG, "person " + bindings.getValue("pointedTo")
+                        + " pointed to: " + bindings.getValue("pointedTo"));
+            }
+        };
+
+        final BindingSetHandler twcDemoHandler1 = new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                String speech = bindings.getValue("personPointedToName").stringValue()
+                        + ", you're both members of "
+                        + bindings.getValue("orgLabel").stringValue();
+                speaker.speak(speech, SpeechQueue.Priority.HIGH);
+
+                Log.i(Brainstem.TAG, "pointed to: " + bindings.getValue("personPointedTo") + " with org: "
+                        + bindings.getValue("orgLabel"));
+            }
+        };
+
+        final BindingSetHandler twcDemoHandler2 = new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                String speech = bindings.getValue("personPointedToName").stringValue() + ", you both like "
+                        + ((URI) bindings.getValue("interest")).getLocalName().replaceAll("_", " ");
+                speaker.speak(speech, SpeechQueue.Priority.HIGH);
+
+                Log.i(Brainstem.TAG, "pointed to: " + bindings.getValue("personPointedTo") + " with interest: "
+                        + bindings.getValue("interest"));
+            }
+        };
+
+        String queriesFile = configuration.getProperty(PROP_QUERIES_FILE);
+        QueryCatalog catalog = new QueryCatalog(
+                window, new File(null == queriesFile ? QUERIES_PATH : queriesFile.trim()));
+        registerHandler(catalog, "tone", HandlerExecutor.Lane.FEEDBACK, toneHandler);
+        registerHandler(catalog, "tone-person", HandlerExecutor.Lane.FEEDBACK, personToneHandler);
+        registerHandler(catalog, "log-result", HandlerExecutor.Lane.LOGGING, gbGestureAnswerHandler);
+        registerHandler(catalog, "log-pointed-to", HandlerExecutor.Lane.LOGGING, twcDemoHandler0);
+        registerHandler(catalog, "speak-common-org", HandlerExecutor.Lane.SPEECH, twcDemoHandler1);
+        registerHandler(catalog, "speak-common-interest", HandlerExecutor.Lane.SPEECH, twcDemoHandler2);
+
+        try {
+            catalog.load();
+            knowledgeIndex.attach(window);
         } catch (IOException e) {
             throw new BrainstemException(e);
+        } catch (QueryEngine.InvalidQueryException e) {
+            throw new BrainstemException(e);
         } catch (QueryEngine.IncompatibleQueryException e) {
             throw new BrainstemException(e);
         }
 
+        agent.setQueryWindow(window);
+        window.start();
+        catalog.startWatching(QUERIES_CHECK_INTERVAL_MS);
+        queryWindow = window;
+        queryCatalog = catalog;
+    }
+
+    private void loadKnowledgeIndex() throws InterruptedException {
+        String indexFile = configuration.getProperty(PROP_INDEX_FILE);
+        File file;
+        if (null == indexFile) {
+            filesDirectorySet.await();
+            file = new File(filesDirectory, INDEX_FILE_NAME);
+        } else {
+            file = new File(indexFile.trim());
+        }
+        String predicates = configuration.getProperty(PROP_INDEX_PREDICATES);
+        List<String> predicateList = new LinkedList<String>();
+        for (String p : (null == predicates ? DEFAULT_INDEX_PREDICATES : predicates).split(",")) {
+            if (p.trim().length() > 0) {
+                predicateList.add(p.trim());
+            }
+        }
+
+        KnowledgeIndex index = new KnowledgeIndex(file, predicateList);
+        String maxAgeDays = configuration.getProperty(PROP_INDEX_MAX_AGE_DAYS);
+        if (null != maxAgeDays) {
+            index.setMaxAge(Long.valueOf(maxAgeDays.trim()) * 24 * 60 * 60 * 1000);
+        }
+        try {
+            index.load();
+        } catch (IOException e) {
+            // a damaged cache is not fatal; it will be rebuilt as facts arrive
+            Log.e(TAG, "failed to load knowledge index: " + e.getMessage());
+        }
+        knowledgeIndex = index;
+    }
+
+    private void registerHandler(final QueryCatalog catalog,
+                                 final String name,
+                                 final HandlerExecutor.Lane lane,
+                                 final BindingSetHandler handler) {
+        catalog.registerHandler(name, handlerExecutor.wrap(name, lane, handler));
+    }
+
+    private void addDevices() throws BrainstemException, OscControl.DeviceInitializationException {
         SideEffects sideEffects = new BrainstemSideEffects(this);
 
         String extendoHandAddress = configuration.getProperty(PROP_EXTENDOHAND_ADDRESS);
@@ -242,6 +746,12 @@ public class Brainstem {
     }
 
     public void pingFacilitatorConnection() {
+        if (null == agent) {
+            Log.i(TAG, "can't ping facilitator; the agent has not yet been created");
+            playAlert();
+            return;
+        }
+
         try {
             if (agent.getFacilitatorConnection().isActive()) {
                 agent.getPinger().ping(new Pinger.PingResultHandler() {
@@ -251,10 +761,20 @@ public class Brainstem {
                 });
             } else {
                 Log.i(TAG, "can't ping facilitator; no connection");
+                playAlert();
             }
         } catch (Throwable t) {
             Log.e(TAG, "error pinging facilitator: " + t.getMessage());
             t.printStackTrace(System.err);
+            playAlert();
+        }
+    }
+
+    // tells the user, audibly, that something they asked for has failed
+    private void playAlert() {
+        NotificationToneGenerator g = toneGenerator;
+        if (null != g) {
+            g.play(NotificationToneGenerator.Earcon.ALERT);
         }
     }
 }
@@ -0,0 +1,77 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.util.Log;
+
+/**
+ * A log for classes which also run off the device, in unit tests and desktop benchmarks, where android.util.Log is
+ * only a stub which throws.  Its methods mirror those of android.util.Log.
+ * On the device, messages go to android.util.Log; elsewhere, they go to standard error, unless another sink is set.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BrainstemLog {
+    public enum Level {INFO, WARN, ERROR}
+
+    public interface Sink {
+        void log(Level level,
+                 String tag,
+                 String message);
+    }
+
+    private static final Sink ANDROID = new Sink() {
+        public void log(final Level level,
+                        final String tag,
+                        final String message) {
+            switch (level) {
+                case INFO:
+                    Log.i(tag, message);
+                    break;
+                case WARN:
+                    Log.w(tag, message);
+                    break;
+                case ERROR:
+                    Log.e(tag, message);
+                    break;
+            }
+        }
+    };
+
+    private static final Sink STANDARD_ERROR = new Sink() {
+        public void log(final Level level,
+                        final String tag,
+                        final String message) {
+            System.err.println(level + " " + tag + ": " + message);
+        }
+    };
+
+    // Android's runtimes, both Dalvik and ART, report themselves as Dalvik
+    private static final Sink DEFAULT_SINK
+            = "Dalvik".equals(System.getProperty("java.vm.name")) ? ANDROID : STANDARD_ERROR;
+
+    private static volatile Sink sink = DEFAULT_SINK;
+
+    private BrainstemLog() {
+    }
+
+    /**
+     * @param s the sink to which messages are sent, or null for the default sink
+     */
+    public static void setSink(final Sink s) {
+        sink = null == s ? DEFAULT_SINK : s;
+    }
+
+    public static void i(final String tag,
+                         final String message) {
+        sink.log(Level.INFO, tag, message);
+    }
+
+    public static void w(final String tag,
+                         final String message) {
+        sink.log(Level.WARN, tag, message);
+    }
+
+    public static void e(final String tag,
+                         final String message) {
+        sink.log(Level.ERROR, tag, message);
+    }
+}
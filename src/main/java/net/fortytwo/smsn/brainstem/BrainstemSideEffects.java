@@ -14,7 +14,8 @@ public class BrainstemSideEffects implements SideEffects {
 
     @Override
     public void speak(final String message) {
-        brainstem.getSpeaker().speak(message);
+        // status messages from devices are the least urgent speech, and are merged when they arrive in a burst
+        brainstem.getSpeaker().speak(message, SpeechQueue.Priority.LOW);
     }
 
     @Override
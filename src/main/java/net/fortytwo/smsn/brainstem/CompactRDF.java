@@ -0,0 +1,53 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.openrdf.rio.RDFFormat;
+
+import java.nio.charset.Charset;
+
+/**
+ * A compact binary RDF format for the link between the Brainstem and the facilitator.
+ * Each URI and blank node is written in full only the first time it appears in a document, after which it is
+ * referred to by a varint id, so that the repetitive statements which describe gestures and other events cost
+ * a few bytes each rather than a line of N-Triples.
+ * <p>
+ * A document is a four-byte magic number and a version byte, followed by records, each of which begins with a
+ * record type: a statement (subject, predicate and object terms), a statement in a context (four terms),
+ * a namespace declaration, a comment, or the end of the document.
+ * A term is a varint which is either the id of a previously seen URI or blank node, or a tag which introduces a
+ * new URI, new blank node, or literal.  Strings are a varint byte length followed by UTF-8.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactRDF {
+    public static final RDFFormat FORMAT = new RDFFormat(
+            "SmSn Compact RDF", "application/x-smsn-compact-rdf", null, "srdf", true, true);
+
+    static {
+        RDFFormat.register(FORMAT);
+    }
+
+    static final int MAGIC = 0x53524446;
+    static final int VERSION = 1;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // record types
+    static final int
+            END = 0,
+            STATEMENT = 1,
+            CONTEXT_STATEMENT = 2,
+            NAMESPACE = 3,
+            COMMENT = 4;
+
+    // term tags.  Values from FIRST_ID upward refer to previously seen terms
+    static final int
+            NEW_URI = 0,
+            NEW_BNODE = 1,
+            PLAIN_LITERAL = 2,
+            LANGUAGE_LITERAL = 3,
+            TYPED_LITERAL = 4,
+            FIRST_ID = 8;
+
+    private CompactRDF() {
+    }
+}
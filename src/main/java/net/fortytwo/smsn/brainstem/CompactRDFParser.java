@@ -0,0 +1,208 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.openrdf.model.Resource;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandler;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.helpers.RDFParserBase;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses RDF in the {@link CompactRDF} format
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactRDFParser extends RDFParserBase {
+    private static final int BUFFER_SIZE = 8192;
+
+    // strings longer than this are taken to indicate a corrupt document
+    private static final int MAX_STRING_LENGTH = 1 << 24;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+    private int limit;
+    private InputStream in;
+
+    // URIs and blank nodes, indexed by id - FIRST_ID
+    private final List<Resource> terms = new ArrayList<Resource>();
+
+    public RDFFormat getRDFFormat() {
+        return CompactRDF.FORMAT;
+    }
+
+    public void parse(final InputStream in,
+                      final String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        this.in = in;
+        position = 0;
+        limit = 0;
+        terms.clear();
+        setBaseURI(baseURI);
+
+        try {
+            int magic = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+            if (CompactRDF.MAGIC != magic) {
+                throw new RDFParseException("not a compact RDF document");
+            }
+            int version = readByte();
+            if (CompactRDF.VERSION != version) {
+                throw new RDFParseException("unsupported compact RDF version: " + version);
+            }
+
+            RDFHandler handler = getRDFHandler();
+            if (null != handler) {
+                handler.startRDF();
+            }
+
+            while (true) {
+                int type = readByte();
+                switch (type) {
+                    case CompactRDF.END:
+                        if (null != handler) {
+                            handler.endRDF();
+                        }
+                        return;
+                    case CompactRDF.STATEMENT:
+                    case CompactRDF.CONTEXT_STATEMENT:
+                        Resource subject = readResource();
+                        URI predicate = readURI();
+                        Value object = readTerm();
+                        Resource context = CompactRDF.CONTEXT_STATEMENT == type ? readResource() : null;
+                        if (null != handler) {
+                            handler.handleStatement(null == context
+                                    ? createStatement(subject, predicate, object)
+                                    : createStatement(subject, predicate, object, context));
+                        }
+                        break;
+                    case CompactRDF.NAMESPACE:
+                        String prefix = readString();
+                        String name = readString();
+                        if (null != handler) {
+                            handler.handleNamespace(prefix, name);
+                        }
+                        break;
+                    case CompactRDF.COMMENT:
+                        String comment = readString();
+                        if (null != handler) {
+                            handler.handleComment(comment);
+                        }
+                        break;
+                    default:
+                        throw new RDFParseException("unknown record type: " + type);
+                }
+            }
+        } finally {
+            this.in = null;
+            clear();
+            terms.clear();
+        }
+    }
+
+    public void parse(final Reader reader,
+                      final String baseURI) throws IOException, RDFParseException, RDFHandlerException {
+        throw new UnsupportedOperationException("binary format; use an InputStream rather than a Reader");
+    }
+
+    private Resource readResource() throws IOException, RDFParseException {
+        Value v = readTerm();
+        if (!(v instanceof Resource)) {
+            throw new RDFParseException("expected a resource; found " + v);
+        }
+        return (Resource) v;
+    }
+
+    private URI readURI() throws IOException, RDFParseException {
+        Value v = readTerm();
+        if (!(v instanceof URI)) {
+            throw new RDFParseException("expected a URI; found " + v);
+        }
+        return (URI) v;
+    }
+
+    private Value readTerm() throws IOException, RDFParseException {
+        int tag = readVarint();
+        Resource r;
+        switch (tag) {
+            case CompactRDF.NEW_URI:
+                r = createURI(readString());
+                terms.add(r);
+                return r;
+            case CompactRDF.NEW_BNODE:
+                r = createBNode(readString());
+                terms.add(r);
+                return r;
+            case CompactRDF.PLAIN_LITERAL:
+                return createLiteral(readString(), null, null);
+            case CompactRDF.LANGUAGE_LITERAL:
+                String label = readString();
+                return createLiteral(label, readString(), null);
+            case CompactRDF.TYPED_LITERAL:
+                String typedLabel = readString();
+                return createLiteral(typedLabel, null, readURI());
+            default:
+                int index = tag - CompactRDF.FIRST_ID;
+                if (index < 0 || index >= terms.size()) {
+                    throw new RDFParseException("unknown term: " + tag);
+                }
+                return terms.get(index);
+        }
+    }
+
+    private String readString() throws IOException, RDFParseException {
+        int length = readVarint();
+        if (length > MAX_STRING_LENGTH) {
+            throw new RDFParseException("string too long: " + length);
+        }
+
+        if (length <= limit - position) {
+            String s = new String(buffer, position, length, CompactRDF.UTF8);
+            position += length;
+            return s;
+        }
+
+        byte[] bytes = new byte[length];
+        int n = limit - position;
+        System.arraycopy(buffer, position, bytes, 0, n);
+        position = limit;
+        while (n < length) {
+            int r = in.read(bytes, n, length - n);
+            if (r < 0) {
+                throw new EOFException("unexpected end of compact RDF document");
+            }
+            n += r;
+        }
+        return new String(bytes, CompactRDF.UTF8);
+    }
+
+    private int readVarint() throws IOException, RDFParseException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if (0 == (b & 0x80)) {
+                return value;
+            }
+        }
+        throw new RDFParseException("malformed varint");
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit) {
+            limit = in.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0) {
+                limit = 0;
+                throw new EOFException("unexpected end of compact RDF document");
+            }
+        }
+        return buffer[position++] & 0xFF;
+    }
+}
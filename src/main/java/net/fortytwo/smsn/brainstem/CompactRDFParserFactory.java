@@ -0,0 +1,20 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFParser;
+import org.openrdf.rio.RDFParserFactory;
+
+/**
+ * Creates parsers for the {@link CompactRDF} format
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactRDFParserFactory implements RDFParserFactory {
+    public RDFFormat getRDFFormat() {
+        return CompactRDF.FORMAT;
+    }
+
+    public RDFParser getParser() {
+        return new CompactRDFParser();
+    }
+}
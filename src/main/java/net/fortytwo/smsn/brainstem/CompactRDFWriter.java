@@ -0,0 +1,173 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.helpers.RDFWriterBase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes RDF in the {@link CompactRDF} format
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactRDFWriter extends RDFWriterBase {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream out;
+
+    // output is collected here and written in large blocks
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position;
+
+    // the id of each URI and blank node written so far
+    private final Map<String, Integer> uriIds = new HashMap<String, Integer>();
+    private final Map<String, Integer> bnodeIds = new HashMap<String, Integer>();
+    private int nextId;
+
+    public CompactRDFWriter(final OutputStream out) {
+        this.out = out;
+    }
+
+    public RDFFormat getRDFFormat() {
+        return CompactRDF.FORMAT;
+    }
+
+    public void startRDF() throws RDFHandlerException {
+        uriIds.clear();
+        bnodeIds.clear();
+        nextId = CompactRDF.FIRST_ID;
+        position = 0;
+
+        int m = CompactRDF.MAGIC;
+        writeByte(m >>> 24);
+        writeByte(m >>> 16);
+        writeByte(m >>> 8);
+        writeByte(m);
+        writeByte(CompactRDF.VERSION);
+    }
+
+    public void endRDF() throws RDFHandlerException {
+        writeByte(CompactRDF.END);
+        try {
+            flushBuffer();
+            out.flush();
+        } catch (IOException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    public void handleNamespace(final String prefix,
+                                final String uri) throws RDFHandlerException {
+        writeByte(CompactRDF.NAMESPACE);
+        writeString(prefix);
+        writeString(uri);
+    }
+
+    public void handleStatement(final Statement st) throws RDFHandlerException {
+        Resource context = st.getContext();
+        writeByte(null == context ? CompactRDF.STATEMENT : CompactRDF.CONTEXT_STATEMENT);
+        writeTerm(st.getSubject());
+        writeTerm(st.getPredicate());
+        writeTerm(st.getObject());
+        if (null != context) {
+            writeTerm(context);
+        }
+    }
+
+    public void handleComment(final String comment) throws RDFHandlerException {
+        writeByte(CompactRDF.COMMENT);
+        writeString(comment);
+    }
+
+    private void writeTerm(final Value value) throws RDFHandlerException {
+        if (value instanceof URI) {
+            writeInterned(uriIds, CompactRDF.NEW_URI, value.stringValue());
+        } else if (value instanceof BNode) {
+            writeInterned(bnodeIds, CompactRDF.NEW_BNODE, ((BNode) value).getID());
+        } else {
+            Literal l = (Literal) value;
+            if (null != l.getLanguage()) {
+                writeVarint(CompactRDF.LANGUAGE_LITERAL);
+                writeString(l.getLabel());
+                writeString(l.getLanguage());
+            } else if (null != l.getDatatype()) {
+                writeVarint(CompactRDF.TYPED_LITERAL);
+                writeString(l.getLabel());
+                writeTerm(l.getDatatype());
+            } else {
+                writeVarint(CompactRDF.PLAIN_LITERAL);
+                writeString(l.getLabel());
+            }
+        }
+    }
+
+    private void writeInterned(final Map<String, Integer> ids,
+                               final int newTag,
+                               final String s) throws RDFHandlerException {
+        Integer id = ids.get(s);
+        if (null == id) {
+            ids.put(s, nextId++);
+            writeVarint(newTag);
+            writeString(s);
+        } else {
+            writeVarint(id);
+        }
+    }
+
+    private void writeString(final String s) throws RDFHandlerException {
+        byte[] bytes = s.getBytes(CompactRDF.UTF8);
+        writeVarint(bytes.length);
+        if (bytes.length > buffer.length - position) {
+            flushOrFail();
+            if (bytes.length > buffer.length) {
+                try {
+                    out.write(bytes);
+                } catch (IOException e) {
+                    throw new RDFHandlerException(e);
+                }
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeVarint(final int value) throws RDFHandlerException {
+        int v = value;
+        while ((v & ~0x7F) != 0) {
+            writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        writeByte(v);
+    }
+
+    private void writeByte(final int b) throws RDFHandlerException {
+        if (position == buffer.length) {
+            flushOrFail();
+        }
+        buffer[position++] = (byte) b;
+    }
+
+    private void flushOrFail() throws RDFHandlerException {
+        try {
+            flushBuffer();
+        } catch (IOException e) {
+            throw new RDFHandlerException(e);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+}
@@ -0,0 +1,27 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.RDFWriterFactory;
+
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Creates writers for the {@link CompactRDF} format
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactRDFWriterFactory implements RDFWriterFactory {
+    public RDFFormat getRDFFormat() {
+        return CompactRDF.FORMAT;
+    }
+
+    public RDFWriter getWriter(final OutputStream out) {
+        return new CompactRDFWriter(out);
+    }
+
+    public RDFWriter getWriter(final Writer writer) {
+        throw new UnsupportedOperationException("binary format; use an OutputStream rather than a Writer");
+    }
+}
@@ -0,0 +1,375 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connects to devices concurrently and in the background, retrying failed attempts with exponential backoff
+ * and reconnecting automatically when a connection is lost.
+ * Blocking connection attempts never run on the caller's thread, and one absent device does not delay the others.
+ * <p>
+ * The supervisor drives each device through the states of the {@link DeviceRegistry}:
+ * IDLE or BACKOFF to CONNECTING when an attempt begins, then CONNECTED on success or BACKOFF on failure,
+ * and CONNECTED to BACKOFF when the connection is lost.
+ * Because every transition is a compare-and-set, at most one attempt per device is ever in progress.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ConnectionSupervisor {
+    private static final long
+            DEFAULT_INITIAL_BACKOFF_MS = 1000,
+            DEFAULT_MAX_BACKOFF_MS = 60000;
+
+    // a random factor of +/- this ratio is applied to each delay, so that devices do not retry in lockstep
+    private static final double JITTER = 0.25;
+
+    // after this many consecutive failures, a device is left alone until connectAll() is called again
+    private static final int DEFAULT_MAX_FAILURES = 20;
+
+    private final DeviceRegistry registry;
+    private final Connector connector;
+    private final ScheduledExecutorService executor;
+    private final ConcurrentMap<String, Status> statusByAddress;
+    private final Random random = new Random();
+
+    private long initialBackoff = DEFAULT_INITIAL_BACKOFF_MS;
+    private long maxBackoff = DEFAULT_MAX_BACKOFF_MS;
+    private int maxFailures = DEFAULT_MAX_FAILURES;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param registry   the devices to supervise
+     * @param connector  a callback which makes a single, blocking connection attempt to a device
+     * @param maxThreads the maximum number of connection attempts which may be in progress at once
+     */
+    public ConnectionSupervisor(final DeviceRegistry registry,
+                                final Connector connector,
+                                final int maxThreads) {
+        this.registry = registry;
+        this.connector = connector;
+        this.statusByAddress = new ConcurrentHashMap<String, Status>();
+
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newScheduledThreadPool(maxThreads, new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "device-connector-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void setInitialBackoff(final long initialBackoff) {
+        this.initialBackoff = initialBackoff;
+    }
+
+    public void setMaxBackoff(final long maxBackoff) {
+        this.maxBackoff = maxBackoff;
+    }
+
+    public void setMaxFailures(final int maxFailures) {
+        this.maxFailures = maxFailures;
+    }
+
+    /**
+     * Begins connecting to each managed device which is not already connected or being connected to.
+     * Devices waiting out a backoff delay are retried immediately.  Returns immediately.
+     */
+    public void connectAll() {
+        if (stopped) {
+            return;
+        }
+
+        for (DeviceRegistry.Device device : registry.getDevices()) {
+            if (!device.isManaged()) {
+                continue;
+            }
+
+            if (device.transition(DeviceRegistry.State.IDLE, DeviceRegistry.State.CONNECTING)
+                    || device.transition(DeviceRegistry.State.BACKOFF, DeviceRegistry.State.CONNECTING)) {
+                Status status = getOrCreateStatus(device.getAddress());
+                synchronized (status) {
+                    status.failures = 0;
+                    status.gaveUpAt = 0;
+                    if (0 == status.episodeStartedAt) {
+                        status.episodeStartedAt = System.currentTimeMillis();
+                    }
+                }
+                submit(device, 0);
+            }
+        }
+    }
+
+    /**
+     * Notifies the supervisor that a connection has ended, so that the device will be reconnected
+     *
+     * @param device the disconnected device
+     */
+    public void disconnected(final DeviceRegistry.Device device) {
+        if (device.transition(DeviceRegistry.State.CONNECTED, DeviceRegistry.State.BACKOFF)) {
+            Status status = getOrCreateStatus(device.getAddress());
+            synchronized (status) {
+                status.disconnectedAt = System.currentTimeMillis();
+                status.failures = 0;
+            }
+
+            scheduleRetry(device, jitter(initialBackoff));
+        }
+    }
+
+    /**
+     * Sets up a connection which a device has opened on its own, e.g. one accepted by a server socket.
+     * The connector is called on the calling thread, and only if the device is idle or waiting to retry;
+     * a device which is already connected or being connected to is refused, so that it never has two links.
+     * If set-up fails, the device is retried with backoff like any other failed attempt.
+     *
+     * @param device    the device which has opened a connection
+     * @param connector a callback which sets up the connection
+     * @return whether the connection was established
+     */
+    public boolean accept(final DeviceRegistry.Device device,
+                          final Connector connector) {
+        if (device.transition(DeviceRegistry.State.IDLE, DeviceRegistry.State.CONNECTING)
+                || device.transition(DeviceRegistry.State.BACKOFF, DeviceRegistry.State.CONNECTING)) {
+            return attempt(device, connector);
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Stops all pending connection attempts.  Devices which are already connected are unaffected.
+     */
+    public void stop() {
+        stopped = true;
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param address the address of a device
+     * @return connection statistics for the device, or null if no connection has been attempted
+     */
+    public Status getStatus(final String address) {
+        return statusByAddress.get(address);
+    }
+
+    private Status getOrCreateStatus(final String address) {
+        Status status = statusByAddress.get(address);
+        if (null == status) {
+            Status newStatus = new Status(address);
+            status = statusByAddress.putIfAbsent(address, newStatus);
+            if (null == status) {
+                status = newStatus;
+            }
+        }
+        return status;
+    }
+
+    // the device must already be CONNECTING
+    private void submit(final DeviceRegistry.Device device,
+                        final long delay) {
+        executor.schedule(new Runnable() {
+            public void run() {
+                attempt(device, connector);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // the device must already be in BACKOFF.  If the retry is pre-empted (e.g. by connectAll()), it does nothing
+    private void scheduleRetry(final DeviceRegistry.Device device,
+                               final long delay) {
+        if (stopped) {
+            return;
+        }
+
+        executor.schedule(new Runnable() {
+            public void run() {
+                if (device.transition(DeviceRegistry.State.BACKOFF, DeviceRegistry.State.CONNECTING)) {
+                    attempt(device, connector);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean attempt(final DeviceRegistry.Device device,
+                            final Connector connector) {
+        String address = device.getAddress();
+        Status status = getOrCreateStatus(address);
+
+        if (stopped) {
+            device.transition(DeviceRegistry.State.CONNECTING, DeviceRegistry.State.IDLE);
+            return false;
+        }
+
+        synchronized (status) {
+            status.attempts++;
+        }
+
+        boolean success;
+        try {
+            connector.connect(device);
+            success = true;
+        } catch (IOException e) {
+            Log.i(Brainstem.TAG, "could not connect to device at " + address + ": " + e.getMessage());
+            success = false;
+        } catch (Throwable t) {
+            Log.e(Brainstem.TAG, "error while attempting to connect to device at " + address
+                    + ": " + t.getMessage());
+            t.printStackTrace(System.err);
+            success = false;
+        }
+
+        if (success) {
+            long now = System.currentTimeMillis();
+            synchronized (status) {
+                status.connectedAt = now;
+                status.gaveUpAt = 0;
+                if (status.disconnectedAt > 0) {
+                    status.reconnects++;
+                    status.lastTimeToReconnect = now - status.disconnectedAt;
+                    Log.i(Brainstem.TAG, "reconnected to device at " + address + " after "
+                            + status.lastTimeToReconnect + "ms");
+                } else if (status.episodeStartedAt > 0) {
+                    status.lastTimeToConnect = now - status.episodeStartedAt;
+                    Log.i(Brainstem.TAG, "connected to device at " + address + " after "
+                            + status.lastTimeToConnect + "ms");
+                } else {
+                    // the device connected to us before we attempted to connect to it
+                    status.lastTimeToConnect = 0;
+                    Log.i(Brainstem.TAG, "connected to device at " + address);
+                }
+                status.failures = 0;
+            }
+        } else {
+            int failures;
+            synchronized (status) {
+                failures = ++status.failures;
+                if (failures >= maxFailures) {
+                    status.gaveUpAt = System.currentTimeMillis();
+                }
+            }
+            if (failures >= maxFailures) {
+                Log.w(Brainstem.TAG, "giving up on device at " + address + " after " + failures
+                        + " failed attempts; it will not be retried until devices are connected again");
+                device.transition(DeviceRegistry.State.CONNECTING, DeviceRegistry.State.IDLE);
+            } else if (device.transition(DeviceRegistry.State.CONNECTING, DeviceRegistry.State.BACKOFF)) {
+                long delay = initialBackoff << Math.min(failures - 1, 30);
+                if (delay <= 0 || delay > maxBackoff) {
+                    delay = maxBackoff;
+                }
+                delay = jitter(delay);
+                Log.i(Brainstem.TAG, "will try device at " + address + " again in " + delay + "ms");
+                scheduleRetry(device, delay);
+            }
+        }
+
+        return success;
+    }
+
+    private long jitter(final long delay) {
+        double factor;
+        synchronized (random) {
+            factor = 1 + JITTER * (random.nextDouble() * 2 - 1);
+        }
+        return (long) (delay * factor);
+    }
+
+    /**
+     * Connection statistics for a single device.
+     * Fields are written by connection attempts, and by connectAll() and disconnected(), which may overlap for the
+     * same device; every write is made while holding the status's lock.  Fields are volatile, so that they may
+     * be read without the lock
+     */
+    public static class Status {
+        private final String address;
+
+        private volatile int failures;
+        private volatile long episodeStartedAt;
+        private volatile long connectedAt;
+        private volatile long disconnectedAt;
+        private volatile long gaveUpAt;
+
+        private volatile int attempts;
+        private volatile int reconnects;
+        private volatile long lastTimeToConnect = -1;
+        private volatile long lastTimeToReconnect = -1;
+
+        private Status(final String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        /**
+         * @return the time at which the current or most recent connection was established
+         */
+        public long getConnectedAt() {
+            return connectedAt;
+        }
+
+        /**
+         * @return the number of consecutive failed attempts since the device was last connected or retried
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the time at which the supervisor gave up on the device after too many consecutive failures,
+         * or 0 if it has not given up.  The device is not retried until connectAll() is called again
+         */
+        public long getGaveUpAt() {
+            return gaveUpAt;
+        }
+
+        /**
+         * @return the total number of connection attempts made
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * @return the number of times the device has been reconnected after losing its connection
+         */
+        public int getReconnects() {
+            return reconnects;
+        }
+
+        /**
+         * @return the time, in milliseconds, between the first attempt and a successful initial connection,
+         * or -1 if the device has not yet connected
+         */
+        public long getLastTimeToConnect() {
+            return lastTimeToConnect;
+        }
+
+        /**
+         * @return the time, in milliseconds, between the most recent disconnection and the following
+         * reconnection, or -1 if the device has not yet been reconnected
+         */
+        public long getLastTimeToReconnect() {
+            return lastTimeToReconnect;
+        }
+    }
+
+    /**
+     * A single, blocking attempt to connect to a device.
+     * On success, the device is moved to CONNECTED by the connector itself, before any reader thread starts.
+     */
+    public interface Connector {
+        void connect(DeviceRegistry.Device device) throws IOException;
+    }
+}
@@ -0,0 +1,159 @@
+package net.fortytwo.smsn.brainstem;
+
+import net.fortytwo.smsn.p2p.osc.OscControl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A thread-safe registry of devices, each of which has an explicit connection state.
+ * Reads never block, and state changes are made by atomic compare-and-set transitions,
+ * so that reader threads, connection threads and the UI thread cannot lose each other's updates.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class DeviceRegistry {
+
+    /**
+     * The connection state of a device
+     */
+    public enum State {
+        /**
+         * Not connected, and no connection is being attempted
+         */
+        IDLE,
+        /**
+         * A connection attempt is in progress
+         */
+        CONNECTING,
+        /**
+         * Connected, with a reader thread attached
+         */
+        CONNECTED,
+        /**
+         * Not connected; a connection attempt is scheduled
+         */
+        BACKOFF,
+        /**
+         * Permanently closed.  No further transitions are possible
+         */
+        CLOSED
+    }
+
+    private final ConcurrentMap<String, Device> devicesByAddress = new ConcurrentHashMap<String, Device>();
+
+    /**
+     * Registers a device in the IDLE state.
+     * A device already registered at the same address is replaced, and closed so that it is no longer connected;
+     * whether it is managed carries over to its replacement
+     *
+     * @param address the address of the device
+     * @param control the control which handles the device's messages
+     * @return the new device
+     */
+    public Device register(final String address,
+                           final OscControl control) {
+        Device device = new Device(address, control);
+        Device previous = devicesByAddress.put(address, device);
+        if (null != previous) {
+            previous.close();
+            device.setManaged(previous.isManaged());
+        }
+        return device;
+    }
+
+    /**
+     * @return the device registered at the given address, or null if there is none
+     */
+    public Device get(final String address) {
+        return devicesByAddress.get(address);
+    }
+
+    public Collection<Device> getDevices() {
+        return Collections.unmodifiableCollection(devicesByAddress.values());
+    }
+
+    public Set<String> getAddresses() {
+        return Collections.unmodifiableSet(devicesByAddress.keySet());
+    }
+
+    /**
+     * A registered device, together with its connection state and statistics
+     */
+    public static class Device {
+        private final String address;
+        private final OscControl control;
+        private final LinkMetrics metrics;
+        private final AtomicReference<State> state = new AtomicReference<State>(State.IDLE);
+
+        private volatile boolean managed;
+        private volatile FrameQueue frameQueue;
+
+        private Device(final String address,
+                       final OscControl control) {
+            this.address = address;
+            this.control = control;
+            this.metrics = new LinkMetrics(address);
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public OscControl getControl() {
+            return control;
+        }
+
+        public LinkMetrics getMetrics() {
+            return metrics;
+        }
+
+        public State getState() {
+            return state.get();
+        }
+
+        /**
+         * Atomically moves the device from one state to another
+         *
+         * @return whether the transition was made, i.e. whether the device was in the expected state
+         */
+        public boolean transition(final State from,
+                                  final State to) {
+            return State.CLOSED != from && state.compareAndSet(from, to);
+        }
+
+        /**
+         * Moves the device into the CLOSED state, whatever its current state
+         */
+        public void close() {
+            state.set(State.CLOSED);
+        }
+
+        /**
+         * @return whether the Brainstem is to connect to this device, e.g. because it is bonded over Bluetooth
+         */
+        public boolean isManaged() {
+            return managed;
+        }
+
+        public void setManaged(final boolean managed) {
+            this.managed = managed;
+        }
+
+        /**
+         * @return the frame queue of the current or most recent connection, or null if the device has never been
+         * connected
+         */
+        public FrameQueue getFrameQueue() {
+            return frameQueue;
+        }
+
+        void setFrameQueue(final FrameQueue frameQueue) {
+            this.frameQueue = frameQueue;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.io.IOException;
+
+/**
+ * A means of opening byte-stream connections to SmSn devices.
+ * Bluetooth SPP is the transport used on the phone; other transports allow the same SLIP+OSC stack
+ * to be driven over TCP or in memory, e.g. for throughput and latency testing on a desktop JVM.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public interface DeviceTransport {
+
+    /**
+     * Opens a connection to a device, blocking until the connection is established or has failed
+     *
+     * @param address the transport-specific address of the device
+     * @return an open link to the device
+     * @throws IOException if the device cannot be reached
+     */
+    DeviceLink connect(String address) throws IOException;
+
+    /**
+     * An open, bidirectional byte stream between the Brainstem and a single device
+     */
+    interface DeviceLink {
+        /**
+         * @return the address under which the device was registered
+         */
+        String getAddress();
+
+        /**
+         * @return a human-readable name for the device
+         */
+        String getName();
+
+        java.io.InputStream getInputStream() throws IOException;
+
+        java.io.OutputStream getOutputStream() throws IOException;
+
+        void close() throws IOException;
+    }
+}
@@ -0,0 +1,90 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+
+/**
+ * An on-device benchmark of audible feedback: the time from a call to play a tone until the audio is written, for
+ * the former approach of synthesizing each tone on demand into a streaming track, and the time for which a call to
+ * play an earcon from the bank blocks its caller.
+ * The Brainstem runs this benchmark, and logs the results, if so configured, once it has finished booting, so that
+ * the benchmark neither competes with the boot stages nor is slowed by them.
+ * The cost of synthesis, which needs no audio device, is measured off the device by EarconSynthesisBenchmark.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class EarconBenchmark {
+    private static final float LEGACY_FREQUENCY = 880;
+
+    // longer than the engine's 50ms window for duplicate requests, and than the tone itself, so that each request
+    // is played rather than dropped as redundant or for lack of a voice
+    private static final long REQUEST_SPACING_MS = 100;
+
+    private final NotificationToneGenerator generator;
+
+    public EarconBenchmark(final NotificationToneGenerator generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * @param iterations the number of times to play each tone
+     * @return a human-readable report
+     */
+    public String run(final int iterations) throws InterruptedException {
+        StringBuilder sb = new StringBuilder();
+        int sampleRate = generator.getSampleRate();
+
+        // the former approach: allocate, synthesize and write to a streaming track on every call
+        int minSize = AudioTrack.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack streaming = new AudioTrack(AudioManager.STREAM_MUSIC,
+                sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT,
+                minSize,
+                AudioTrack.MODE_STREAM);
+        LatencyHistogram toWrite = new LatencyHistogram();
+        LatencyHistogram throughWrite = new LatencyHistogram();
+        try {
+            for (int i = 0; i < iterations; i++) {
+                long before = System.nanoTime();
+                streaming.play();
+                short[] buffer = new short[minSize];
+                float angle = 0;
+                for (int j = 0; j < buffer.length; j++) {
+                    float angularFrequency = (float) (2 * Math.PI) * LEGACY_FREQUENCY / sampleRate;
+                    buffer[j] = (short) (Short.MAX_VALUE * ((float) Math.sin(angle)));
+                    angle += angularFrequency;
+                }
+                toWrite.record(System.nanoTime() - before);
+                streaming.write(buffer, 0, buffer.length);
+                throughWrite.record(System.nanoTime() - before);
+                streaming.stop();
+                streaming.flush();
+            }
+        } finally {
+            streaming.release();
+        }
+        sb.append("on-demand tone, call to write() us: ").append(toWrite.summarize(1000)).append("\n");
+        sb.append("on-demand tone, call through write() us: ").append(throughWrite.summarize(1000)).append("\n");
+
+        // with the earcon bank, the caller only enqueues a request; the engine reports the rest
+        AudioFeedbackEngine engine = generator.getEngine();
+        long playedBefore = engine.getPlayed();
+        LatencyHistogram bank = new LatencyHistogram();
+        for (int i = 0; i < iterations; i++) {
+            long before = System.nanoTime();
+            generator.play(NotificationToneGenerator.Earcon.TONE);
+            bank.record(System.nanoTime() - before);
+            Thread.sleep(REQUEST_SPACING_MS);
+        }
+        sb.append("earcon bank, call to return us: ").append(bank.summarize(1000)).append("\n");
+        sb.append("earcon bank, requests played: ").append(engine.getPlayed() - playedBefore)
+                .append(" of ").append(iterations).append("\n");
+        engine.appendTo(sb);
+
+        return sb.toString();
+    }
+}
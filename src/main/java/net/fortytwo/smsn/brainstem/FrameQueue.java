@@ -0,0 +1,405 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded, lock-free single-producer/single-consumer queue of SLIP frames.
+ * It decouples the thread which reads a device's socket from the thread which dispatches OSC messages,
+ * so that slow message handlers cannot stall reading.
+ * Frames which are dropped or coalesced away are returned to the frame pool.
+ * <p>
+ * In addition to the ring, the queue may have any number of latest-value slots, each holding only the newest
+ * frame offered under its key (see {@link OscDeliveryPolicy}).
+ * The consumer alternates between the ring and the latest-value slots, so that neither starves the other.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class FrameQueue {
+
+    /**
+     * Determines what the producer does when the queue is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait until the consumer has made space
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued frame to make space for the new one
+         */
+        DROP_OLDEST,
+        /**
+         * Keep everything already queued, but collapse all further frames into a single, latest frame
+         * until the consumer catches up
+         */
+        COALESCE
+    }
+
+    // how long a waiting producer or consumer sleeps before re-checking, in case a wake-up is missed
+    private static final long PARK_NANOS = 1000000L;
+
+    private final SlipFramePool pool;
+    private final OverflowPolicy policy;
+    private final int capacity;
+    private final int mask;
+
+    private final AtomicReferenceArray<SlipFrame> slots;
+    // the next index to be consumed; advanced by the consumer, and by the producer when dropping
+    private final AtomicLong head = new AtomicLong();
+    // the next index to be produced; advanced only by the producer
+    private final AtomicLong tail = new AtomicLong();
+    // the latest frame received while the queue was full, under the COALESCE policy
+    private final AtomicReference<SlipFrame> pending = new AtomicReference<SlipFrame>();
+    // the newest frame for each latest-value key
+    private final AtomicReferenceArray<SlipFrame> latestValues;
+    // consumer-only state: whether to check the latest-value slots before the ring on the next poll
+    private boolean latestValuesFirst;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private volatile long highWaterMark;
+
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+    private volatile boolean closed;
+
+    /**
+     * @param pool     the pool to which discarded frames are returned
+     * @param capacity the minimum number of frames the queue can hold; rounded up to a power of two
+     * @param policy   the policy to apply when the queue is full
+     */
+    public FrameQueue(final SlipFramePool pool,
+                      final int capacity,
+                      final OverflowPolicy policy) {
+        this(pool, capacity, policy, 0);
+    }
+
+    /**
+     * @param pool                 the pool to which discarded frames are returned
+     * @param capacity             the minimum number of frames the queue can hold; rounded up to a power of two
+     * @param policy               the policy to apply when the queue is full
+     * @param numberOfLatestValues the number of latest-value keys to provide slots for
+     */
+    public FrameQueue(final SlipFramePool pool,
+                      final int capacity,
+                      final OverflowPolicy policy,
+                      final int numberOfLatestValues) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+
+        int c = 1;
+        while (c < capacity) {
+            c <<= 1;
+        }
+
+        this.pool = pool;
+        this.policy = policy;
+        this.capacity = c;
+        this.mask = c - 1;
+        this.slots = new AtomicReferenceArray<SlipFrame>(c);
+        this.latestValues = new AtomicReferenceArray<SlipFrame>(numberOfLatestValues);
+    }
+
+    /**
+     * @return the number of frames which must be available in a pool in order to feed this queue,
+     * counting one frame in the hands of the producer and one in the hands of the consumer
+     */
+    public static int requiredPoolSize(final int capacity,
+                                       final int numberOfLatestValues) {
+        int c = 1;
+        while (c < capacity) {
+            c <<= 1;
+        }
+        return c + 3 + numberOfLatestValues;
+    }
+
+    /**
+     * Adds a frame to the queue.  Called only by the producer thread, which hands off ownership of the frame.
+     *
+     * @param frame the frame to add
+     * @return whether the frame was accepted.  If not, it has already been returned to the pool
+     */
+    public boolean offer(final SlipFrame frame) {
+        offered.incrementAndGet();
+
+        if (closed) {
+            pool.release(frame);
+            return false;
+        }
+
+        if (OverflowPolicy.COALESCE == policy && null != pending.get()) {
+            coalesce(frame);
+            return true;
+        }
+
+        long t = tail.get();
+        while (t - head.get() >= capacity) {
+            switch (policy) {
+                case BLOCK:
+                    if (closed) {
+                        pool.release(frame);
+                        return false;
+                    }
+                    blocked.incrementAndGet();
+                    waitingProducer = Thread.currentThread();
+                    if (t - head.get() >= capacity) {
+                        LockSupport.parkNanos(this, PARK_NANOS);
+                    }
+                    waitingProducer = null;
+                    break;
+                case DROP_OLDEST:
+                    long h = head.get();
+                    if (t - h >= capacity) {
+                        SlipFrame oldest = slots.get((int) h & mask);
+                        if (head.compareAndSet(h, h + 1)) {
+                            dropped.incrementAndGet();
+                            pool.release(oldest);
+                        }
+                    }
+                    break;
+                case COALESCE:
+                    coalesce(frame);
+                    return true;
+            }
+        }
+
+        slots.lazySet((int) t & mask, frame);
+        tail.set(t + 1);
+
+        long depth = t + 1 - head.get();
+        if (depth > highWaterMark) {
+            highWaterMark = depth;
+        }
+
+        Thread consumer = waitingConsumer;
+        if (null != consumer) {
+            LockSupport.unpark(consumer);
+        }
+
+        return true;
+    }
+
+    /**
+     * Replaces the frame held under a latest-value key.  Called only by the producer thread,
+     * which hands off ownership of the frame.  Never blocks.
+     *
+     * @param key   a latest-value key, as determined by an {@link OscDeliveryPolicy}
+     * @param frame the new frame for that key
+     */
+    public void offerLatest(final int key,
+                            final SlipFrame frame) {
+        offered.incrementAndGet();
+
+        if (closed) {
+            pool.release(frame);
+            return;
+        }
+
+        SlipFrame replaced = latestValues.getAndSet(key, frame);
+        if (null != replaced) {
+            coalesced.incrementAndGet();
+            pool.release(replaced);
+        }
+
+        Thread consumer = waitingConsumer;
+        if (null != consumer) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void coalesce(final SlipFrame frame) {
+        SlipFrame replaced = pending.getAndSet(frame);
+        if (null != replaced) {
+            coalesced.incrementAndGet();
+            pool.release(replaced);
+        }
+
+        Thread consumer = waitingConsumer;
+        if (null != consumer) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Removes the next frame from the queue without waiting.  Called only by the consumer thread,
+     * which takes ownership of the frame and must eventually return it to the pool.
+     *
+     * @return the next frame, or null if the queue is empty
+     */
+    public SlipFrame poll() {
+        if (0 == latestValues.length()) {
+            return pollRing();
+        }
+
+        latestValuesFirst = !latestValuesFirst;
+        SlipFrame frame;
+        if (latestValuesFirst) {
+            frame = pollLatestValues();
+            return null == frame ? pollRing() : frame;
+        } else {
+            frame = pollRing();
+            return null == frame ? pollLatestValues() : frame;
+        }
+    }
+
+    private SlipFrame pollLatestValues() {
+        for (int i = 0; i < latestValues.length(); i++) {
+            if (null != latestValues.get(i)) {
+                SlipFrame frame = latestValues.getAndSet(i, null);
+                if (null != frame) {
+                    return frame;
+                }
+            }
+        }
+        return null;
+    }
+
+    private SlipFrame pollRing() {
+        while (true) {
+            long h = head.get();
+            if (h == tail.get()) {
+                // the pending frame, if any, is always newer than everything in the ring
+                return OverflowPolicy.COALESCE == policy ? pending.getAndSet(null) : null;
+            }
+
+            SlipFrame frame = slots.get((int) h & mask);
+            if (head.compareAndSet(h, h + 1)) {
+                Thread producer = waitingProducer;
+                if (null != producer) {
+                    LockSupport.unpark(producer);
+                }
+                return frame;
+            }
+            // otherwise, the producer has dropped this frame in the meantime; try again
+        }
+    }
+
+    /**
+     * Removes the next frame from the queue, waiting for one to arrive if necessary
+     *
+     * @return the next frame, or null if the queue has been closed
+     */
+    public SlipFrame take() {
+        SlipFrame frame;
+        while (null == (frame = poll())) {
+            if (closed) {
+                return null;
+            }
+
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty() && !closed) {
+                LockSupport.parkNanos(this, PARK_NANOS * 100);
+            }
+            waitingConsumer = null;
+        }
+
+        return frame;
+    }
+
+    /**
+     * Closes the queue, waking any waiting threads.  Frames offered after closing are released immediately.
+     * Frames still queued are released by {@link #drain()}
+     */
+    public void close() {
+        closed = true;
+
+        Thread t = waitingConsumer;
+        if (null != t) {
+            LockSupport.unpark(t);
+        }
+        t = waitingProducer;
+        if (null != t) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Returns all queued frames to the pool.  Called by the consumer after the queue has been closed.
+     */
+    public void drain() {
+        SlipFrame frame;
+        while (null != (frame = poll())) {
+            pool.release(frame);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public boolean isEmpty() {
+        if (head.get() != tail.get() || null != pending.get()) {
+            return false;
+        }
+        for (int i = 0; i < latestValues.length(); i++) {
+            if (null != latestValues.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of frames currently waiting to be dispatched
+     */
+    public int getDepth() {
+        long depth = tail.get() - head.get();
+        int extra = null == pending.get() ? 0 : 1;
+        for (int i = 0; i < latestValues.length(); i++) {
+            if (null != latestValues.get(i)) {
+                extra++;
+            }
+        }
+        return (int) Math.max(0, depth) + extra;
+    }
+
+    /**
+     * @return the greatest number of frames which have been waiting in the ring at any one time
+     */
+    public long getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * @return the total number of frames offered to this queue
+     */
+    public long getOffered() {
+        return offered.get();
+    }
+
+    /**
+     * @return the number of frames discarded under the DROP_OLDEST policy
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of frames superseded by a newer frame, under the COALESCE policy or under a
+     * latest-value key
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of times the producer has paused to wait for space under the BLOCK policy
+     */
+    public long getBlocked() {
+        return blocked.get();
+    }
+}
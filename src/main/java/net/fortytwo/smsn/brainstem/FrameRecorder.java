@@ -0,0 +1,125 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An append-only recorder of timestamped SLIP frames, for later replay with {@link FrameReplayer}.
+ * Frames are staged in a direct buffer and written to the file channel only when the buffer fills,
+ * so recording adds little more than a memory copy to the reading thread.
+ * <p>
+ * File format: an 8-byte magic number and the 8-byte wall-clock start time of the capture in milliseconds,
+ * followed by one record per frame: the time since the previous frame in microseconds (varint),
+ * the length of the frame (varint), and the decoded frame contents.
+ * <p>
+ * A recorder is not thread-safe; each device stream should have its own.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class FrameRecorder {
+    static final long MAGIC = 0x534D536E43415031L; // "SmSnCAP1"
+
+    // the largest possible record header is two 5-byte varints
+    private static final int MAX_HEADER_LENGTH = 10;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+
+    private long lastFrameNanos;
+    private long framesRecorded;
+    private boolean closed;
+
+    public FrameRecorder(final File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameRecorder(final File file,
+                         final int bufferSize) throws IOException {
+        channel = new FileOutputStream(file, true).getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+
+        buffer.putLong(MAGIC);
+        buffer.putLong(System.currentTimeMillis());
+        lastFrameNanos = System.nanoTime();
+    }
+
+    /**
+     * Appends a frame to the capture, timestamped with the current time
+     *
+     * @param frame the frame to record.  The recorder does not retain it
+     */
+    public void record(final SlipFrame frame) throws IOException {
+        record(frame.getData(), frame.getLength(), System.nanoTime());
+    }
+
+    /**
+     * Appends a frame to the capture
+     *
+     * @param data      an array containing the frame
+     * @param length    the length of the frame
+     * @param timeNanos the time at which the frame was received, in terms of {@link System#nanoTime()}
+     */
+    public void record(final byte[] data,
+                       final int length,
+                       final long timeNanos) throws IOException {
+        if (closed) {
+            throw new IOException("recorder is closed");
+        }
+
+        if (buffer.remaining() < MAX_HEADER_LENGTH + length) {
+            flush();
+        }
+
+        long deltaMicros = Math.max(0, (timeNanos - lastFrameNanos) / 1000);
+        lastFrameNanos = timeNanos;
+
+        putVarint(deltaMicros > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) deltaMicros);
+        putVarint(length);
+
+        if (length > buffer.remaining()) {
+            // larger than the entire buffer; write it through
+            flush();
+            channel.write(ByteBuffer.wrap(data, 0, length));
+        } else {
+            buffer.put(data, 0, length);
+        }
+
+        framesRecorded++;
+    }
+
+    /**
+     * Writes any buffered frames to the file
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void close() throws IOException {
+        if (!closed) {
+            flush();
+            channel.close();
+            closed = true;
+        }
+    }
+
+    public long getFramesRecorded() {
+        return framesRecorded;
+    }
+
+    private void putVarint(int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+}
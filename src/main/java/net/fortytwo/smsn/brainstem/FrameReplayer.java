@@ -0,0 +1,147 @@
+package net.fortytwo.smsn.brainstem;
+
+import net.fortytwo.smsn.p2p.osc.OscReceiver;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Feeds a capture made by {@link FrameRecorder} back through an OSC receiver,
+ * at the original speed, at a multiple of it, or as fast as possible.
+ * This makes it possible to reproduce load spikes recorded in the field and to benchmark dispatch deterministically.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class FrameReplayer {
+    /**
+     * A speed at which frames are replayed without any delay between them
+     */
+    public static final double FULL_SPEED = 0;
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final OscReceiver receiver;
+
+    private long framesReplayed;
+    private long captureStartTime;
+
+    public FrameReplayer(final File file,
+                         final OscReceiver receiver) {
+        this.file = file;
+        this.receiver = receiver;
+    }
+
+    /**
+     * Replays the entire capture on the calling thread
+     *
+     * @param speed a multiple of the original rate at which to deliver frames (e.g. 1 for real time, 10 for ten
+     *              times faster), or {@link #FULL_SPEED} to deliver frames as quickly as the receiver accepts them
+     * @return the number of frames replayed
+     */
+    public long replay(final double speed) throws IOException, InterruptedException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_BUFFER_SIZE);
+            buffer.flip();
+
+            byte[] frame = new byte[256];
+            framesReplayed = 0;
+
+            if (!fill(channel, buffer, 16)) {
+                throw new IOException("capture file is too short: " + file);
+            }
+            if (FrameRecorder.MAGIC != buffer.getLong()) {
+                throw new IOException("not a SLIP capture file: " + file);
+            }
+            captureStartTime = buffer.getLong();
+
+            long startNanos = System.nanoTime();
+            double elapsedMicros = 0;
+
+            while (fill(channel, buffer, 1)) {
+                long deltaMicros = getVarint(channel, buffer);
+                int length = (int) getVarint(channel, buffer);
+
+                if (length > frame.length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                int offset = 0;
+                while (offset < length) {
+                    if (!fill(channel, buffer, 1)) {
+                        throw new EOFException("truncated frame in " + file);
+                    }
+                    int n = Math.min(length - offset, buffer.remaining());
+                    buffer.get(frame, offset, n);
+                    offset += n;
+                }
+
+                if (speed > 0) {
+                    elapsedMicros += deltaMicros / speed;
+                    long waitNanos = startNanos + (long) (elapsedMicros * 1000) - System.nanoTime();
+                    if (waitNanos > 0) {
+                        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    }
+                }
+
+                receiver.receive(frame, length);
+                framesReplayed++;
+            }
+        } finally {
+            channel.close();
+        }
+
+        return framesReplayed;
+    }
+
+    public long getFramesReplayed() {
+        return framesReplayed;
+    }
+
+    /**
+     * @return the wall-clock time, in milliseconds, at which the most recently replayed capture was started
+     */
+    public long getCaptureStartTime() {
+        return captureStartTime;
+    }
+
+    // ensures that at least the given number of bytes are available in the buffer, unless the file has ended
+    private boolean fill(final FileChannel channel,
+                         final ByteBuffer buffer,
+                         final int needed) throws IOException {
+        if (buffer.remaining() >= needed) {
+            return true;
+        }
+
+        buffer.compact();
+        while (buffer.position() < needed) {
+            if (-1 == channel.read(buffer)) {
+                break;
+            }
+        }
+        buffer.flip();
+
+        return buffer.remaining() >= needed;
+    }
+
+    private long getVarint(final FileChannel channel,
+                           final ByteBuffer buffer) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            if (!fill(channel, buffer, 1)) {
+                throw new EOFException("truncated record in " + file);
+            }
+            int b = buffer.get() & 0xFF;
+            value |= (long) (b & 0x7F) << shift;
+            if (0 == (b & 0x80)) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.util.Log;
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import org.openrdf.query.BindingSet;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs query result handlers off of the thread which produced the result (ultimately a device reader thread),
+ * in priority lanes.
+ * Each lane has its own queue and worker thread, so that a long-running handler, such as one which speaks,
+ * never delays a handler in a more urgent lane, such as one which plays a tone.
+ * Within a lane, results are handled in the order in which they arrived.
+ * The queue time and run time of every handler are measured.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class HandlerExecutor {
+
+    /**
+     * Handler lanes, from most to least urgent
+     */
+    public enum Lane {
+        // immediate, non-verbal feedback such as tones, which should follow a gesture within milliseconds
+        FEEDBACK(Thread.MAX_PRIORITY),
+        // spoken and textual feedback
+        SPEECH(Thread.NORM_PRIORITY),
+        // logging and other work which nobody is waiting for
+        LOGGING(Thread.MIN_PRIORITY);
+
+        private final int threadPriority;
+
+        Lane(final int threadPriority) {
+            this.threadPriority = threadPriority;
+        }
+    }
+
+    private static final int DEFAULT_LANE_CAPACITY = 256;
+
+    private final LaneWorker[] workers;
+    private final List<HandlerStats> stats = new LinkedList<HandlerStats>();
+
+    public HandlerExecutor() {
+        this(DEFAULT_LANE_CAPACITY);
+    }
+
+    /**
+     * @param laneCapacity the maximum number of results which may wait in each lane.
+     *                     Results arriving at a full lane are dropped, and counted, rather than blocking the
+     *                     thread which produced them
+     */
+    public HandlerExecutor(final int laneCapacity) {
+        workers = new LaneWorker[Lane.values().length];
+        for (Lane lane : Lane.values()) {
+            LaneWorker worker = new LaneWorker(lane, laneCapacity);
+            workers[lane.ordinal()] = worker;
+            worker.start();
+        }
+    }
+
+    /**
+     * Wraps a handler so that it runs in the given lane
+     *
+     * @param name    a name for the handler, used in statistics and log messages
+     * @param lane    the lane in which to run the handler
+     * @param handler the handler to run
+     * @return a handler which queues each result and returns immediately
+     */
+    public BindingSetHandler wrap(final String name,
+                                  final Lane lane,
+                                  final BindingSetHandler handler) {
+        final HandlerStats handlerStats = new HandlerStats(name, lane);
+        synchronized (stats) {
+            stats.add(handlerStats);
+        }
+
+        final LaneWorker worker = workers[lane.ordinal()];
+
+        return new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                if (!worker.queue.offer(new Task(handler, handlerStats, bindings, System.nanoTime()))) {
+                    handlerStats.dropped.incrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * @return statistics for each wrapped handler, in the order in which the handlers were wrapped
+     */
+    public Collection<HandlerStats> getStats() {
+        synchronized (stats) {
+            return Collections.unmodifiableList(new LinkedList<HandlerStats>(stats));
+        }
+    }
+
+    /**
+     * @param lane a lane
+     * @return the number of results currently waiting in the lane
+     */
+    public int getDepth(final Lane lane) {
+        return workers[lane.ordinal()].queue.size();
+    }
+
+    /**
+     * Appends a human-readable report of handler statistics, with times in microseconds
+     */
+    public void appendTo(final StringBuilder sb) {
+        for (Lane lane : Lane.values()) {
+            sb.append(lane.name().toLowerCase()).append(" lane: depth ").append(getDepth(lane)).append("\n");
+        }
+        for (HandlerStats s : getStats()) {
+            sb.append("  ").append(s.getName()).append(" (").append(s.getLane().name().toLowerCase())
+                    .append("): ").append(s.getExecuted()).append(" run, ")
+                    .append(s.getDropped()).append(" dropped, ")
+                    .append(s.getFailed()).append(" failed\n");
+            sb.append("    queue us: ").append(s.getQueueTime().summarize(1000)).append("\n");
+            sb.append("    run us: ").append(s.getRunTime().summarize(1000)).append("\n");
+        }
+    }
+
+    /**
+     * Stops all lanes.  Results which are still waiting are discarded.
+     */
+    public void shutdown() {
+        for (LaneWorker worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Counters and histograms for a single handler
+     */
+    public static class HandlerStats {
+        private final String name;
+        private final Lane lane;
+
+        private final AtomicLong executed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        // time between the arrival of a result and the start of its handler, in nanoseconds
+        private final LatencyHistogram queueTime = new LatencyHistogram();
+        // time spent in the handler, in nanoseconds
+        private final LatencyHistogram runTime = new LatencyHistogram();
+
+        private HandlerStats(final String name,
+                             final Lane lane) {
+            this.name = name;
+            this.lane = lane;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Lane getLane() {
+            return lane;
+        }
+
+        public long getExecuted() {
+            return executed.get();
+        }
+
+        /**
+         * @return the number of results discarded because the handler's lane was full
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * @return the number of results for which the handler threw an exception
+         */
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public LatencyHistogram getQueueTime() {
+            return queueTime;
+        }
+
+        public LatencyHistogram getRunTime() {
+            return runTime;
+        }
+    }
+
+    private static class Task {
+        private final BindingSetHandler handler;
+        private final HandlerStats stats;
+        private final BindingSet bindings;
+        private final long queuedAt;
+
+        private Task(final BindingSetHandler handler,
+                     final HandlerStats stats,
+                     final BindingSet bindings,
+                     final long queuedAt) {
+            this.handler = handler;
+            this.stats = stats;
+            this.bindings = bindings;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private static class LaneWorker extends Thread {
+        private final BlockingQueue<Task> queue;
+
+        private LaneWorker(final Lane lane,
+                           final int capacity) {
+            super("handler-" + lane.name().toLowerCase());
+            setDaemon(true);
+            setPriority(lane.threadPriority);
+            queue = new LinkedBlockingQueue<Task>(capacity);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Task task = queue.take();
+
+                    long start = System.nanoTime();
+                    task.stats.queueTime.record(start - task.queuedAt);
+                    try {
+                        task.handler.handle(task.bindings);
+                    } catch (Throwable t) {
+                        task.stats.failed.incrementAndGet();
+                        Log.e(Brainstem.TAG, "error in query result handler " + task.stats.name
+                                + ": " + t.getMessage());
+                        t.printStackTrace(System.err);
+                    }
+                    task.stats.runTime.record(System.nanoTime() - start);
+                    task.stats.executed.incrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Log.i(Brainstem.TAG, getName() + " stopped");
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import edu.rpi.twc.sesamestream.QueryEngine;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent, on-device cache of the facts which pointing queries join on, such as the names, organizations
+ * and interests of people, so that those queries can be answered without waiting for the facilitator.
+ * Facts with any of a given set of predicates are harvested from the query engine as they arrive, by way of a
+ * single-pattern query per predicate.  They are kept in dictionary-encoded form, in which each distinct term is
+ * stored once and each fact is a triple of term ids, and saved to a file shortly after they change.
+ * A fact seen again is a change, as the time at which it was last seen determines when it expires.
+ * The cached facts are pushed back into the query engine when the Brainstem starts and after every reset of
+ * the query window, so that they are always available to join against.
+ * <p>
+ * A fact which has not been seen again within a maximum age, e.g. because it has since changed at the facilitator,
+ * is dropped from the index, and facts pushed into the engine expire there at the end of their remaining lifetime,
+ * so that stale facts are not answered from indefinitely.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class KnowledgeIndex {
+    private static final int MAGIC = 0x534D4B49;
+    private static final int VERSION = 2;
+
+    // term ids are packed three to a long, so they may not exceed 21 bits
+    private static final int MAX_TERMS = 1 << 21;
+
+    private static final int DEFAULT_MAX_FACTS = 100000;
+
+    public static final long DEFAULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    // facts are pushed into the engine with their remaining lifetimes rounded up to this resolution, in seconds
+    private static final int PUSH_TTL_RESOLUTION = 3600;
+
+    // longer terms, e.g. whole documents in literals, are not worth caching
+    private static final int MAX_TERM_LENGTH = 4096;
+
+    // changes are saved after this delay, so that a burst of new facts results in a single write
+    public static final long DEFAULT_SAVE_DELAY_MS = 5000;
+
+    private static final char
+            KIND_URI = 'U',
+            KIND_BNODE = 'B',
+            KIND_LITERAL = 'L',
+            KIND_LANGUAGE_LITERAL = 'G',
+            KIND_TYPED_LITERAL = 'T';
+
+    private final File file;
+    private final Collection<String> predicates;
+    private final int maxFacts;
+    private volatile long maxAge = DEFAULT_MAX_AGE_MS;
+    private volatile long saveDelay = DEFAULT_SAVE_DELAY_MS;
+
+    // the dictionary: each distinct term, by id, and the id of each term
+    private List<String> terms = new ArrayList<String>();
+    private Map<String, Integer> termIds = new HashMap<String, Integer>();
+
+    // each fact, as three packed term ids, and the time at which it was last seen
+    private final Map<Long, Long> facts = new HashMap<Long, Long>();
+
+    private final ScheduledExecutorService saver;
+    // whether facts have been added, seen again or dropped since they were last saved
+    private boolean dirty;
+    private boolean savePending;
+    private long overflow;
+    private long expired;
+
+    // the thread which is pushing cached facts into the engine, whose results are not fresh sightings of the facts
+    private volatile Thread pushingThread;
+
+    /**
+     * @param file       the file in which facts are persisted, which need not exist
+     * @param predicates the URIs of the predicates of facts to cache
+     */
+    public KnowledgeIndex(final File file,
+                          final Collection<String> predicates) {
+        this(file, predicates, DEFAULT_MAX_FACTS);
+    }
+
+    /**
+     * @param file       the file in which facts are persisted, which need not exist
+     * @param predicates the URIs of the predicates of facts to cache
+     * @param maxFacts   the maximum number of facts to cache.  Further facts are counted, but not cached
+     */
+    public KnowledgeIndex(final File file,
+                          final Collection<String> predicates,
+                          final int maxFacts) {
+        this.file = file;
+        this.predicates = predicates;
+        this.maxFacts = maxFacts;
+
+        saver = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "knowledge-index");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @param maxAge the time, in milliseconds, after which a fact which has not been seen again is dropped
+     */
+    public void setMaxAge(final long maxAge) {
+        if (maxAge <= 0) {
+            throw new IllegalArgumentException("maximum age must be positive");
+        }
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @param saveDelay the time, in milliseconds, after a change at which the index is saved
+     */
+    public void setSaveDelayMillis(final long saveDelay) {
+        this.saveDelay = saveDelay;
+    }
+
+    /**
+     * Loads previously cached facts from the index file, if it exists.  Facts which have expired are dropped
+     */
+    public synchronized void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                throw new IOException("not a knowledge index file: " + file);
+            }
+
+            int termCount = in.readInt();
+            List<Integer> ids = new ArrayList<Integer>(termCount);
+            for (int i = 0; i < termCount; i++) {
+                ids.add(idOf(in.readUTF()));
+            }
+
+            int factCount = in.readInt();
+            for (int i = 0; i < factCount; i++) {
+                int subject = ids.get(in.readInt());
+                int predicate = ids.get(in.readInt());
+                int object = ids.get(in.readInt());
+                addFact(subject, predicate, object, in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+
+        expire(start);
+
+        BrainstemLog.i(Brainstem.TAG, "loaded " + facts.size() + " facts (" + terms.size() + " terms) from " + file
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Begins harvesting facts from the query engine, and arranges for cached facts to be pushed back into the
+     * engine whenever the window is reset.  Cached facts are pushed immediately.
+     *
+     * @param window the window through which queries and cached facts are added to the engine
+     */
+    public void attach(final QueryWindow window)
+            throws QueryEngine.InvalidQueryException, IOException, QueryEngine.IncompatibleQueryException {
+        for (final String predicate : predicates) {
+            window.addQuery("index " + predicate, "SELECT ?s ?o WHERE { ?s <" + predicate + "> ?o }",
+                    new BindingSetHandler() {
+                        public void handle(final BindingSet bindings) {
+                            harvest(bindings.getValue("s"), predicate, bindings.getValue("o"));
+                        }
+                    });
+        }
+
+        window.addResetListener(new Runnable() {
+            public void run() {
+                pushTo(window);
+            }
+        });
+
+        pushTo(window);
+    }
+
+    public synchronized int getFactCount() {
+        return facts.size();
+    }
+
+    public synchronized int getTermCount() {
+        return terms.size();
+    }
+
+    /**
+     * @return the number of facts which were not cached because the index was full
+     */
+    public synchronized long getOverflow() {
+        return overflow;
+    }
+
+    /**
+     * @return the number of facts dropped because they were not seen again within the maximum age
+     */
+    public synchronized long getExpired() {
+        return expired;
+    }
+
+    /**
+     * Saves any pending changes and stops the background saver
+     */
+    public void close() throws IOException {
+        saver.shutdownNow();
+        save();
+    }
+
+    private void harvest(final Value subject,
+                         final String predicate,
+                         final Value object) {
+        if (null == subject || null == object
+                || subject.stringValue().length() > MAX_TERM_LENGTH
+                || object.stringValue().length() > MAX_TERM_LENGTH
+                || Thread.currentThread() == pushingThread) {
+            return;
+        }
+
+        synchronized (this) {
+            if (facts.size() >= maxFacts || terms.size() + 3 > MAX_TERMS) {
+                overflow++;
+                return;
+            }
+
+            // a fact seen again has a new lifetime, which must be saved as much as a new fact
+            if (addFact(idOf(encode(subject)), idOf(KIND_URI + predicate), idOf(encode(object)),
+                    System.currentTimeMillis())) {
+                dirty = true;
+                if (!savePending) {
+                    savePending = true;
+                    saver.schedule(new Runnable() {
+                        public void run() {
+                            try {
+                                save();
+                            } catch (IOException e) {
+                                BrainstemLog.e(Brainstem.TAG, "failed to save knowledge index: " + e.getMessage());
+                            }
+                        }
+                    }, saveDelay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private void pushTo(final QueryWindow window) {
+        // facts are grouped by their remaining lifetimes, in seconds, so that each group expires together
+        Map<Integer, List<Statement>> byTtl = new HashMap<Integer, List<Statement>>();
+        int count = 0;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            expire(now);
+
+            ValueFactoryImpl vf = ValueFactoryImpl.getInstance();
+            for (Map.Entry<Long, Long> e : facts.entrySet()) {
+                long fact = e.getKey();
+                long remaining = (e.getValue() + maxAge - now) / 1000;
+                int ttl = (int) Math.min(Integer.MAX_VALUE,
+                        (remaining / PUSH_TTL_RESOLUTION + 1) * PUSH_TTL_RESOLUTION);
+                List<Statement> group = byTtl.get(ttl);
+                if (null == group) {
+                    group = new ArrayList<Statement>();
+                    byTtl.put(ttl, group);
+                }
+                group.add(vf.createStatement(
+                        (Resource) decode(terms.get(subjectOf(fact))),
+                        (URI) decode(terms.get(predicateOf(fact))),
+                        decode(terms.get(objectOf(fact)))));
+                count++;
+            }
+        }
+
+        if (count > 0) {
+            pushingThread = Thread.currentThread();
+            try {
+                for (Map.Entry<Integer, List<Statement>> e : byTtl.entrySet()) {
+                    List<Statement> group = e.getValue();
+                    window.addFacts(e.getKey(), group.toArray(new Statement[group.size()]));
+                }
+                BrainstemLog.i(Brainstem.TAG, "pushed " + count + " cached facts into the query engine");
+            } catch (IOException e) {
+                BrainstemLog.e(Brainstem.TAG, "failed to push cached facts into the query engine: " + e.getMessage());
+            } finally {
+                pushingThread = null;
+            }
+        }
+    }
+
+    private void save() throws IOException {
+        long start = System.currentTimeMillis();
+
+        // take a snapshot under the lock, but write it outside of the lock, so that slow storage does not
+        // hold up the harvesting of new facts
+        List<String> termSnapshot;
+        long[] factSnapshot;
+        long[] seenSnapshot;
+        synchronized (this) {
+            savePending = false;
+            expire(start);
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+
+            termSnapshot = new ArrayList<String>(terms);
+            factSnapshot = new long[facts.size()];
+            seenSnapshot = new long[facts.size()];
+            int i = 0;
+            for (Map.Entry<Long, Long> e : facts.entrySet()) {
+                factSnapshot[i] = e.getKey();
+                seenSnapshot[i] = e.getValue();
+                i++;
+            }
+        }
+
+        // write to a temporary file, so that a crash cannot leave a partial index behind
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean written = false;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(termSnapshot.size());
+            for (String term : termSnapshot) {
+                out.writeUTF(term);
+            }
+            out.writeInt(factSnapshot.length);
+            for (int i = 0; i < factSnapshot.length; i++) {
+                out.writeInt(subjectOf(factSnapshot[i]));
+                out.writeInt(predicateOf(factSnapshot[i]));
+                out.writeInt(objectOf(factSnapshot[i]));
+                out.writeLong(seenSnapshot[i]);
+            }
+            out.close();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not replace " + file);
+            }
+            written = true;
+        } finally {
+            if (!written) {
+                out.close();
+                // the changes are saved with the next change, or on close
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+
+        BrainstemLog.i(Brainstem.TAG, "saved " + factSnapshot.length + " facts to " + file
+                + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    // returns whether the fact is new, or has been seen more recently than before
+    private boolean addFact(final int s,
+                            final int p,
+                            final int o,
+                            final long seenAt) {
+        long fact = ((long) s << 42) | ((long) p << 21) | o;
+        Long previous = facts.get(fact);
+        if (null == previous || previous < seenAt) {
+            facts.put(fact, seenAt);
+            return true;
+        }
+        return false;
+    }
+
+    // drops facts older than the maximum age, then any terms which are no longer used.
+    // Note: call only while holding this object's lock
+    private void expire(final long now) {
+        long cutoff = now - maxAge;
+        int before = facts.size();
+        Iterator<Map.Entry<Long, Long>> iter = facts.entrySet().iterator();
+        while (iter.hasNext()) {
+            if (iter.next().getValue() < cutoff) {
+                iter.remove();
+            }
+        }
+
+        int removed = before - facts.size();
+        if (0 == removed) {
+            return;
+        }
+        expired += removed;
+        dirty = true;
+
+        // rebuild the dictionary, so that the terms of expired facts do not use up term ids
+        List<String> oldTerms = terms;
+        Map<Long, Long> oldFacts = new HashMap<Long, Long>(facts);
+        terms = new ArrayList<String>();
+        termIds = new HashMap<String, Integer>();
+        facts.clear();
+        for (Map.Entry<Long, Long> e : oldFacts.entrySet()) {
+            long fact = e.getKey();
+            addFact(idOf(oldTerms.get(subjectOf(fact))),
+                    idOf(oldTerms.get(predicateOf(fact))),
+                    idOf(oldTerms.get(objectOf(fact))),
+                    e.getValue());
+        }
+    }
+
+    private int idOf(final String term) {
+        Integer id = termIds.get(term);
+        if (null == id) {
+            id = terms.size();
+            terms.add(term);
+            termIds.put(term, id);
+        }
+        return id;
+    }
+
+    private static int subjectOf(final long fact) {
+        return (int) (fact >>> 42);
+    }
+
+    private static int predicateOf(final long fact) {
+        return (int) (fact >>> 21) & (MAX_TERMS - 1);
+    }
+
+    private static int objectOf(final long fact) {
+        return (int) fact & (MAX_TERMS - 1);
+    }
+
+    // encodes a term as a single string: a kind character, then the term's lexical form,
+    // then its language or datatype (if any) after a null character
+    private static String encode(final Value value) {
+        if (value instanceof URI) {
+            return KIND_URI + value.stringValue();
+        } else if (value instanceof BNode) {
+            return KIND_BNODE + ((BNode) value).getID();
+        } else {
+            Literal l = (Literal) value;
+            if (null != l.getLanguage()) {
+                return KIND_LANGUAGE_LITERAL + l.getLabel() + '\u0000' + l.getLanguage();
+            } else if (null != l.getDatatype()) {
+                return KIND_TYPED_LITERAL + l.getLabel() + '\u0000' + l.getDatatype().stringValue();
+            } else {
+                return KIND_LITERAL + l.getLabel();
+            }
+        }
+    }
+
+    private static Value decode(final String term) {
+        ValueFactoryImpl vf = ValueFactoryImpl.getInstance();
+        String body = term.substring(1);
+        int i = body.indexOf('\u0000');
+        switch (term.charAt(0)) {
+            case KIND_URI:
+                return vf.createURI(body);
+            case KIND_BNODE:
+                return vf.createBNode(body);
+            case KIND_LANGUAGE_LITERAL:
+                return vf.createLiteral(body.substring(0, i), body.substring(i + 1));
+            case KIND_TYPED_LITERAL:
+                return vf.createLiteral(body.substring(0, i), vf.createURI(body.substring(i + 1)));
+            default:
+                return vf.createLiteral(body);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of non-negative values, such as latencies in nanoseconds.
+ * Each power of two is divided into eight buckets, so that percentiles are accurate to within 12.5%.
+ * Recording a value is lock-free and does not allocate.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(final long value) {
+        long v = Math.max(0, value);
+
+        counts.incrementAndGet(indexOf(v));
+        count.incrementAndGet();
+        sum.addAndGet(v);
+
+        long m;
+        while (v > (m = max.get())) {
+            if (max.compareAndSet(m, v)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long c = count.get();
+        return 0 == c ? 0 : sum.get() / (double) c;
+    }
+
+    /**
+     * @param fraction a fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return an upper bound on the given percentile of recorded values, or 0 if no values have been recorded
+     */
+    public long getPercentile(final double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (0 == total) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(fraction * total));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return Math.min(upperBoundOf(i), max.get());
+            }
+        }
+
+        return max.get();
+    }
+
+    /**
+     * Adds all values recorded in another histogram to this one
+     */
+    public void add(final LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c > 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+
+        long v = other.max.get();
+        long m;
+        while (v > (m = max.get())) {
+            if (max.compareAndSet(m, v)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Discards all recorded values.  Values recorded concurrently with a reset may or may not be retained.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @param divisor a divisor for all values, e.g. 1000 to report nanoseconds as microseconds
+     * @return a short summary of the distribution: count, 50th, 90th and 99th percentiles and maximum
+     */
+    public String summarize(final long divisor) {
+        return "n=" + getCount()
+                + " p50=" + getPercentile(0.5) / divisor
+                + " p90=" + getPercentile(0.9) / divisor
+                + " p99=" + getPercentile(0.99) / divisor
+                + " max=" + getMax() / divisor;
+    }
+
+    private static int indexOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBoundOf(final int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS;
+        long lower = (SUB_BUCKETS + sub) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,206 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and histograms describing the traffic over a single device link, across all of its connections.
+ * Updates are cheap enough to be made for every packet on the reader and dispatch threads.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class LinkMetrics {
+    private final String address;
+
+    private final AtomicLong packets = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong accepts = new AtomicLong();
+
+    // time spent decoding each SLIP frame, in nanoseconds
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    // time each frame spends waiting between the reader and the dispatch thread, in nanoseconds
+    private final LatencyHistogram queueTime = new LatencyHistogram();
+    // time spent in OSC dispatch, including the device's message handlers, in nanoseconds
+    private final LatencyHistogram dispatchTime = new LatencyHistogram();
+    // time between accepting a connection opened by the device and receiving its first packet, in nanoseconds
+    private final LatencyHistogram firstPacketTime = new LatencyHistogram();
+
+    private long connectedSince = -1;
+    private long totalConnectedTime;
+
+    // packet and byte rates are exponentially weighted moving averages over one-second intervals,
+    // advanced by the reader as frames arrive and by readers of the rates when the link is idle
+    private static final long RATE_INTERVAL_MS = 1000;
+    private static final double RATE_WEIGHT = 0.2;
+
+    private volatile long intervalStart;
+    private long intervalPackets;
+    private long intervalBytes;
+    private boolean rateSampled;
+    private double packetRate;
+    private double byteRate;
+
+    public LinkMetrics(final String address) {
+        this.address = address;
+        intervalStart = System.currentTimeMillis();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    void frameReceived(final SlipFrame frame) {
+        packets.incrementAndGet();
+        bytes.addAndGet(frame.getLength());
+        decodeTime.record(frame.getDecodeNanos());
+
+        long now = System.currentTimeMillis();
+        if (now - intervalStart >= RATE_INTERVAL_MS) {
+            updateRates(now);
+        }
+    }
+
+    void frameDispatched(final long queueNanos,
+                         final long dispatchNanos) {
+        queueTime.record(queueNanos);
+        dispatchTime.record(dispatchNanos);
+    }
+
+    void firstPacketAfterAccept(final long nanos) {
+        firstPacketTime.record(nanos);
+    }
+
+    void accepted() {
+        accepts.incrementAndGet();
+    }
+
+    synchronized void connected() {
+        connections.incrementAndGet();
+        connectedSince = System.currentTimeMillis();
+    }
+
+    synchronized void disconnected() {
+        if (connectedSince >= 0) {
+            totalConnectedTime += System.currentTimeMillis() - connectedSince;
+            connectedSince = -1;
+        }
+    }
+
+    public long getPackets() {
+        return packets.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of times the link has been re-established after its first connection
+     */
+    public long getReconnects() {
+        return Math.max(0, connections.get() - 1);
+    }
+
+    /**
+     * @return the number of connections opened by the device itself, rather than by this phone
+     */
+    public long getAccepts() {
+        return accepts.get();
+    }
+
+    public synchronized boolean isConnected() {
+        return connectedSince >= 0;
+    }
+
+    /**
+     * @return the total time, in milliseconds, for which the link has been connected, including the current
+     * connection
+     */
+    public synchronized long getTimeConnected() {
+        return totalConnectedTime + (connectedSince >= 0 ? System.currentTimeMillis() - connectedSince : 0);
+    }
+
+    public LatencyHistogram getDecodeTime() {
+        return decodeTime;
+    }
+
+    public LatencyHistogram getQueueTime() {
+        return queueTime;
+    }
+
+    public LatencyHistogram getDispatchTime() {
+        return dispatchTime;
+    }
+
+    public LatencyHistogram getFirstPacketTime() {
+        return firstPacketTime;
+    }
+
+    /**
+     * @return packets per second, as a moving average which gives most weight to the last few seconds
+     */
+    public synchronized double getPacketRate() {
+        updateRates(System.currentTimeMillis());
+        return packetRate;
+    }
+
+    /**
+     * @return bytes per second, as a moving average which gives most weight to the last few seconds
+     */
+    public synchronized double getByteRate() {
+        updateRates(System.currentTimeMillis());
+        return byteRate;
+    }
+
+    // folds each completed interval into the averages.  Intervals in which nothing was received,
+    // and for which the reader therefore made no update, count as zero
+    private synchronized void updateRates(final long now) {
+        long intervals = (now - intervalStart) / RATE_INTERVAL_MS;
+        if (intervals < 1) {
+            return;
+        }
+
+        long p = packets.get();
+        long b = bytes.get();
+        double packetsPerSecond = (p - intervalPackets) * 1000.0 / RATE_INTERVAL_MS;
+        double bytesPerSecond = (b - intervalBytes) * 1000.0 / RATE_INTERVAL_MS;
+        if (rateSampled) {
+            packetRate = (1 - RATE_WEIGHT) * packetRate + RATE_WEIGHT * packetsPerSecond;
+            byteRate = (1 - RATE_WEIGHT) * byteRate + RATE_WEIGHT * bytesPerSecond;
+        } else {
+            packetRate = packetsPerSecond;
+            byteRate = bytesPerSecond;
+            rateSampled = true;
+        }
+
+        if (intervals > 1) {
+            double decay = Math.pow(1 - RATE_WEIGHT, intervals - 1);
+            packetRate *= decay;
+            byteRate *= decay;
+        }
+
+        intervalPackets = p;
+        intervalBytes = b;
+        intervalStart += intervals * RATE_INTERVAL_MS;
+    }
+
+    /**
+     * Appends a human-readable report of these metrics, with times in microseconds
+     */
+    public void appendTo(final StringBuilder sb) {
+        sb.append(address).append(isConnected() ? " (connected)" : " (disconnected)").append("\n");
+        sb.append("  packets: ").append(getPackets())
+                .append(", ").append((long) getPacketRate()).append("/s\n");
+        sb.append("  bytes: ").append(getBytes())
+                .append(", ").append((long) getByteRate()).append("/s\n");
+        sb.append("  connected: ").append(getTimeConnected() / 1000).append("s")
+                .append(", reconnects: ").append(getReconnects()).append("\n");
+        sb.append("  decode us: ").append(decodeTime.summarize(1000)).append("\n");
+        sb.append("  queue us: ").append(queueTime.summarize(1000)).append("\n");
+        sb.append("  dispatch us: ").append(dispatchTime.summarize(1000)).append("\n");
+        if (getAccepts() > 0) {
+            sb.append("  accepted: ").append(getAccepts())
+                    .append(", first packet us: ").append(firstPacketTime.summarize(1000)).append("\n");
+        }
+    }
+}
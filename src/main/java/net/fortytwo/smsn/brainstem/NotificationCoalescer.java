@@ -0,0 +1,114 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Combines bursts of notifications into a single side effect, so that fifty notifications in quick succession
+ * produce one tone rather than fifty.
+ * The first notification of a given type opens a window; when the window closes, the side effect receives the
+ * number of notifications of that type which arrived during it.
+ * Side effects run on the coalescer's own thread, not on the thread which delivers notifications.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class NotificationCoalescer implements NotificationDecoder.Handler {
+    public static final long DEFAULT_WINDOW_MS = 250;
+
+    public interface SideEffect {
+        /**
+         * @param type  the type of the notifications
+         * @param count the number of notifications in the burst
+         */
+        void apply(int type,
+                   int count);
+    }
+
+    private final long windowMillis;
+    private final SideEffect sideEffect;
+    private final ScheduledExecutorService scheduler;
+
+    // the number of notifications of each type in its open window; guarded by this
+    private final Map<Integer, int[]> open = new HashMap<Integer, int[]>();
+
+    private final AtomicLong
+            notifications = new AtomicLong(),
+            bursts = new AtomicLong();
+
+    /**
+     * @param windowMillis the length of the window, in milliseconds, over which notifications are combined
+     * @param sideEffect   the side effect of each burst of notifications
+     */
+    public NotificationCoalescer(final long windowMillis,
+                                 final SideEffect sideEffect) {
+        this.windowMillis = windowMillis;
+        this.sideEffect = sideEffect;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "notification-coalescer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    public void handle(final int type,
+                       final ByteBuffer payload) {
+        notifications.incrementAndGet();
+
+        synchronized (this) {
+            int[] count = open.get(type);
+            if (null != count) {
+                count[0]++;
+                return;
+            }
+
+            open.put(type, new int[]{1});
+        }
+
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                close(type);
+            }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void close(final int type) {
+        int count;
+        synchronized (this) {
+            count = open.remove(type)[0];
+        }
+
+        bursts.incrementAndGet();
+        try {
+            sideEffect.apply(type, count);
+        } catch (Throwable t) {
+            Log.e(Brainstem.TAG, "notification side effect failed: " + t.getMessage());
+            t.printStackTrace(System.err);
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    /**
+     * @return the number of side effects applied, each for one or more notifications
+     */
+    public long getBursts() {
+        return bursts.get();
+    }
+}
@@ -0,0 +1,114 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits a stream of facilitator notifications into messages, without copying them or creating strings.
+ * In the framed protocol, each message is a one-byte type, a two-byte (big-endian) payload length and the payload.
+ * In the line protocol, which older facilitators speak, each message is a line of text of type
+ * {@link #TYPE_TEXT}.
+ * <p>
+ * Each message is passed to the handler as the decoding buffer itself, with its position and limit set to the
+ * bounds of the payload.  Handlers must not keep a reference to the buffer, nor modify its contents.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class NotificationDecoder {
+    public static final int
+            TYPE_TEXT = 0,
+            TYPE_QUERY_RESULT = 1;
+
+    /**
+     * The largest buffer needed to hold any framed message
+     */
+    public static final int MAX_FRAME_BYTES = 3 + 0xFFFF;
+
+    public enum Protocol {FRAMED, LINES}
+
+    public interface Handler {
+        /**
+         * @param type    the type of the message
+         * @param payload a buffer whose remaining bytes are the payload of the message, valid only for the duration
+         *                of the call
+         */
+        void handle(int type,
+                    ByteBuffer payload);
+    }
+
+    private final Protocol protocol;
+    private final Handler handler;
+
+    private final AtomicLong messages = new AtomicLong();
+
+    public NotificationDecoder(final Protocol protocol,
+                               final Handler handler) {
+        this.protocol = protocol;
+        this.handler = handler;
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Passes each complete message in the buffer to the handler.
+     * On return, the buffer's position is at the start of the first incomplete message, if any,
+     * and its limit is unchanged
+     *
+     * @param buffer a buffer in read mode, i.e. with the received bytes between its position and limit
+     * @return the number of messages decoded
+     */
+    public int decode(final ByteBuffer buffer) {
+        int limit = buffer.limit();
+        int count = 0;
+        int pos = buffer.position();
+
+        try {
+            if (Protocol.FRAMED == protocol) {
+                while (limit - pos >= 3) {
+                    int type = buffer.get(pos) & 0xFF;
+                    int length = buffer.getShort(pos + 1) & 0xFFFF;
+                    int end = pos + 3 + length;
+                    if (end > limit) {
+                        break;
+                    }
+
+                    deliver(buffer, type, pos + 3, end, limit);
+                    pos = end;
+                    count++;
+                }
+            } else {
+                for (int i = pos; i < limit; i++) {
+                    if ('\n' == buffer.get(i)) {
+                        int end = i > pos && '\r' == buffer.get(i - 1) ? i - 1 : i;
+                        deliver(buffer, TYPE_TEXT, pos, end, limit);
+                        pos = i + 1;
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            buffer.limit(limit);
+            buffer.position(pos);
+        }
+
+        messages.addAndGet(count);
+        return count;
+    }
+
+    private void deliver(final ByteBuffer buffer,
+                         final int type,
+                         final int start,
+                         final int end,
+                         final int limit) {
+        buffer.limit(end);
+        buffer.position(start);
+        handler.handle(type, buffer);
+        buffer.limit(limit);
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+}
@@ -1,56 +1,139 @@
 package net.fortytwo.smsn.brainstem;
 
 import android.media.AudioFormat;
-import android.media.AudioManager;
 import android.media.AudioRecord;
-import android.media.AudioTrack;
+
+import java.util.EnumMap;
+import java.util.Map;
 
 /**
-* @author Joshua Shinavier (http://fortytwo.net)
-*/
+ * Plays short "earcons": distinct tones and patterns which identify the kind of answer or notification.
+ * Each earcon is synthesized once, at construction, so that playing it requires no synthesis.
+ * Playback is handed off to an {@link AudioFeedbackEngine}, so that the caller never waits on audio output.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
 public class NotificationToneGenerator {
     // Note: is it possible to generate a tone with lower latency than this default generator's?
     //private final ToneGenerator tg = new ToneGenerator(AudioManager.STREAM_NOTIFICATION, 100);
 
-    private static final float SYNTH_FREQUENCY = 880;
+    // the length of the fade at the start and end of each note, which prevents audible clicks
+    private static final double RAMP_MS = 5;
+
+    // the peak amplitude of each earcon, as a fraction of full scale, which leaves headroom for mixing
+    private static final double AMPLITUDE = 0.5;
+
+    /**
+     * The available earcons, each with a priority and a sequence of notes given as frequency (Hz), duration (ms)
+     * and following gap (ms)
+     */
+    public enum Earcon {
+        // the original notification tone, for any query result
+        TONE(1, new double[][]{{880, 60, 0}}),
+        // a rising pair, for an answer concerning a person pointed to
+        PERSON(2, new double[][]{{660, 50, 20}, {990, 70, 0}}),
+        // a short, high double tap, for a notification from the facilitator
+        NOTIFICATION(1, new double[][]{{1320, 30, 30}, {1320, 30, 0}}),
+        // a low, longer pair, for a request which has failed
+        ALERT(3, new double[][]{{440, 90, 40}, {440, 90, 0}});
+
+        private final int priority;
+        private final double[][] notes;
+
+        Earcon(final int priority,
+               final double[][] notes) {
+            this.priority = priority;
+            this.notes = notes;
+        }
+
+        /**
+         * @return the priority of the earcon; higher-priority earcons may preempt lower-priority ones
+         */
+        public int getPriority() {
+            return priority;
+        }
+    }
 
-    private final AudioTrack audioTrack;
-    private final int minSize;
     private final int sampleRate;
+    private final Map<Earcon, short[]> bank = new EnumMap<Earcon, short[]>(Earcon.class);
+    private final Map<Earcon, Long> synthesisNanos = new EnumMap<Earcon, Long>(Earcon.class);
+
+    private final AudioFeedbackEngine engine;
 
     public NotificationToneGenerator() {
         sampleRate = getValidSampleRate();
 
-        minSize = AudioTrack.getMinBufferSize(sampleRate,
-                AudioFormat.CHANNEL_OUT_MONO,
-                AudioFormat.ENCODING_PCM_16BIT);
-        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
-                sampleRate,
-                AudioFormat.CHANNEL_OUT_MONO,
-                AudioFormat.ENCODING_PCM_16BIT,
-                minSize,
-                AudioTrack.MODE_STREAM);
+        for (Earcon e : Earcon.values()) {
+            long before = System.nanoTime();
+            bank.put(e, render(e, sampleRate));
+            synthesisNanos.put(e, System.nanoTime() - before);
+        }
+
+        engine = new AudioFeedbackEngine(bank, sampleRate);
     }
 
+    /**
+     * Plays the default notification tone
+     */
     public void play() {
-        //startActivity(new Intent(thisActivity, PlaySound.class));
-
-        //tg.startTone(ToneGenerator.TONE_PROP_BEEP);
-
-        audioTrack.play();
-        short[] buffer = new short[minSize];
-        float angle = 0;
-        //while (true) {
-        //    if (play) {
-        for (int i = 0; i < buffer.length; i++) {
-            float angular_frequency =
-                    (float) (2 * Math.PI) * SYNTH_FREQUENCY / sampleRate;
-            buffer[i] = (short) (Short.MAX_VALUE * ((float) Math.sin(angle)));
-            angle += angular_frequency;
+        play(Earcon.TONE);
+    }
+
+    /**
+     * Requests that an earcon be played, without waiting for it
+     */
+    public void play(final Earcon earcon) {
+        engine.play(earcon);
+    }
+
+    /**
+     * @return the engine which plays earcons, for its configuration and statistics
+     */
+    public AudioFeedbackEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * @return the time, in nanoseconds, taken to synthesize the given earcon at construction
+     */
+    public long getSynthesisNanos(final Earcon earcon) {
+        return synthesisNanos.get(earcon);
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Synthesizes an earcon as 16-bit PCM samples
+     */
+    public static short[] render(final Earcon earcon,
+                                 final int sampleRate) {
+        int total = 0;
+        for (double[] note : earcon.notes) {
+            total += samples(note[1] + note[2], sampleRate);
+        }
+
+        short[] buffer = new short[total];
+        int offset = 0;
+        int ramp = samples(RAMP_MS, sampleRate);
+        for (double[] note : earcon.notes) {
+            int length = samples(note[1], sampleRate);
+            double step = 2 * Math.PI * note[0] / sampleRate;
+            for (int i = 0; i < length; i++) {
+                double gain = Math.min(1.0, Math.min(i, length - 1 - i) / (double) ramp);
+                buffer[offset + i] = (short) (Short.MAX_VALUE * AMPLITUDE * gain * Math.sin(i * step));
+            }
+            // the gap which follows is silence
+            offset += samples(note[1] + note[2], sampleRate);
         }
-        audioTrack.write(buffer, 0, buffer.length);
-        //    }
-        //}
+
+        return buffer;
+    }
+
+    private static int samples(final double millis,
+                               final int sampleRate) {
+        return (int) (millis * sampleRate / 1000);
     }
 
     private int getValidSampleRate() {
@@ -0,0 +1,91 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+
+/**
+ * Determines, for each incoming OSC message, whether every message must be delivered (e.g. chords and keystrokes)
+ * or whether only the latest message matters (e.g. continuous motion and sensor streams).
+ * Messages of the latter kind are coalesced by the frame queue, so that stale samples are dropped
+ * rather than queued behind newer ones.
+ * <p>
+ * An address pattern matches an OSC address which is equal to it, or which extends it with further
+ * '/'-separated parts.  Matching is performed on the raw bytes of each frame, without allocation.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class OscDeliveryPolicy {
+    /**
+     * The key of messages which are always delivered
+     */
+    public static final int DELIVER_ALL = -1;
+
+    /**
+     * A policy under which every message is delivered
+     */
+    public static final OscDeliveryPolicy DELIVER_ALL_POLICY = new OscDeliveryPolicy();
+
+    private final byte[][] latestValueAddresses;
+
+    private OscDeliveryPolicy() {
+        latestValueAddresses = new byte[0][];
+    }
+
+    /**
+     * @param latestValueAddresses OSC addresses, such as those of sensor streams, for which only the latest
+     *                             message is to be delivered
+     */
+    public OscDeliveryPolicy(final Collection<String> latestValueAddresses) {
+        this.latestValueAddresses = new byte[latestValueAddresses.size()][];
+        int i = 0;
+        for (String address : latestValueAddresses) {
+            if (!address.startsWith("/")) {
+                throw new IllegalArgumentException("not an OSC address: " + address);
+            }
+            try {
+                this.latestValueAddresses[i++] = address.getBytes("US-ASCII");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of distinct latest-value keys, each of which requires a slot in the frame queue
+     */
+    public int getNumberOfLatestValueKeys() {
+        return latestValueAddresses.length;
+    }
+
+    /**
+     * @param data   an array containing an OSC packet
+     * @param length the length of the packet
+     * @return the index of the first latest-value address matching the packet's address,
+     * or {@link #DELIVER_ALL} if the packet is to be delivered unconditionally.
+     * Bundles are always delivered.
+     */
+    public int getKey(final byte[] data,
+                      final int length) {
+        for (int k = 0; k < latestValueAddresses.length; k++) {
+            byte[] address = latestValueAddresses[k];
+            if (length > address.length && matchesPrefix(data, address)) {
+                byte next = data[address.length];
+                if (0 == next || '/' == next) {
+                    return k;
+                }
+            }
+        }
+
+        return DELIVER_ALL;
+    }
+
+    private boolean matchesPrefix(final byte[] data,
+                                  final byte[] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,698 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.openrdf.model.Statement;
+import org.openrdf.rio.RDFWriter;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only log of the batches of statements which are meant for the facilitator but which cannot be
+ * sent, because there is no connection or because earlier batches are still waiting.
+ * Batches are drained in order, at a limited rate, once the facilitator is reachable again.
+ * <p>
+ * Appending never blocks: batches are handed to a writer thread which writes whatever has accumulated and then
+ * syncs it to disk once (group commit), no more often than the commit interval.
+ * The log is a series of segment files of bounded size, in which each record is a length, a time-to-live, a
+ * checksum and a batch in the {@link CompactRDF} format.  The drain position is kept in a checkpoint file, and
+ * segments which have been fully drained are deleted.
+ * Delivery is at least once: batches sent since the last checkpoint are sent again after a crash.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class Outbox {
+    public static final long DEFAULT_SEGMENT_BYTES = 1024 * 1024;
+    public static final long DEFAULT_COMMIT_INTERVAL_MS = 100;
+    public static final double DEFAULT_DRAIN_RATE = 20;
+
+    // batches waiting to be written; beyond this many, further batches are dropped rather than block the producer
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final int HEADER_BYTES = 12;
+
+    private static final long
+            CHECKPOINT_INTERVAL_MS = 1000,
+            IDLE_POLL_MS = 500,
+            MIN_RETRY_MS = 1000,
+            MAX_RETRY_MS = 30000;
+
+    private static final String
+            SEGMENT_SUFFIX = ".seg",
+            CHECKPOINT = "checkpoint";
+
+    /**
+     * The connection through which drained batches are sent
+     */
+    public interface Link {
+        boolean isConnected();
+
+        void send(Collection<Statement> statements,
+                  int ttl) throws Exception;
+    }
+
+    private final File directory;
+    private final Link link;
+
+    private long segmentBytes = DEFAULT_SEGMENT_BYTES;
+    private long commitIntervalMillis = DEFAULT_COMMIT_INTERVAL_MS;
+    private double drainRate = DEFAULT_DRAIN_RATE;
+
+    private final LinkedBlockingQueue<Batch> queue = new LinkedBlockingQueue<Batch>(QUEUE_CAPACITY);
+
+    // batches appended but not yet drained
+    private final AtomicLong pending = new AtomicLong();
+
+    private final AtomicLong
+            appended = new AtomicLong(),
+            drained = new AtomicLong(),
+            dropped = new AtomicLong(),
+            commits = new AtomicLong(),
+            sendFailures = new AtomicLong();
+
+    // the end of the data which has been written and synced; published by the writer to the drainer
+    private volatile Position committed;
+
+    // writer state, accessed only by the writer thread once open
+    private long writeSegment;
+    private long writeOffset;
+    private FileOutputStream writeFile;
+    private DataOutputStream writeOut;
+
+    // drainer state, accessed only by the drainer thread once open
+    private long readSegment;
+    private long readOffset;
+    private DataInputStream readIn;
+    private Record current;
+    private long lastCheckpoint;
+
+    private volatile boolean running;
+    private Thread writer;
+    private Thread drainer;
+
+    /**
+     * @param directory the directory which holds the outbox's segment files, which is created if necessary
+     * @param link      the connection through which drained batches are sent
+     */
+    public Outbox(final File directory,
+                  final Link link) {
+        this.directory = directory;
+        this.link = link;
+    }
+
+    /**
+     * @param segmentBytes the size, in bytes, beyond which a new segment file is started
+     */
+    public void setSegmentBytes(final long segmentBytes) {
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * @param commitIntervalMillis the minimum time, in milliseconds, between syncs of the log to disk
+     */
+    public void setCommitIntervalMillis(final long commitIntervalMillis) {
+        this.commitIntervalMillis = commitIntervalMillis;
+    }
+
+    /**
+     * @param drainRate the maximum number of batches per second sent after a reconnect
+     */
+    public void setDrainRate(final double drainRate) {
+        if (drainRate <= 0) {
+            throw new IllegalArgumentException("drain rate must be positive");
+        }
+        this.drainRate = drainRate;
+    }
+
+    /**
+     * Recovers the outbox from disk, discarding any partially written record at its end,
+     * and starts writing and draining
+     */
+    public synchronized void open() throws IOException {
+        if (running) {
+            return;
+        }
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("could not create outbox directory " + directory);
+        }
+
+        TreeMap<Long, File> segments = listSegments();
+
+        long[] checkpoint = readCheckpoint();
+        if (null == checkpoint || segments.isEmpty() || checkpoint[0] < segments.firstKey()) {
+            readSegment = segments.isEmpty() ? 1 : segments.firstKey();
+            readOffset = 0;
+        } else {
+            readSegment = checkpoint[0];
+            readOffset = checkpoint[1];
+        }
+
+        // segments before the checkpoint have already been drained
+        for (File f : segments.headMap(readSegment).values()) {
+            deleteSegment(f);
+        }
+
+        // count the records still to be drained, and find the end of the valid data
+        long count = 0;
+        for (Map.Entry<Long, File> e : segments.tailMap(readSegment).entrySet()) {
+            long start = e.getKey() == readSegment ? readOffset : 0;
+            long[] scan = scanSegment(e.getValue(), start);
+            count += scan[0];
+            long validEnd = scan[1];
+            if (validEnd < e.getValue().length()) {
+                BrainstemLog.w(Brainstem.TAG, "discarding " + (e.getValue().length() - validEnd)
+                        + " bytes of incomplete outbox records in " + e.getValue());
+                RandomAccessFile raf = new RandomAccessFile(e.getValue(), "rw");
+                try {
+                    raf.setLength(validEnd);
+                } finally {
+                    raf.close();
+                }
+            }
+        }
+        pending.set(count);
+
+        writeSegment = segments.isEmpty() ? readSegment : Math.max(readSegment, segments.lastKey());
+        writeOffset = segmentFile(writeSegment).exists() ? segmentFile(writeSegment).length() : 0;
+        openWriteSegment();
+        committed = new Position(writeSegment, writeOffset);
+
+        running = true;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "outbox-writer");
+        writer.setDaemon(true);
+        drainer = new Thread(new Runnable() {
+            public void run() {
+                drainLoop();
+            }
+        }, "outbox-drainer");
+        drainer.setDaemon(true);
+        writer.start();
+        drainer.start();
+
+        if (count > 0) {
+            BrainstemLog.i(Brainstem.TAG, "outbox recovered with " + count + " batches to send");
+        }
+    }
+
+    /**
+     * Stops draining, writes and syncs any batches which have been appended, and closes the outbox
+     */
+    public void close() throws InterruptedException {
+        Thread w, d;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            w = writer;
+            d = drainer;
+        }
+
+        d.interrupt();
+        d.join();
+        w.join();
+    }
+
+    /**
+     * Adds a batch to the end of the outbox.  This method does not block; if the writer has fallen too far behind,
+     * the batch is dropped
+     *
+     * @return whether the batch was accepted
+     */
+    public boolean append(final Collection<Statement> statements,
+                          final int ttl) {
+        if (!running || !queue.offer(new Batch(statements, ttl))) {
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        pending.incrementAndGet();
+        appended.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return whether there are no batches waiting to be sent.
+     * While there are, new batches should be appended rather than sent directly, so that they stay in order
+     */
+    public boolean isEmpty() {
+        return pending.get() <= 0;
+    }
+
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void appendTo(final StringBuilder sb) {
+        sb.append("pending: ").append(pending.get()).append(" batches, ")
+                .append(listSegments().size()).append(" segments\n");
+        sb.append("batches: ").append(appended.get()).append(" appended, ")
+                .append(drained.get()).append(" drained, ")
+                .append(dropped.get()).append(" dropped, ")
+                .append(sendFailures.get()).append(" send failures\n");
+        sb.append("commits: ").append(commits.get()).append("\n");
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+
+    private void writeLoop() {
+        List<Batch> group = new ArrayList<Batch>();
+        long lastCommit = 0;
+
+        while (running || !queue.isEmpty()) {
+            // batches of the current group which could not be encoded, and which have already been dropped
+            int unencodable = 0;
+            try {
+                Batch first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                if (null == first) {
+                    continue;
+                }
+
+                // let batches accumulate, so that one sync commits many of them
+                long wait = lastCommit + commitIntervalMillis - System.currentTimeMillis();
+                if (wait > 0 && running) {
+                    Thread.sleep(wait);
+                }
+
+                group.add(first);
+                queue.drainTo(group);
+                for (Batch b : group) {
+                    byte[] body;
+                    try {
+                        body = encode(b.statements);
+                    } catch (Exception e) {
+                        // a batch which cannot be encoded is dropped on its own, without failing the group
+                        unencodable++;
+                        pending.decrementAndGet();
+                        dropped.incrementAndGet();
+                        BrainstemLog.e(Brainstem.TAG, "failed to encode batch for outbox: " + e.getMessage());
+                        continue;
+                    }
+                    writeRecord(b.ttl, body);
+                }
+                writeOut.flush();
+                writeFile.getFD().sync();
+                commits.incrementAndGet();
+                lastCommit = System.currentTimeMillis();
+                committed = new Position(writeSegment, writeOffset);
+            } catch (InterruptedException e) {
+                BrainstemLog.w(Brainstem.TAG, "outbox writer interrupted");
+                break;
+            } catch (Throwable t) {
+                BrainstemLog.e(Brainstem.TAG, "failed to write to outbox: " + t.getMessage());
+                t.printStackTrace(System.err);
+
+                // none of a failed group was committed.  Whatever part of it reached the disk is removed, so that
+                // the log again ends at the last commit, and the group's batches are no longer pending
+                rollBack();
+                int lost = group.size() - unencodable;
+                pending.addAndGet(-lost);
+                dropped.addAndGet(lost);
+            } finally {
+                group.clear();
+            }
+        }
+
+        try {
+            writeOut.close();
+        } catch (IOException e) {
+            BrainstemLog.e(Brainstem.TAG, "failed to close outbox segment: " + e.getMessage());
+        }
+    }
+
+    private void writeRecord(final int ttl,
+                             final byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        if (writeOffset > 0 && writeOffset + HEADER_BYTES + body.length > segmentBytes) {
+            // the previous segment is complete once this one exists
+            writeOut.flush();
+            writeFile.getFD().sync();
+            writeOut.close();
+            writeSegment++;
+            writeOffset = 0;
+            openWriteSegment();
+        }
+
+        writeOut.writeInt(body.length);
+        writeOut.writeInt(ttl);
+        writeOut.writeInt((int) crc.getValue());
+        writeOut.write(body);
+        writeOffset += HEADER_BYTES + body.length;
+    }
+
+    // truncates the log to the last commit, after a failed write, and reopens it for writing
+    private void rollBack() {
+        Position c = committed;
+        try {
+            writeOut.close();
+        } catch (IOException e) {
+            // the stream is being discarded in any case
+        }
+
+        try {
+            // segments begun since the last commit
+            for (long s = writeSegment; s > c.segment; s--) {
+                File f = segmentFile(s);
+                if (f.exists() && !f.delete()) {
+                    throw new IOException("could not delete " + f);
+                }
+            }
+
+            RandomAccessFile raf = new RandomAccessFile(segmentFile(c.segment), "rw");
+            try {
+                raf.setLength(c.offset);
+            } finally {
+                raf.close();
+            }
+
+            writeSegment = c.segment;
+            writeOffset = c.offset;
+            openWriteSegment();
+        } catch (IOException e) {
+            BrainstemLog.e(Brainstem.TAG, "failed to roll back outbox to last commit: " + e.getMessage());
+        }
+    }
+
+    private void openWriteSegment() throws IOException {
+        writeFile = new FileOutputStream(segmentFile(writeSegment), true);
+        writeOut = new DataOutputStream(new BufferedOutputStream(writeFile));
+    }
+
+    private void drainLoop() {
+        long retryMillis = MIN_RETRY_MS;
+
+        while (running) {
+            try {
+                if (pending.get() <= 0 || !link.isConnected()) {
+                    Thread.sleep(IDLE_POLL_MS);
+                    continue;
+                }
+
+                if (null == current) {
+                    current = nextRecord();
+                    if (null == current) {
+                        // appended, but not yet committed
+                        Thread.sleep(commitIntervalMillis);
+                        continue;
+                    }
+                }
+
+                try {
+                    link.send(decode(current.body), current.ttl);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Throwable t) {
+                    sendFailures.incrementAndGet();
+                    BrainstemLog.w(Brainstem.TAG, "failed to send batch from outbox (retrying in " + retryMillis
+                            + "ms): " + t.getMessage());
+                    Thread.sleep(retryMillis);
+                    retryMillis = Math.min(MAX_RETRY_MS, retryMillis * 2);
+                    continue;
+                }
+
+                retryMillis = MIN_RETRY_MS;
+                readOffset += HEADER_BYTES + current.body.length;
+                current = null;
+                pending.decrementAndGet();
+                drained.incrementAndGet();
+
+                if (System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL_MS) {
+                    writeCheckpoint();
+                }
+
+                Thread.sleep((long) (1000 / drainRate));
+            } catch (InterruptedException e) {
+                break;
+            } catch (Throwable t) {
+                BrainstemLog.e(Brainstem.TAG, "error draining outbox: " + t.getMessage());
+                t.printStackTrace(System.err);
+                closeReader();
+                current = null;
+                try {
+                    Thread.sleep(MAX_RETRY_MS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+
+        closeReader();
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            BrainstemLog.e(Brainstem.TAG, "failed to save outbox checkpoint: " + e.getMessage());
+        }
+    }
+
+    // reads the next committed record, moving on to the next segment and deleting the drained one as necessary
+    private Record nextRecord() throws IOException {
+        while (true) {
+            Position c = committed;
+            if (readSegment == c.segment && readOffset >= c.offset) {
+                return null;
+            }
+
+            if (readSegment < c.segment && readOffset >= segmentFile(readSegment).length()) {
+                // a complete segment, fully drained
+                closeReader();
+                File drainedSegment = segmentFile(readSegment);
+                readSegment++;
+                readOffset = 0;
+                writeCheckpoint();
+                deleteSegment(drainedSegment);
+                continue;
+            }
+
+            if (null == readIn) {
+                InputStream in = new FileInputStream(segmentFile(readSegment));
+                skipFully(in, readOffset);
+                readIn = new DataInputStream(new BufferedInputStream(in));
+            }
+
+            Record r = readRecord(readIn);
+            if (null == r) {
+                BrainstemLog.e(Brainstem.TAG, "skipping damaged outbox data in segment " + readSegment
+                        + " at " + readOffset);
+                closeReader();
+                readOffset = readSegment < c.segment ? segmentFile(readSegment).length() : c.offset;
+                continue;
+            }
+            return r;
+        }
+    }
+
+    private void closeReader() {
+        if (null != readIn) {
+            try {
+                readIn.close();
+            } catch (IOException e) {
+                BrainstemLog.w(Brainstem.TAG, "failed to close outbox segment: " + e.getMessage());
+            }
+            readIn = null;
+        }
+    }
+
+    // returns the number of valid records in a segment from the given offset, and the offset just after them
+    private long[] scanSegment(final File segment,
+                               final long start) throws IOException {
+        long count = 0;
+        long offset = start;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)));
+        try {
+            skipFully(in, start);
+            Record r;
+            while (null != (r = readRecord(in))) {
+                count++;
+                offset += HEADER_BYTES + r.body.length;
+            }
+        } finally {
+            in.close();
+        }
+
+        return new long[]{count, offset};
+    }
+
+    private static void skipFully(final InputStream in,
+                                  final long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n) {
+            long k = in.skip(n - skipped);
+            if (k <= 0) {
+                throw new EOFException("outbox segment is shorter than expected");
+            }
+            skipped += k;
+        }
+    }
+
+    // returns null at the end of the data, or at an incomplete or damaged record
+    private static Record readRecord(final DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int ttl = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0 || length > MAX_RECORD_BYTES) {
+                return null;
+            }
+
+            byte[] body = new byte[length];
+            in.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                return null;
+            }
+
+            return new Record(ttl, body);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(final Collection<Statement> statements) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RDFWriter w = new CompactRDFWriter(bytes);
+        w.startRDF();
+        for (Statement s : statements) {
+            w.handleStatement(s);
+        }
+        w.endRDF();
+        return bytes.toByteArray();
+    }
+
+    private static Collection<Statement> decode(final byte[] body) throws Exception {
+        CompactRDFParser p = new CompactRDFParser();
+        StatementCollector c = new StatementCollector();
+        p.setRDFHandler(c);
+        p.parse(new ByteArrayInputStream(body), "");
+        return c.getStatements();
+    }
+
+    private void writeCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT);
+        File tmp = new File(directory, CHECKPOINT + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(fos);
+        try {
+            out.writeLong(readSegment);
+            out.writeLong(readOffset);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("failed to replace outbox checkpoint");
+        }
+        lastCheckpoint = System.currentTimeMillis();
+    }
+
+    private long[] readCheckpoint() throws IOException {
+        File file = new File(directory, CHECKPOINT);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return new long[]{in.readLong(), in.readLong()};
+        } catch (EOFException e) {
+            BrainstemLog.w(Brainstem.TAG, "ignoring incomplete outbox checkpoint");
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> segments = new TreeMap<Long, File>();
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.put(Long.valueOf(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), f);
+                    } catch (NumberFormatException e) {
+                        BrainstemLog.w(Brainstem.TAG, "ignoring unexpected file in outbox: " + f);
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(final long segment) {
+        return new File(directory, String.format("%012d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private void deleteSegment(final File segment) {
+        if (!segment.delete()) {
+            BrainstemLog.w(Brainstem.TAG, "failed to delete drained outbox segment " + segment);
+        }
+    }
+
+    private static class Batch {
+        private final Collection<Statement> statements;
+        private final int ttl;
+
+        private Batch(final Collection<Statement> statements,
+                      final int ttl) {
+            this.statements = statements;
+            this.ttl = ttl;
+        }
+    }
+
+    private static class Record {
+        private final int ttl;
+        private final byte[] body;
+
+        private Record(final int ttl,
+                       final byte[] body) {
+            this.ttl = ttl;
+            this.body = body;
+        }
+    }
+
+    private static class Position {
+        private final long segment;
+        private final long offset;
+
+        private Position(final long segment,
+                         final long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An in-memory device transport.
+ * A simulated device is attached under an address, and receives the device end of a pair of pipes
+ * when the Brainstem connects to that address.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class PipeTransport implements DeviceTransport {
+    private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    private final ConcurrentMap<String, Device> devicesByAddress;
+    private final int pipeSize;
+
+    public PipeTransport() {
+        this(DEFAULT_PIPE_SIZE);
+    }
+
+    public PipeTransport(final int pipeSize) {
+        this.pipeSize = pipeSize;
+        devicesByAddress = new ConcurrentHashMap<String, Device>();
+    }
+
+    /**
+     * Attaches a simulated device, which will be notified with its end of the link on each connection
+     *
+     * @param address the address at which the device may be reached
+     * @param device  the simulated device
+     */
+    public void attach(final String address,
+                       final Device device) {
+        devicesByAddress.put(address, device);
+    }
+
+    public void detach(final String address) {
+        devicesByAddress.remove(address);
+    }
+
+    public DeviceLink connect(final String address) throws IOException {
+        Device device = devicesByAddress.get(address);
+        if (null == device) {
+            throw new IOException("no device attached at " + address);
+        }
+
+        PipedInputStream brainstemIn = new PipedInputStream(pipeSize);
+        PipedInputStream deviceIn = new PipedInputStream(pipeSize);
+        PipedOutputStream deviceOut = new PipedOutputStream(brainstemIn);
+        PipedOutputStream brainstemOut = new PipedOutputStream(deviceIn);
+
+        device.connected(new PipeLink(address, deviceIn, deviceOut));
+
+        return new PipeLink(address, brainstemIn, brainstemOut);
+    }
+
+    private static class PipeLink implements DeviceLink {
+        private final String address;
+        private final InputStream in;
+        private final OutputStream out;
+
+        private PipeLink(final String address,
+                         final InputStream in,
+                         final OutputStream out) {
+            this.address = address;
+            this.in = in;
+            this.out = out;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return "pipe://" + address;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public void close() throws IOException {
+            out.close();
+            in.close();
+        }
+    }
+
+    /**
+     * A simulated device
+     */
+    public interface Device {
+        /**
+         * Called when the Brainstem connects to this device.
+         * Writing to the link delivers bytes to the Brainstem, and reading from it receives the Brainstem's output.
+         * Note: piped streams expect each end to be used from a single thread.
+         *
+         * @param link the device end of the new connection
+         */
+        void connected(DeviceLink link);
+    }
+}
@@ -0,0 +1,333 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import net.fortytwo.smsn.rdf.Activities;
+import org.openrdf.query.BindingSet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous queries, and the handlers which receive their results, as declared in a properties file.
+ * For each query NAME, the file contains either <code>query.NAME.sparql</code>, the text of a SPARQL query,
+ * or <code>query.NAME.activity</code>, the name of a query constant in {@link Activities},
+ * and <code>query.NAME.handlers</code>, a comma-separated list of handler names.
+ * Handlers are registered with the catalog by name, in code.
+ * Optionally, repeated and excessive results may be suppressed (see {@link ResultSuppressor}) with
+ * <code>query.NAME.dedupKeys</code>, a comma-separated list of binding names,
+ * <code>query.NAME.suppressMillis</code>, the time for which results with the same key are suppressed,
+ * and <code>query.NAME.rate</code> and <code>query.NAME.burst</code>, the maximum number of results per second
+ * and at once.
+ * <p>
+ * Declarations are read from a file if it exists, otherwise from the built-in defaults.
+ * The file may be edited while the Brainstem is running; queries which have been added, removed or changed
+ * are applied to the query engine without a restart, and unchanged queries are left alone.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryCatalog {
+    private static final String
+            PREFIX = "query.",
+            SPARQL = ".sparql",
+            ACTIVITY = ".activity",
+            HANDLERS = ".handlers",
+            DEDUP_KEYS = ".dedupKeys",
+            SUPPRESS_MILLIS = ".suppressMillis",
+            RATE = ".rate",
+            BURST = ".burst";
+
+    private static final long DEFAULT_SUPPRESS_MILLIS = 10000;
+
+    // the declarations used when there is no query file
+    private static final String DEFAULTS_RESOURCE = "queries.properties";
+
+    private final QueryWindow window;
+    private final File file;
+    private final Map<String, BindingSetHandler> handlersByName;
+
+    // the declarations which are currently applied to the query engine
+    private final Map<String, Declaration> loaded = new HashMap<String, Declaration>();
+
+    // the suppression stage of each loaded query which has one
+    private final Map<String, ResultSuppressor> suppressors = new ConcurrentHashMap<String, ResultSuppressor>();
+
+    private long lastModified;
+    private ScheduledExecutorService watcher;
+
+    /**
+     * @param window the window through which queries are added to the query engine
+     * @param file   the query file, which need not exist
+     */
+    public QueryCatalog(final QueryWindow window,
+                        final File file) {
+        this.window = window;
+        this.file = file;
+        this.handlersByName = new ConcurrentHashMap<String, BindingSetHandler>();
+    }
+
+    /**
+     * Makes a handler available to query declarations
+     *
+     * @param name    the name by which declarations refer to the handler
+     * @param handler the handler
+     */
+    public void registerHandler(final String name,
+                                final BindingSetHandler handler) {
+        handlersByName.put(name, handler);
+    }
+
+    /**
+     * Reads the query declarations and brings the query engine up to date with them.
+     * Invalid declarations are logged and skipped, so that one bad query does not prevent the others from running
+     */
+    public synchronized void load() throws IOException {
+        Properties props = new Properties();
+        InputStream in;
+        if (file.exists()) {
+            lastModified = file.lastModified();
+            in = new FileInputStream(file);
+        } else {
+            lastModified = 0;
+            in = QueryCatalog.class.getResourceAsStream(DEFAULTS_RESOURCE);
+            if (null == in) {
+                throw new IOException("missing default query resource " + DEFAULTS_RESOURCE);
+            }
+        }
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        Map<String, Declaration> declared = parse(props);
+
+        // removal forces the engine to be reset, so remove all changed queries at once
+        List<String> toRemove = new LinkedList<String>();
+        for (Map.Entry<String, Declaration> e : loaded.entrySet()) {
+            if (!e.getValue().equals(declared.get(e.getKey()))) {
+                toRemove.add(e.getKey());
+            }
+        }
+        if (toRemove.size() > 0) {
+            window.removeQueries(toRemove);
+            for (String name : toRemove) {
+                loaded.remove(name);
+                suppressors.remove(name);
+            }
+            BrainstemLog.i(Brainstem.TAG, "removed queries " + toRemove);
+        }
+
+        for (Map.Entry<String, Declaration> e : declared.entrySet()) {
+            if (!loaded.containsKey(e.getKey())) {
+                try {
+                    window.addQuery(e.getKey(), e.getValue().query, e.getValue().handler);
+                    loaded.put(e.getKey(), e.getValue());
+                    if (null != e.getValue().suppressor) {
+                        suppressors.put(e.getKey(), e.getValue().suppressor);
+                    }
+                    BrainstemLog.i(Brainstem.TAG, "added query " + e.getKey());
+                } catch (Throwable t) {
+                    BrainstemLog.e(Brainstem.TAG, "could not add query " + e.getKey() + ": " + t.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the suppression stages of all loaded queries which have one
+     */
+    public Collection<ResultSuppressor> getSuppressors() {
+        return suppressors.values();
+    }
+
+    /**
+     * Checks the query file for changes at the given interval, and reloads it whenever it has changed
+     *
+     * @param intervalMillis the time between checks, in milliseconds
+     */
+    public synchronized void startWatching(final long intervalMillis) {
+        if (null != watcher) {
+            return;
+        }
+
+        watcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "query-catalog");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        watcher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long modified = file.exists() ? file.lastModified() : 0;
+                if (modified != lastModified) {
+                    BrainstemLog.i(Brainstem.TAG, "query file " + file + " has changed; reloading");
+                    try {
+                        load();
+                    } catch (Throwable t) {
+                        BrainstemLog.e(Brainstem.TAG, "failed to reload queries: " + t.getMessage());
+                        t.printStackTrace(System.err);
+                    }
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopWatching() {
+        if (null != watcher) {
+            watcher.shutdownNow();
+            watcher = null;
+        }
+    }
+
+    private Map<String, Declaration> parse(final Properties props) {
+        Collection<String> names = new TreeSet<String>();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(PREFIX) && key.endsWith(HANDLERS)) {
+                names.add(key.substring(PREFIX.length(), key.length() - HANDLERS.length()));
+            }
+        }
+
+        Map<String, Declaration> declared = new HashMap<String, Declaration>();
+        for (String name : names) {
+            try {
+                declared.put(name, parseDeclaration(name, props));
+            } catch (IllegalArgumentException e) {
+                BrainstemLog.e(Brainstem.TAG, "invalid declaration of query " + name + ": " + e.getMessage());
+            }
+        }
+        return declared;
+    }
+
+    private Declaration parseDeclaration(final String name,
+                                         final Properties props) {
+        String query = props.getProperty(PREFIX + name + SPARQL);
+        if (null == query) {
+            String activity = props.getProperty(PREFIX + name + ACTIVITY);
+            if (null == activity) {
+                throw new IllegalArgumentException("no query given");
+            }
+            query = getActivityQuery(activity.trim());
+        }
+
+        List<String> handlerNames = split(props.getProperty(PREFIX + name + HANDLERS));
+        final List<BindingSetHandler> handlers = new LinkedList<BindingSetHandler>();
+        for (String h : handlerNames) {
+            BindingSetHandler handler = handlersByName.get(h);
+            if (null == handler) {
+                throw new IllegalArgumentException("no such handler: " + h);
+            }
+            handlers.add(handler);
+        }
+        if (0 == handlers.size()) {
+            throw new IllegalArgumentException("no handlers given");
+        }
+
+        BindingSetHandler handler = 1 == handlers.size()
+                ? handlers.get(0)
+                : new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                for (BindingSetHandler h : handlers) {
+                    h.handle(bindings);
+                }
+            }
+        };
+
+        List<String> dedupKeys = split(props.getProperty(PREFIX + name + DEDUP_KEYS));
+        String suppressMillis = props.getProperty(PREFIX + name + SUPPRESS_MILLIS);
+        String rate = props.getProperty(PREFIX + name + RATE);
+        String burst = props.getProperty(PREFIX + name + BURST);
+        ResultSuppressor suppressor = null;
+        if (dedupKeys.size() > 0 || null != rate) {
+            try {
+                suppressor = new ResultSuppressor(name, dedupKeys,
+                        null == suppressMillis ? DEFAULT_SUPPRESS_MILLIS : Long.valueOf(suppressMillis.trim()),
+                        null == rate ? 0 : Double.valueOf(rate.trim()),
+                        null == burst ? 1 : Integer.valueOf(burst.trim()),
+                        handler);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("bad number: " + e.getMessage());
+            }
+            handler = suppressor;
+        }
+
+        // any change to the declaration's settings makes it a different declaration
+        String settings = dedupKeys + "/" + suppressMillis + "/" + rate + "/" + burst;
+
+        return new Declaration(query.trim(), handlerNames, settings, handler, suppressor);
+    }
+
+    private static List<String> split(final String list) {
+        List<String> items = new LinkedList<String>();
+        if (null != list) {
+            for (String item : list.split(",")) {
+                if (item.trim().length() > 0) {
+                    items.add(item.trim());
+                }
+            }
+        }
+        return items;
+    }
+
+    private static String getActivityQuery(final String constant) {
+        try {
+            Object value = Activities.class.getField(constant).get(null);
+            if (!(value instanceof String)) {
+                throw new IllegalArgumentException(constant + " is not a query");
+            }
+            return (String) value;
+        } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("no such query: " + constant);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("query is not accessible: " + constant);
+        }
+    }
+
+    // two declarations are equal if they have the same query text, handler names and settings
+    private static class Declaration {
+        private final String query;
+        private final List<String> handlerNames;
+        private final String settings;
+        private final BindingSetHandler handler;
+        private final ResultSuppressor suppressor;
+
+        private Declaration(final String query,
+                            final List<String> handlerNames,
+                            final String settings,
+                            final BindingSetHandler handler,
+                            final ResultSuppressor suppressor) {
+            this.query = query;
+            this.handlerNames = handlerNames;
+            this.settings = settings;
+            this.handler = handler;
+            this.suppressor = suppressor;
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Declaration
+                    && ((Declaration) other).query.equals(query)
+                    && ((Declaration) other).handlerNames.equals(handlerNames)
+                    && ((Declaration) other).settings.equals(settings);
+        }
+
+        @Override
+        public int hashCode() {
+            return query.hashCode() + 31 * handlerNames.hashCode() + 961 * settings.hashCode();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import edu.rpi.twc.sesamestream.QueryEngine;
+import org.openrdf.model.Statement;
+import org.openrdf.query.BindingSet;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the memory used by a continuous query engine bounded over long sessions.
+ * The engine accumulates statements and partial solutions for as long as they are allowed to live,
+ * so events such as gestures are added through the window with a time-to-live equal to the length of the window,
+ * and the engine expires them, together with the partial solutions they are part of, by itself.
+ * Facts, such as those cached by a {@link KnowledgeIndex}, are added with a time-to-live of their own.
+ * <p>
+ * Clearing the engine is a last resort, as it also removes facts which did not arrive through the window,
+ * such as those pushed by the facilitator.  The engine is cleared, and the same queries re-registered with the same
+ * handlers, only after a given number of query results, if so configured, or when the heap grows past a ceiling.
+ * If clearing the engine does not bring the heap back under the ceiling, something else is using the memory, and
+ * heap resets back off until the heap falls below a lower watermark.
+ * <p>
+ * Statements are added, and the engine cleared, under a single lock, so that a reset never interleaves with
+ * the addition of a dataset.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryWindow {
+    // long enough for any gesture to be matched, short enough that a long session does not accumulate events
+    public static final long DEFAULT_WINDOW_MS = 60 * 1000;
+
+    // how often the heap is compared against the ceiling
+    private static final long HEAP_CHECK_INTERVAL_MS = 5000;
+
+    // the heap must fall below this fraction of the ceiling before heap resets stop backing off
+    private static final int HEAP_LOW_WATERMARK_PERCENT = 90;
+
+    private static final long MAX_HEAP_RESET_BACKOFF_MS = 10 * 60 * 1000;
+
+    private final QueryEngine queryEngine;
+    private final int queryTtl;
+    // guards the engine, as well as the registrations
+    private final Map<String, Registration> registrations = new LinkedHashMap<String, Registration>();
+    private final ScheduledExecutorService timer;
+    private final List<Runnable> resetListeners = new CopyOnWriteArrayList<Runnable>();
+
+    private volatile long windowMillis = DEFAULT_WINDOW_MS;
+    private long windowResults;
+    private long heapCeiling;
+
+    // results delivered since the last reset
+    private final AtomicLong results = new AtomicLong();
+
+    private final AtomicLong eventsAdded = new AtomicLong();
+    private final AtomicLong factsAdded = new AtomicLong();
+    private final AtomicLong countResets = new AtomicLong();
+    private final AtomicLong heapResets = new AtomicLong();
+    private volatile long lastResetAt;
+    private volatile long lastResetNanos;
+    private volatile long heapAfterLastReset;
+
+    // used only on the timer thread
+    private long heapResetBackoff;
+    private long nextHeapResetAt;
+
+    private boolean started;
+
+    /**
+     * @param queryEngine the engine to which queries are added
+     * @param queryTtl    the time-to-live of each query, passed through to the engine
+     */
+    public QueryWindow(final QueryEngine queryEngine,
+                       final int queryTtl) {
+        this.queryEngine = queryEngine;
+        this.queryTtl = queryTtl;
+
+        // by default, only the heap ceiling applies
+        this.heapCeiling = Runtime.getRuntime().maxMemory() / 4 * 3;
+
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "query-window");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @param windowMillis the time, in milliseconds, for which an event remains in the engine, or 0 for events to
+     *                     remain until the engine is cleared.  The engine's resolution is one second.
+     *                     Defaults to {@link #DEFAULT_WINDOW_MS}
+     */
+    public void setWindowMillis(final long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * @param windowResults the number of query results after which the engine is reset, or 0 for no limit
+     */
+    public void setWindowResults(final long windowResults) {
+        this.windowResults = windowResults;
+    }
+
+    /**
+     * @param heapCeiling the number of bytes of used heap beyond which the engine is reset, or 0 for no ceiling.
+     *                    The default is three quarters of the maximum heap size
+     */
+    public void setHeapCeiling(final long heapCeiling) {
+        this.heapCeiling = heapCeiling;
+    }
+
+    /**
+     * Adds a query to the engine, and remembers it so that it can be re-added after each reset
+     *
+     * @param name    a unique name for the query
+     * @param query   a SPARQL query
+     * @param handler a handler for the query's results
+     */
+    public void addQuery(final String name,
+                         final String query,
+                         final BindingSetHandler handler)
+            throws QueryEngine.InvalidQueryException, IOException, QueryEngine.IncompatibleQueryException {
+        Registration r = new Registration(query, new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                handler.handle(bindings);
+                resultReceived();
+            }
+        });
+
+        synchronized (registrations) {
+            if (registrations.containsKey(name)) {
+                throw new IllegalArgumentException("a query named " + name + " has already been added");
+            }
+
+            queryEngine.addQuery(queryTtl, r.query, r.handler);
+            registrations.put(name, r);
+        }
+    }
+
+    /**
+     * Removes queries from the engine.
+     * As the engine cannot remove individual queries, it is reset, and the remaining queries are re-added
+     *
+     * @param names the names of the queries to remove
+     */
+    public void removeQueries(final Collection<String> names) {
+        synchronized (registrations) {
+            boolean removed = false;
+            for (String name : names) {
+                removed |= null != registrations.remove(name);
+            }
+
+            if (removed) {
+                reset();
+            }
+        }
+    }
+
+    /**
+     * @return the names of all queries which have been added and not removed
+     */
+    public Collection<String> getQueryNames() {
+        synchronized (registrations) {
+            return Collections.unmodifiableList(new LinkedList<String>(registrations.keySet()));
+        }
+    }
+
+    /**
+     * Adds the statements of an event, such as a gesture, which expire at the end of the window
+     */
+    public void addEvent(final Statement... statements) throws IOException {
+        long millis = windowMillis;
+        // round up to the engine's resolution of one second
+        int ttl = millis > 0 ? (int) ((millis + 999) / 1000) : 0;
+
+        synchronized (registrations) {
+            queryEngine.addStatements(ttl, statements);
+        }
+        eventsAdded.addAndGet(statements.length);
+    }
+
+    /**
+     * Adds facts, which are not events, and which expire only at the end of the given time-to-live
+     *
+     * @param ttl the time-to-live of the facts, in seconds, or 0 for facts which do not expire
+     */
+    public void addFacts(final int ttl,
+                         final Statement... statements) throws IOException {
+        synchronized (registrations) {
+            queryEngine.addStatements(ttl, statements);
+        }
+        factsAdded.addAndGet(statements.length);
+    }
+
+    /**
+     * Adds a task to be run after every reset, e.g. to push facts which should always be present back into
+     * the engine.  Tasks are run while the engine is locked, so that no event can arrive before they are done
+     */
+    public void addResetListener(final Runnable listener) {
+        resetListeners.add(listener);
+    }
+
+    /**
+     * Begins checking the heap against the ceiling
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkHeap();
+            }
+        }, HEAP_CHECK_INTERVAL_MS, HEAP_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Clears all statements and partial solutions from the engine, then re-adds every query and runs the
+     * reset listeners
+     */
+    public void reset() {
+        long start = System.nanoTime();
+
+        synchronized (registrations) {
+            queryEngine.clear();
+
+            for (Registration r : registrations.values()) {
+                try {
+                    queryEngine.addQuery(queryTtl, r.query, r.handler);
+                } catch (Throwable t) {
+                    // the query was accepted once, so this should not happen
+                    BrainstemLog.e(Brainstem.TAG, "failed to re-add query after reset: " + t.getMessage());
+                    t.printStackTrace(System.err);
+                }
+            }
+
+            for (Runnable listener : resetListeners) {
+                try {
+                    listener.run();
+                } catch (Throwable t) {
+                    BrainstemLog.e(Brainstem.TAG, "error in query window reset listener: " + t.getMessage());
+                    t.printStackTrace(System.err);
+                }
+            }
+
+            // results produced by the listeners' statements do not count towards the new window
+            results.set(0);
+        }
+
+        lastResetNanos = System.nanoTime() - start;
+        lastResetAt = System.currentTimeMillis();
+        heapAfterLastReset = usedHeap();
+    }
+
+    private void resultReceived() {
+        if (windowResults > 0 && results.incrementAndGet() >= windowResults) {
+            // reset on the timer thread, rather than from within the engine's own call to a handler
+            results.set(0);
+            timer.execute(new Runnable() {
+                public void run() {
+                    countResets.incrementAndGet();
+                    reset();
+                }
+            });
+        }
+    }
+
+    private void checkHeap() {
+        long ceiling = heapCeiling;
+        if (ceiling <= 0) {
+            return;
+        }
+
+        long lowWatermark = ceiling / 100 * HEAP_LOW_WATERMARK_PERCENT;
+        long used = usedHeap();
+        if (used < lowWatermark) {
+            heapResetBackoff = 0;
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (used <= ceiling || now < nextHeapResetAt) {
+            return;
+        }
+
+        // collect first, so that garbage alone does not trigger a reset
+        System.gc();
+        used = usedHeap();
+        if (used <= ceiling) {
+            return;
+        }
+
+        BrainstemLog.w(Brainstem.TAG, "heap use of " + used / 1024 + "KB exceeds ceiling of "
+                + ceiling / 1024 + "KB; resetting query engine");
+        heapResets.incrementAndGet();
+        reset();
+
+        if (heapAfterLastReset > lowWatermark) {
+            // the engine was not what filled the heap, and clearing it again and again would not help
+            heapResetBackoff = 0 == heapResetBackoff
+                    ? 2 * HEAP_CHECK_INTERVAL_MS : Math.min(2 * heapResetBackoff, MAX_HEAP_RESET_BACKOFF_MS);
+            BrainstemLog.w(Brainstem.TAG, "heap still at " + heapAfterLastReset / 1024 + "KB after reset;"
+                    + " no heap reset for the next " + heapResetBackoff / 1000 + "s");
+        } else {
+            heapResetBackoff = 0;
+        }
+        nextHeapResetAt = System.currentTimeMillis() + heapResetBackoff;
+    }
+
+    private static long usedHeap() {
+        Runtime r = Runtime.getRuntime();
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    public long getEventsAdded() {
+        return eventsAdded.get();
+    }
+
+    public long getFactsAdded() {
+        return factsAdded.get();
+    }
+
+    public long getCountResets() {
+        return countResets.get();
+    }
+
+    public long getHeapResets() {
+        return heapResets.get();
+    }
+
+    /**
+     * Appends a human-readable report of window settings and resets
+     */
+    public void appendTo(final StringBuilder sb) {
+        sb.append("window: ").append(windowMillis > 0 ? windowMillis / 1000 + "s" : "none")
+                .append(", ").append(windowResults > 0 ? windowResults + " results" : "no result limit")
+                .append(", heap ceiling ").append(heapCeiling / 1024).append("KB\n");
+        sb.append("added: ").append(getEventsAdded()).append(" event statements, ")
+                .append(getFactsAdded()).append(" facts\n");
+        sb.append("resets: ").append(getCountResets()).append(" count, ")
+                .append(getHeapResets()).append(" heap\n");
+        sb.append("results in window: ").append(results.get()).append("\n");
+        if (lastResetAt > 0) {
+            sb.append("last reset: ").append((System.currentTimeMillis() - lastResetAt) / 1000).append("s ago, took ")
+                    .append(lastResetNanos / 1000).append("us, heap after ")
+                    .append(heapAfterLastReset / 1024).append("KB\n");
+        }
+        sb.append("heap now: ").append(usedHeap() / 1024).append("KB\n");
+    }
+
+    private static class Registration {
+        private final String query;
+        private final BindingSetHandler handler;
+
+        private Registration(final String query,
+                             final BindingSetHandler handler) {
+            this.query = query;
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import org.openrdf.model.Value;
+import org.openrdf.query.BindingSet;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage between the query engine and a query's handlers which discards repeated and excessive results,
+ * so that a burst of matching events produces a single tone or utterance rather than a stream of them.
+ * A result is suppressed if another result with the same key, i.e. the same values for a chosen set of
+ * bindings, has been passed within the suppression window, or if the query has exceeded its rate,
+ * which is enforced with a token bucket.
+ * Suppressed results are discarded on the calling thread, before they reach any handler queue.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ResultSuppressor implements BindingSetHandler {
+    // the maximum number of recently passed keys to remember
+    private static final int MAX_KEYS = 1024;
+
+    private final String name;
+    private final List<String> keyBindings;
+    private final long windowNanos;
+    private final double tokensPerNano;
+    private final double burst;
+    private final BindingSetHandler handler;
+
+    // the time at which each recently passed key was passed, in order of arrival
+    private final Map<String, Long> passedAt = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Long> eldest) {
+            return size() > MAX_KEYS;
+        }
+    };
+
+    private double tokens;
+    private long lastRefill;
+
+    private final AtomicLong passed = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong rateLimited = new AtomicLong();
+
+    /**
+     * @param name          the name of the query, for statistics
+     * @param keyBindings   the names of the bindings which together identify a result, or an empty list for no
+     *                      deduplication
+     * @param windowMillis  the time, in milliseconds, for which further results with the same key are suppressed
+     * @param ratePerSecond the maximum long-term rate of results passed, or 0 for no limit
+     * @param burst         the maximum number of results which may be passed at once, if the query has been quiet
+     * @param handler       the handler which receives results which are not suppressed
+     */
+    public ResultSuppressor(final String name,
+                            final List<String> keyBindings,
+                            final long windowMillis,
+                            final double ratePerSecond,
+                            final int burst,
+                            final BindingSetHandler handler) {
+        if (ratePerSecond > 0 && burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+
+        this.name = name;
+        this.keyBindings = keyBindings;
+        this.windowNanos = windowMillis * 1000000L;
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.handler = handler;
+
+        tokens = burst;
+        lastRefill = System.nanoTime();
+    }
+
+    public void handle(final BindingSet bindings) {
+        if (admit(bindings)) {
+            passed.incrementAndGet();
+            handler.handle(bindings);
+        }
+    }
+
+    private synchronized boolean admit(final BindingSet bindings) {
+        long now = System.nanoTime();
+
+        String key = null;
+        if (keyBindings.size() > 0) {
+            key = keyOf(bindings);
+
+            // keys arrive in time order, so expired keys are all at the head
+            while (!passedAt.isEmpty()) {
+                Map.Entry<String, Long> eldest = passedAt.entrySet().iterator().next();
+                if (now - eldest.getValue() < windowNanos) {
+                    break;
+                }
+                passedAt.remove(eldest.getKey());
+            }
+
+            if (passedAt.containsKey(key)) {
+                duplicates.incrementAndGet();
+                return false;
+            }
+        }
+
+        if (tokensPerNano > 0) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens < 1) {
+                rateLimited.incrementAndGet();
+                return false;
+            }
+            tokens--;
+        }
+
+        if (null != key) {
+            passedAt.put(key, now);
+        }
+        return true;
+    }
+
+    private String keyOf(final BindingSet bindings) {
+        StringBuilder sb = new StringBuilder();
+        for (String b : keyBindings) {
+            Value v = bindings.getValue(b);
+            // separate values with a character which will not appear in them
+            sb.append(null == v ? "" : v.stringValue()).append('\u0000');
+        }
+        return sb.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPassed() {
+        return passed.get();
+    }
+
+    /**
+     * @return the number of results suppressed because a result with the same key was recently passed
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    /**
+     * @return the number of results suppressed because the query exceeded its rate
+     */
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+}
@@ -0,0 +1,220 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.util.Log;
+import net.fortytwo.smsn.p2p.Pinger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pings the facilitator in the background and keeps histograms of the round-trip times,
+ * both over a sliding window of the last minute and since the sampler started.
+ * Together with the query and handler statistics, these show whether slow answers are due to the network or to
+ * the phone.
+ * <p>
+ * Pings are sent every few seconds while the agent is sending data, and progressively less often while it is
+ * idle or while there is no facilitator connection.  At most one ping is outstanding at a time; a ping which is
+ * not answered within a timeout is counted as lost.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class RttSampler {
+    private static final long
+            MIN_INTERVAL_MS = 2000,
+            MAX_INTERVAL_MS = 60000,
+            IDLE_AFTER_MS = 30000,
+            TIMEOUT_MS = 10000;
+
+    // the sliding window consists of this many sub-windows of equal length
+    private static final int WINDOWS = 6;
+    private static final long WINDOW_MS = 10000;
+
+    private final BatchingAgent agent;
+
+    // round-trip times in milliseconds; the sub-windows are guarded by this
+    private final LatencyHistogram[] windows = new LatencyHistogram[WINDOWS];
+    private long currentSlot;
+    private final LatencyHistogram lifetime = new LatencyHistogram();
+
+    private final AtomicLong
+            sent = new AtomicLong(),
+            received = new AtomicLong(),
+            lost = new AtomicLong(),
+            skipped = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+    private volatile long intervalMillis = MIN_INTERVAL_MS;
+
+    // the sequence number and send time of the outstanding ping, if any; accessed only by the scheduler thread
+    private final AtomicLong outstanding = new AtomicLong(-1);
+    private long outstandingSentAt;
+    private long sequence;
+
+    private final Runnable tick = new Runnable() {
+        public void run() {
+            try {
+                sample();
+            } catch (Throwable t) {
+                Log.e(Brainstem.TAG, "error in RTT sampler: " + t.getMessage());
+            }
+
+            synchronized (RttSampler.this) {
+                if (null != scheduler) {
+                    scheduler.schedule(tick, intervalMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    };
+
+    public RttSampler(final BatchingAgent agent) {
+        this.agent = agent;
+
+        for (int i = 0; i < WINDOWS; i++) {
+            windows[i] = new LatencyHistogram();
+        }
+        currentSlot = System.currentTimeMillis() / WINDOW_MS;
+    }
+
+    public synchronized void start() {
+        if (null != scheduler) {
+            return;
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "rtt-sampler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.schedule(tick, MIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (null != scheduler) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private void sample() {
+        long now = System.currentTimeMillis();
+
+        if (outstanding.get() >= 0) {
+            if (now - outstandingSentAt < TIMEOUT_MS) {
+                return;
+            }
+            // a late answer to this ping will be ignored
+            outstanding.set(-1);
+            lost.incrementAndGet();
+        }
+
+        boolean active = now - agent.getLastSendTime() < IDLE_AFTER_MS;
+        intervalMillis = active ? MIN_INTERVAL_MS : Math.min(MAX_INTERVAL_MS, intervalMillis * 2);
+
+        if (!agent.getFacilitatorConnection().isActive()) {
+            skipped.incrementAndGet();
+            intervalMillis = Math.min(MAX_INTERVAL_MS, intervalMillis * 2);
+            return;
+        }
+
+        final long seq = sequence++;
+        outstanding.set(seq);
+        outstandingSentAt = now;
+        sent.incrementAndGet();
+        try {
+            agent.getPinger().ping(new Pinger.PingResultHandler() {
+                public void handleResult(final long delay) {
+                    if (outstanding.compareAndSet(seq, -1)) {
+                        received.incrementAndGet();
+                        record(delay);
+                    }
+                }
+            });
+        } catch (Throwable t) {
+            outstanding.set(-1);
+            lost.incrementAndGet();
+            Log.w(Brainstem.TAG, "failed to ping facilitator: " + t.getMessage());
+        }
+    }
+
+    private void record(final long delayMillis) {
+        lifetime.record(delayMillis);
+        synchronized (windows) {
+            rotate(System.currentTimeMillis());
+            windows[(int) (currentSlot % WINDOWS)].record(delayMillis);
+        }
+    }
+
+    // note: call only while holding the lock on the sub-windows
+    private void rotate(final long now) {
+        long slot = now / WINDOW_MS;
+        if (slot - currentSlot >= WINDOWS) {
+            for (LatencyHistogram h : windows) {
+                h.reset();
+            }
+            currentSlot = slot;
+        } else {
+            while (currentSlot < slot) {
+                currentSlot++;
+                windows[(int) (currentSlot % WINDOWS)].reset();
+            }
+        }
+    }
+
+    /**
+     * @return the round-trip times, in milliseconds, of the pings answered within the last minute
+     */
+    public LatencyHistogram getRecent() {
+        LatencyHistogram recent = new LatencyHistogram();
+        synchronized (windows) {
+            rotate(System.currentTimeMillis());
+            for (LatencyHistogram h : windows) {
+                recent.add(h);
+            }
+        }
+        return recent;
+    }
+
+    /**
+     * @return the round-trip times, in milliseconds, of all pings answered since the sampler started
+     */
+    public LatencyHistogram getLifetime() {
+        return lifetime;
+    }
+
+    /**
+     * @return the current time between pings, in milliseconds
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @return the number of pings which failed or were not answered within the timeout
+     */
+    public long getLost() {
+        return lost.get();
+    }
+
+    public void appendTo(final StringBuilder sb) {
+        sb.append("last minute ms: ").append(getRecent().summarize(1)).append("\n");
+        sb.append("since start ms: ").append(lifetime.summarize(1)).append("\n");
+        sb.append("pings: ").append(sent.get()).append(" sent, ")
+                .append(received.get()).append(" answered, ")
+                .append(lost.get()).append(" lost, ")
+                .append(skipped.get()).append(" skipped without a connection; interval ")
+                .append(intervalMillis / 1000).append("s\n");
+    }
+}
@@ -0,0 +1,63 @@
+package net.fortytwo.smsn.brainstem;
+
+/**
+ * A reusable buffer holding a single decoded SLIP frame.
+ * Frames are owned by a {@link SlipFramePool} and are recycled rather than reallocated per packet.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SlipFrame {
+    private final byte[] data;
+    private int length;
+    private long timestamp;
+    private long decodeNanos;
+
+    public SlipFrame(final int capacity) {
+        data = new byte[capacity];
+    }
+
+    /**
+     * @return the backing array of this frame; only the first {@link #getLength()} bytes are meaningful
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getCapacity() {
+        return data.length;
+    }
+
+    /**
+     * @return the time at which the frame was completely received, in terms of {@link System#nanoTime()}
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the time spent decoding this frame, in nanoseconds, not counting time spent waiting for input
+     */
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    void setLength(final int length) {
+        this.length = length;
+    }
+
+    void setTiming(final long timestamp,
+                   final long decodeNanos) {
+        this.timestamp = timestamp;
+        this.decodeNanos = decodeNanos;
+    }
+
+    void clear() {
+        length = 0;
+        timestamp = 0;
+        decodeNanos = 0;
+    }
+}
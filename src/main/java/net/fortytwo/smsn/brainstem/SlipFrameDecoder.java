@@ -0,0 +1,147 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A Serial Line Internet Protocol (SLIP) decoder which reads from a stream into pooled, reusable frames.
+ * Unlike a fresh SlipInputStream per connection, a single decoder instance is kept for the lifetime of a device,
+ * and decoding a packet in the steady state allocates nothing.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SlipFrameDecoder {
+    private static final int
+            END = 0xC0,
+            ESC = 0xDB,
+            ESC_END = 0xDC,
+            ESC_ESC = 0xDD;
+
+    private static final int DEFAULT_READ_BUFFER_SIZE = 1024;
+
+    private final SlipFramePool pool;
+    private final byte[] readBuffer;
+
+    private long framesDecoded;
+    private long framesDiscarded;
+
+    public SlipFrameDecoder(final SlipFramePool pool) {
+        this(pool, DEFAULT_READ_BUFFER_SIZE);
+    }
+
+    public SlipFrameDecoder(final SlipFramePool pool,
+                            final int readBufferSize) {
+        this.pool = pool;
+        this.readBuffer = new byte[readBufferSize];
+    }
+
+    /**
+     * Decodes frames from the given stream until the end of the stream is reached.
+     * Each complete frame is passed to the handler, which takes ownership of it;
+     * the handler is responsible for eventually returning the frame to the pool.
+     *
+     * @param in      the stream to decode
+     * @param handler a handler for decoded frames
+     * @throws Exception if reading fails or if the handler throws an exception
+     */
+    public void decode(final InputStream in,
+                       final FrameHandler handler) throws Exception {
+        SlipFrame frame = null;
+        byte[] data = null;
+        int length = 0;
+        boolean escaped = false;
+        boolean overflow = false;
+
+        // decoding time is measured from the start of each frame, or of each chunk of input, whichever is later
+        long decodeStart = 0;
+        long decodeNanos = 0;
+
+        int n;
+        while (-1 != (n = in.read(readBuffer))) {
+            decodeStart = System.nanoTime();
+
+            for (int i = 0; i < n; i++) {
+                int b = readBuffer[i] & 0xFF;
+
+                if (END == b) {
+                    if (overflow) {
+                        framesDiscarded++;
+                        overflow = false;
+                    } else if (length > 0) {
+                        long now = System.nanoTime();
+                        frame.setLength(length);
+                        frame.setTiming(now, decodeNanos + now - decodeStart);
+                        framesDecoded++;
+                        SlipFrame complete = frame;
+                        frame = null;
+                        handler.handle(complete);
+                    }
+                    length = 0;
+                    escaped = false;
+                    continue;
+                }
+
+                if (overflow) {
+                    continue;
+                }
+
+                if (ESC == b) {
+                    escaped = true;
+                    continue;
+                }
+
+                if (escaped) {
+                    if (ESC_END == b) {
+                        b = END;
+                    } else if (ESC_ESC == b) {
+                        b = ESC;
+                    }
+                    escaped = false;
+                }
+
+                if (null == frame) {
+                    frame = acquireFrame();
+                    data = frame.getData();
+                    decodeStart = System.nanoTime();
+                    decodeNanos = 0;
+                }
+
+                if (length == data.length) {
+                    // drop the remainder of an oversized frame, and resynchronize on the next END
+                    overflow = true;
+                    length = 0;
+                } else {
+                    data[length++] = (byte) b;
+                }
+            }
+
+            if (null != frame) {
+                decodeNanos += System.nanoTime() - decodeStart;
+            }
+        }
+
+        if (null != frame) {
+            pool.release(frame);
+        }
+    }
+
+    private SlipFrame acquireFrame() throws IOException {
+        SlipFrame frame = pool.acquire();
+        if (null == frame) {
+            throw new IOException("SLIP frame pool exhausted");
+        }
+        return frame;
+    }
+
+    public long getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    public long getFramesDiscarded() {
+        return framesDiscarded;
+    }
+
+    public interface FrameHandler {
+        void handle(SlipFrame frame) throws Exception;
+    }
+}
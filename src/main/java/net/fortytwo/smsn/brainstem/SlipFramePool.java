@@ -0,0 +1,62 @@
+package net.fortytwo.smsn.brainstem;
+
+/**
+ * A fixed-size pool of preallocated SLIP frames.
+ * Acquiring and releasing frames does not allocate, so a steady stream of packets produces no garbage.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SlipFramePool {
+    private final SlipFrame[] free;
+    private final int frameCapacity;
+    private int size;
+
+    public SlipFramePool(final int numberOfFrames,
+                         final int frameCapacity) {
+        if (numberOfFrames < 1) {
+            throw new IllegalArgumentException("pool must contain at least one frame");
+        }
+
+        this.frameCapacity = frameCapacity;
+        free = new SlipFrame[numberOfFrames];
+        for (int i = 0; i < numberOfFrames; i++) {
+            free[i] = new SlipFrame(frameCapacity);
+        }
+        size = numberOfFrames;
+    }
+
+    public int getFrameCapacity() {
+        return frameCapacity;
+    }
+
+    /**
+     * @return a cleared frame, or null if all frames are currently in use
+     */
+    public synchronized SlipFrame acquire() {
+        if (0 == size) {
+            return null;
+        }
+
+        SlipFrame frame = free[--size];
+        free[size] = null;
+        frame.clear();
+        return frame;
+    }
+
+    /**
+     * Returns a frame to the pool
+     *
+     * @param frame a frame previously obtained from this pool
+     */
+    public synchronized void release(final SlipFrame frame) {
+        if (size == free.length) {
+            throw new IllegalStateException("frame released to a full pool");
+        }
+
+        free[size++] = frame;
+    }
+
+    public synchronized int getAvailable() {
+        return size;
+    }
+}
@@ -2,73 +2,479 @@ package net.fortytwo.smsn.brainstem;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Receives notifications, such as SPARQL query results, from one or more facilitators over TCP.
+ * The stream is split into messages by a {@link NotificationDecoder}, and each message is routed by its type to a
+ * handler; typically a {@link NotificationCoalescer}, so that a burst of notifications has a single side effect.
+ * All endpoints are served by a single thread with a non-blocking selector.  When a connection fails or is closed,
+ * its socket is closed and the endpoint is reconnected after a bounded, exponentially increasing delay, so that
+ * an unreachable facilitator costs an occasional connection attempt rather than a busy loop.
+ * <p>
+ * Host names are resolved on a separate thread, as a DNS lookup may block for many seconds, and the selector thread
+ * must not.  Each endpoint's address is cached, and a stale address is used for the next attempt while it is
+ * re-resolved in the background.
+ *
  * @author Joshua Shinavier (http://fortytwo.net)
  */
 public class SparqlNotificationListener {
+    private static final long
+            MIN_BACKOFF_MS = 1000,
+            MAX_BACKOFF_MS = 60000,
+            CONNECT_TIMEOUT_MS = 10000,
+            // a resolved address is looked up again, in the background, once it is this old
+            ADDRESS_TTL_MS = 5 * 60 * 1000,
+            // a connection which lasts at least this long resets the backoff
+            STABLE_MS = 10000,
+            // the longest time the selector waits before checking for due reconnects and timeouts
+            MAX_SELECT_MS = 1000;
 
-    private boolean started = false;
-    private boolean stopped = false;
+    // enough for a line of text, in the line protocol
+    private static final int LINE_BUFFER_SIZE = 8192;
 
-    private String host;
-    private int port;
-    private final NotificationToneGenerator toneGenerator;
+    public enum Status {WAITING, RESOLVING, CONNECTING, CONNECTED}
 
-    public SparqlNotificationListener(final NotificationToneGenerator toneGenerator) {
-        this.toneGenerator = toneGenerator;
+    private final NotificationDecoder decoder;
+    private final Map<Integer, NotificationDecoder.Handler> handlers
+            = new ConcurrentHashMap<Integer, NotificationDecoder.Handler>();
+
+    private final List<Endpoint> endpoints = new CopyOnWriteArrayList<Endpoint>();
+    private final Random random = new Random();
+
+    private final AtomicLong
+            attempts = new AtomicLong(),
+            connects = new AtomicLong(),
+            failures = new AtomicLong(),
+            notifications = new AtomicLong(),
+            unrouted = new AtomicLong(),
+            oversized = new AtomicLong();
+
+    // time from losing a connection to re-establishing it, in milliseconds
+    private final LatencyHistogram reconnectDelay = new LatencyHistogram();
+
+    // notifications per second, as an exponentially weighted moving average
+    private volatile double notificationRate;
+    private long lastRateUpdate;
+    private long notificationsAtLastRateUpdate;
+
+    private volatile boolean started;
+    private volatile boolean stopped;
+    private volatile Selector selector;
+
+    // resolves host names, off of the selector thread
+    private final ExecutorService resolver;
+
+    /**
+     * @param protocol the protocol spoken by the facilitators
+     */
+    public SparqlNotificationListener(final NotificationDecoder.Protocol protocol) {
+        decoder = new NotificationDecoder(protocol, new NotificationDecoder.Handler() {
+            public void handle(final int type,
+                               final ByteBuffer payload) {
+                route(type, payload);
+            }
+        });
+
+        resolver = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "notification-resolver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
-    public void setHost(String host) {
-        this.host = host;
+    /**
+     * Routes notifications of the given type to a handler.  Notifications of types without a handler are discarded
+     */
+    public void setHandler(final int type,
+                           final NotificationDecoder.Handler handler) {
+        handlers.put(type, handler);
     }
 
-    public void setPort(int port) {
-        this.port = port;
+    /**
+     * Adds a facilitator to listen to.  Endpoints may be added before or after the listener is started
+     */
+    public void addEndpoint(final String host,
+                            final int port) {
+        int bufferSize = NotificationDecoder.Protocol.FRAMED == decoder.getProtocol()
+                ? NotificationDecoder.MAX_FRAME_BYTES : LINE_BUFFER_SIZE;
+        endpoints.add(new Endpoint(host, port, bufferSize));
+        Selector s = selector;
+        if (null != s) {
+            s.wakeup();
+        }
     }
 
-    public void start() {
-        if (!started) {
-            Log.i(Brainstem.TAG, "starting notification listener");
+    public synchronized void start() throws IOException {
+        if (started) {
+            return;
+        }
 
-            started = true;
-            new Thread(new Runnable() {
-                public void run() {
-                    try {
-                        listenForNotifications();
-                    } catch (Throwable e) {
-                        Log.e(Brainstem.TAG,
-                                "SPARQL notification listener stream closed with error: " + e.getMessage());
-                        e.printStackTrace(System.err);
-                    }
+        Log.i(Brainstem.TAG, "starting notification listener");
+        selector = Selector.open();
+        started = true;
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    selectLoop();
+                } catch (Throwable e) {
+                    Log.e(Brainstem.TAG, "SPARQL notification listener failed: " + e.getMessage());
+                    e.printStackTrace(System.err);
+                } finally {
+                    closeAll();
                 }
-            }).start();
-        }
+            }
+        }, "notification-listener");
+        t.setDaemon(true);
+        t.start();
     }
 
     public void stop() {
         stopped = true;
+        Selector s = selector;
+        if (null != s) {
+            s.wakeup();
+        }
     }
 
-    private void listenForNotifications() throws IOException {
-        Log.i(Brainstem.TAG, "creating socket to '" + host + "' on port " + port);
+    private void selectLoop() throws IOException {
+        lastRateUpdate = System.currentTimeMillis();
 
         while (!stopped) {
-            Log.i(Brainstem.TAG, "opening SPARQL notification socket for reading");
+            long now = System.currentTimeMillis();
+            long timeout = MAX_SELECT_MS;
+
+            for (Endpoint e : endpoints) {
+                collectResolution(e, now);
+
+                if (Status.WAITING == e.status && now >= e.nextAttempt) {
+                    attempt(e, now);
+                } else if (Status.RESOLVING == e.status && now - e.attemptStarted >= CONNECT_TIMEOUT_MS) {
+                    fail(e, now, "timed out resolving " + e.host);
+                } else if (Status.CONNECTING == e.status && now - e.attemptStarted >= CONNECT_TIMEOUT_MS) {
+                    fail(e, now, "connection timed out");
+                }
+
+                if (Status.WAITING == e.status) {
+                    timeout = Math.min(timeout, Math.max(1, e.nextAttempt - now));
+                }
+            }
+
+            selector.select(timeout);
+
+            now = System.currentTimeMillis();
+            for (SelectionKey key : selector.selectedKeys()) {
+                Endpoint e = (Endpoint) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        if (e.channel.finishConnect()) {
+                            connected(e, now);
+                        }
+                    } else if (key.isReadable()) {
+                        read(e, now);
+                    }
+                } catch (IOException ex) {
+                    fail(e, now, ex.getMessage());
+                }
+            }
+            selector.selectedKeys().clear();
+
+            updateRate(now);
+        }
+    }
+
+    // begins a connection attempt, with the cached address if there is one
+    private void attempt(final Endpoint e,
+                         final long now) {
+        attempts.incrementAndGet();
+        e.attemptStarted = now;
+
+        if (null == e.address) {
+            e.status = Status.RESOLVING;
+            resolve(e);
+            return;
+        }
+
+        if (now - e.resolvedAt >= ADDRESS_TTL_MS) {
+            // the stale address is tried meanwhile; the new one is used from the next attempt
+            resolve(e);
+        }
+        connect(e, now);
+    }
+
+    // looks up the endpoint's host in the background, unless a lookup is already under way
+    private void resolve(final Endpoint e) {
+        if (null != e.resolution) {
+            return;
+        }
+
+        final Resolution r = new Resolution();
+        e.resolution = r;
+        resolver.execute(new Runnable() {
+            public void run() {
+                InetSocketAddress address = new InetSocketAddress(e.host, e.port);
+                r.address = address.isUnresolved() ? null : address;
+                r.done = true;
+
+                Selector s = selector;
+                if (null != s) {
+                    s.wakeup();
+                }
+            }
+        });
+    }
+
+    // takes the result of a finished lookup, and continues an attempt which was waiting for it
+    private void collectResolution(final Endpoint e,
+                                   final long now) {
+        Resolution r = e.resolution;
+        if (null == r || !r.done) {
+            return;
+        }
+
+        e.resolution = null;
+        if (null != r.address) {
+            e.address = r.address;
+            e.resolvedAt = now;
+        }
+
+        if (Status.RESOLVING == e.status) {
+            if (null == e.address) {
+                fail(e, now, "could not resolve " + e.host);
+            } else {
+                connect(e, now);
+            }
+        }
+    }
+
+    private void connect(final Endpoint e,
+                         final long now) {
+        try {
+            e.channel = SocketChannel.open();
+            e.channel.configureBlocking(false);
+            e.channel.socket().setKeepAlive(true);
+            e.status = Status.CONNECTING;
+            if (e.channel.connect(e.address)) {
+                e.key = e.channel.register(selector, SelectionKey.OP_READ, e);
+                connected(e, now);
+            } else {
+                e.key = e.channel.register(selector, SelectionKey.OP_CONNECT, e);
+            }
+        } catch (IOException ex) {
+            fail(e, now, ex.getMessage());
+        }
+    }
+
+    private void connected(final Endpoint e,
+                           final long now) {
+        e.key.interestOps(SelectionKey.OP_READ);
+        e.status = Status.CONNECTED;
+        e.connectedAt = now;
+        e.buffer.clear();
+        connects.incrementAndGet();
+        if (e.disconnectedAt > 0) {
+            reconnectDelay.record(now - e.disconnectedAt);
+        }
+
+        Log.i(Brainstem.TAG, "connected to notification endpoint " + e);
+    }
 
-            Socket socket = new Socket(host, port);
-            BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    private void read(final Endpoint e,
+                      final long now) throws IOException {
+        int n = e.channel.read(e.buffer);
+        if (n < 0) {
+            fail(e, now, "closed by facilitator");
+            return;
+        }
+
+        ByteBuffer buffer = e.buffer;
+        buffer.flip();
+        decoder.decode(buffer);
+        buffer.compact();
 
-            String line;
-            while (null != (line = br.readLine())) {
-                Log.i(Brainstem.TAG, "notification from facilitator: " + line);
-                //textEditor.setText("notification: " + line);
-                toneGenerator.play();
+        if (!buffer.hasRemaining()) {
+            // a full buffer without a complete message can only be an overlong line of text
+            oversized.incrementAndGet();
+            buffer.clear();
+        }
+    }
+
+    private void route(final int type,
+                       final ByteBuffer payload) {
+        notifications.incrementAndGet();
+        NotificationDecoder.Handler h = handlers.get(type);
+        if (null == h) {
+            unrouted.incrementAndGet();
+        } else {
+            try {
+                h.handle(type, payload);
+            } catch (Throwable t) {
+                Log.e(Brainstem.TAG, "notification handler failed: " + t.getMessage());
+                t.printStackTrace(System.err);
             }
         }
     }
+
+    private void fail(final Endpoint e,
+                      final long now,
+                      final String reason) {
+        boolean wasConnected = Status.CONNECTED == e.status;
+        close(e);
+
+        if (wasConnected) {
+            e.disconnectedAt = now;
+            if (now - e.connectedAt >= STABLE_MS) {
+                e.backoff = MIN_BACKOFF_MS;
+            }
+        } else {
+            failures.incrementAndGet();
+            // the host may have moved, so its address is looked up again before the next attempt
+            e.resolvedAt = 0;
+        }
+
+        // a random delay of between half and all of the backoff keeps endpoints from retrying in lockstep
+        long delay = e.backoff / 2 + (long) (random.nextDouble() * e.backoff / 2);
+        e.nextAttempt = now + delay;
+        e.backoff = Math.min(MAX_BACKOFF_MS, e.backoff * 2);
+        e.status = Status.WAITING;
+
+        Log.i(Brainstem.TAG, "notification endpoint " + e + ": " + reason + "; retrying in " + delay + "ms");
+    }
+
+    private void close(final Endpoint e) {
+        if (null != e.key) {
+            e.key.cancel();
+            e.key = null;
+        }
+        if (null != e.channel) {
+            try {
+                e.channel.close();
+            } catch (IOException ex) {
+                Log.w(Brainstem.TAG, "failed to close notification socket: " + ex.getMessage());
+            }
+            e.channel = null;
+        }
+    }
+
+    private void closeAll() {
+        resolver.shutdownNow();
+        for (Endpoint e : endpoints) {
+            close(e);
+            e.status = Status.WAITING;
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.w(Brainstem.TAG, "failed to close notification selector: " + e.getMessage());
+        }
+        Log.i(Brainstem.TAG, "notification listener stopped");
+    }
+
+    private void updateRate(final long now) {
+        long elapsed = now - lastRateUpdate;
+        if (elapsed >= 1000) {
+            long count = notifications.get();
+            double rate = (count - notificationsAtLastRateUpdate) * 1000.0 / elapsed;
+            notificationRate = 0.8 * notificationRate + 0.2 * rate;
+            notificationsAtLastRateUpdate = count;
+            lastRateUpdate = now;
+        }
+    }
+
+    public long getConnects() {
+        return connects.get();
+    }
+
+    public long getNotifications() {
+        return notifications.get();
+    }
+
+    /**
+     * @return a moving average of the number of notifications received per second
+     */
+    public double getNotificationRate() {
+        return notificationRate;
+    }
+
+    /**
+     * @return the time, in milliseconds, from losing each connection to re-establishing it
+     */
+    public LatencyHistogram getReconnectDelay() {
+        return reconnectDelay;
+    }
+
+    public void appendTo(final StringBuilder sb) {
+        for (Endpoint e : endpoints) {
+            sb.append(e).append(": ").append(e.status);
+            if (Status.WAITING == e.status && e.nextAttempt > 0) {
+                sb.append(" (retry in ").append(Math.max(0, e.nextAttempt - System.currentTimeMillis()) / 1000)
+                        .append("s)");
+            }
+            sb.append("\n");
+        }
+        sb.append("connections: ").append(attempts.get()).append(" attempts, ")
+                .append(connects.get()).append(" connects, ")
+                .append(failures.get()).append(" failures\n");
+        sb.append("notifications: ").append(notifications.get()).append(", ")
+                .append(String.format("%.2f", notificationRate)).append("/s, ")
+                .append(unrouted.get()).append(" unrouted, ")
+                .append(oversized.get()).append(" oversized\n");
+        sb.append("reconnect delay ms: ").append(reconnectDelay.summarize(1)).append("\n");
+    }
+
+    // note: apart from the fields read for display, endpoints are accessed only by the selector thread
+    private static class Endpoint {
+        private final String host;
+        private final int port;
+        private final ByteBuffer buffer;
+
+        private volatile Status status = Status.WAITING;
+        private volatile long nextAttempt;
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private InetSocketAddress address;
+        private long resolvedAt;
+        private Resolution resolution;
+        private long backoff = MIN_BACKOFF_MS;
+        private long attemptStarted;
+        private long connectedAt;
+        private long disconnectedAt;
+
+        private Endpoint(final String host,
+                         final int port,
+                         final int bufferSize) {
+            this.host = host;
+            this.port = port;
+            this.buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    // the result of a lookup, handed from the resolver thread to the selector thread
+    private static class Resolution {
+        private volatile InetSocketAddress address;
+        private volatile boolean done;
+    }
 }
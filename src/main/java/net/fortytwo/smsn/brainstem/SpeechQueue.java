@@ -0,0 +1,467 @@
+package net.fortytwo.smsn.brainstem;
+
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+
+import java.io.File;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Speaks messages one at a time, in order of priority, so that messages no longer cut each other off.
+ * Low-priority messages, such as device status, which arrive in quick succession are merged into a single
+ * utterance, and a message identical to one already waiting is dropped.  A high-priority message, such as the
+ * answer to a query, interrupts any lower-priority message being spoken.
+ * Phrases which are spoken repeatedly are synthesized to files in an {@link UtteranceCache} while the engine is
+ * idle; thereafter they are played from the file, without waiting on synthesis.  A message of normal or high
+ * priority aborts any such synthesis, which is tried again later.
+ * At most {@link #MAX_PENDING} messages wait to be spoken; beyond that, the oldest of the lowest priority is dropped.
+ * <p>
+ * The queue, with its thread, lives as long as the application; an engine belongs to an activity, and is set and
+ * detached as the activity is created and destroyed.  Messages wait while there is no engine.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SpeechQueue {
+    public enum Priority {LOW, NORMAL, HIGH}
+
+    /**
+     * The largest number of messages which may wait to be spoken, for instance while the engine is initialized
+     */
+    public static final int MAX_PENDING = 32;
+
+    // low-priority messages which arrive within this time of each other are spoken as one
+    private static final long MERGE_WINDOW_MS = 500;
+    private static final int MAX_MERGED_CHARS = 300;
+
+    // a phrase spoken this many times is cached, if it is short enough
+    private static final int CACHE_AFTER_REPEATS = 2;
+    private static final int MAX_CACHED_CHARS = 200;
+    private static final int MAX_TRACKED_PHRASES = 64;
+
+    // bounds on the wait for the engine, in case a completion is never reported
+    private static final long
+            MIN_SPEECH_TIMEOUT_MS = 5000,
+            SPEECH_TIMEOUT_MS_PER_CHAR = 150,
+            SYNTHESIS_TIMEOUT_MS = 30000;
+
+    private final UtteranceCache cache;
+
+    // all of the following are guarded by this
+    private final PriorityQueue<Utterance> pending = new PriorityQueue<Utterance>(11, new Comparator<Utterance>() {
+        public int compare(final Utterance a,
+                           final Utterance b) {
+            int c = b.priority.compareTo(a.priority);
+            return 0 != c ? c : a.sequence < b.sequence ? -1 : a.sequence > b.sequence ? 1 : 0;
+        }
+    });
+    private final Map<String, Integer> timesSpoken = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest) {
+            return size() > MAX_TRACKED_PHRASES;
+        }
+    };
+    private final Set<String> toSynthesize = new LinkedHashSet<String>();
+    private TextToSpeech textToSpeech;
+    private boolean running = true;
+    private String completed;
+    private long sequence;
+
+    private long requested, spoken, deduplicated, merged, interrupted, timedOut, dropped,
+            playedFromCache, synthesized, synthesisAborted;
+
+    private enum Outcome {COMPLETED, PREEMPTED, TIMED_OUT}
+
+    // from a request to the start of its speech, in milliseconds
+    private final LatencyHistogram waitTime = new LatencyHistogram();
+
+    private final Thread thread;
+
+    // used only on the queue's thread: the engine of the current utterance, and the engine with which the
+    // cached phrases have been registered
+    private TextToSpeech speaking;
+    private TextToSpeech registered;
+
+    /**
+     * @param cache a cache of synthesized phrases, or null to synthesize every phrase as it is spoken
+     */
+    public SpeechQueue(final UtteranceCache cache) {
+        this.cache = cache;
+
+        thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (true) {
+                        Utterance u = next();
+                        if (speaking != registered) {
+                            registerCache(speaking);
+                            registered = speaking;
+                        }
+                        if (u.toFile) {
+                            synthesize(u);
+                        } else {
+                            say(u);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    BrainstemLog.i(Brainstem.TAG, "speech queue stopped");
+                } catch (Throwable t) {
+                    BrainstemLog.e(Brainstem.TAG, "speech queue failed: " + t.getMessage());
+                    t.printStackTrace(System.err);
+                }
+            }
+        }, "speech");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets the engine through which messages are spoken.  Messages are queued, but not spoken, while there is none
+     *
+     * @param engine an initialized engine, or null to detach the current engine before it is shut down.
+     *               An utterance in progress on a detached engine is abandoned
+     */
+    public synchronized void setEngine(final TextToSpeech engine) {
+        if (null != engine) {
+            engine.setOnUtteranceProgressListener(new UtteranceProgressListener() {
+                public void onStart(final String utteranceId) {
+                }
+
+                public void onDone(final String utteranceId) {
+                    completed(utteranceId);
+                }
+
+                public void onError(final String utteranceId) {
+                    // no sense in waiting for the timeout
+                    completed(utteranceId);
+                }
+            });
+        }
+
+        textToSpeech = engine;
+        notifyAll();
+    }
+
+    /**
+     * Adds a message to the queue.  This method does not block
+     */
+    public synchronized void speak(final String text,
+                                   final Priority priority) {
+        if (null == text || 0 == text.trim().length()) {
+            return;
+        }
+
+        requested++;
+        if (!running) {
+            dropped++;
+            return;
+        }
+        long now = System.currentTimeMillis();
+
+        for (Utterance u : pending) {
+            if (u.parts.contains(text)) {
+                deduplicated++;
+                if (priority.compareTo(u.priority) > 0) {
+                    pending.remove(u);
+                    u.priority = priority;
+                    pending.add(u);
+                    notifyAll();
+                }
+                return;
+            }
+        }
+
+        if (Priority.LOW == priority) {
+            for (Utterance u : pending) {
+                if (Priority.LOW == u.priority && !u.toFile && now - u.lastAddedAt < MERGE_WINDOW_MS
+                        && u.text.length() + text.length() < MAX_MERGED_CHARS) {
+                    u.text = u.text + ". " + text;
+                    u.parts.add(text);
+                    u.lastAddedAt = now;
+                    merged++;
+                    notifyAll();
+                    return;
+                }
+            }
+        }
+
+        if (pending.size() >= MAX_PENDING && !makeRoomFor(priority)) {
+            dropped++;
+            return;
+        }
+
+        pending.add(new Utterance(text, priority, sequence++, now, false));
+        notifyAll();
+    }
+
+    /**
+     * Stops speaking, and drops all waiting messages.  This is also the way to give up on an engine which could not
+     * be initialized
+     */
+    public synchronized void shutdown() {
+        running = false;
+        dropped += pending.size();
+        pending.clear();
+        toSynthesize.clear();
+        thread.interrupt();
+    }
+
+    // drops the oldest of the lowest-priority waiting messages, unless the new message's priority is lower still
+    private boolean makeRoomFor(final Priority priority) {
+        Utterance victim = null;
+        for (Utterance u : pending) {
+            if (null == victim || u.priority.compareTo(victim.priority) < 0
+                    || (u.priority == victim.priority && u.sequence < victim.sequence)) {
+                victim = u;
+            }
+        }
+
+        if (victim.priority.compareTo(priority) > 0) {
+            return false;
+        }
+
+        pending.remove(victim);
+        dropped++;
+        return true;
+    }
+
+    // each engine must be told where the audio of the cached phrases is
+    private void registerCache(final TextToSpeech engine) {
+        if (null == cache) {
+            return;
+        }
+
+        try {
+            int count = 0;
+            for (String text : cache.load()) {
+                engine.addSpeech(cache.keyFor(text), cache.fileFor(text).getAbsolutePath());
+                count++;
+            }
+            BrainstemLog.i(Brainstem.TAG, "loaded " + count + " cached phrases");
+        } catch (Exception e) {
+            BrainstemLog.e(Brainstem.TAG, "failed to load speech cache: " + e.getMessage());
+        }
+    }
+
+    // takes the next message to speak, holding low-priority messages briefly so that they can be merged.
+    // When there are no messages, a phrase waiting to be cached is synthesized instead.
+    // Nothing is taken while there is no engine
+    private synchronized Utterance next() throws InterruptedException {
+        while (running) {
+            if (null == textToSpeech) {
+                wait();
+                continue;
+            }
+            speaking = textToSpeech;
+
+            Utterance u = pending.peek();
+            if (null == u) {
+                Iterator<String> iter = toSynthesize.iterator();
+                if (iter.hasNext()) {
+                    String text = iter.next();
+                    iter.remove();
+                    return new Utterance(text, Priority.LOW, sequence++, System.currentTimeMillis(), true);
+                }
+                wait();
+                continue;
+            }
+
+            long hold = Priority.LOW == u.priority
+                    ? u.lastAddedAt + MERGE_WINDOW_MS - System.currentTimeMillis() : 0;
+            if (hold > 0) {
+                wait(hold);
+                continue;
+            }
+
+            pending.poll();
+            return u;
+        }
+
+        throw new InterruptedException();
+    }
+
+    private void say(final Utterance u) throws InterruptedException {
+        String id = "speech-" + u.sequence;
+        String text = u.text;
+        if (null != cache && cache.contains(u.text)) {
+            text = cache.keyFor(u.text);
+            synchronized (this) {
+                playedFromCache++;
+            }
+        } else {
+            countRepeat(u.text);
+        }
+
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, id);
+        waitTime.record(System.currentTimeMillis() - u.requestedAt);
+        if (TextToSpeech.SUCCESS != speaking.speak(text, TextToSpeech.QUEUE_ADD, params)) {
+            BrainstemLog.w(Brainstem.TAG, "failed to speak: " + u.text);
+            return;
+        }
+
+        // only a high-priority message interrupts speech, and not speech of its own priority
+        Priority preemptedBy = Priority.HIGH == u.priority ? null : Priority.HIGH;
+        Outcome outcome = awaitCompletion(
+                id, MIN_SPEECH_TIMEOUT_MS + SPEECH_TIMEOUT_MS_PER_CHAR * u.text.length(), preemptedBy);
+        synchronized (this) {
+            if (Outcome.COMPLETED == outcome) {
+                spoken++;
+            } else if (Outcome.PREEMPTED == outcome) {
+                interrupted++;
+            }
+        }
+        if (Outcome.COMPLETED != outcome) {
+            speaking.stop();
+        }
+    }
+
+    private void synthesize(final Utterance u) throws InterruptedException {
+        String id = "synthesis-" + u.sequence;
+        String text = u.text;
+        File file = cache.fileFor(text);
+
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, id);
+        if (TextToSpeech.SUCCESS != speaking.synthesizeToFile(text, params, file.getAbsolutePath())) {
+            BrainstemLog.w(Brainstem.TAG, "failed to synthesize: " + text);
+            return;
+        }
+
+        // synthesis is only for later, so it gives way to any message other than a low-priority one
+        switch (awaitCompletion(id, SYNTHESIS_TIMEOUT_MS, Priority.NORMAL)) {
+            case COMPLETED:
+                cache.added(text);
+                if (file.exists()) {
+                    speaking.addSpeech(cache.keyFor(text), file.getAbsolutePath());
+                    synchronized (this) {
+                        synthesized++;
+                    }
+                }
+                break;
+            case PREEMPTED:
+                speaking.stop();
+                file.delete();
+                synchronized (this) {
+                    synthesisAborted++;
+                    // tried again the next time the engine is idle
+                    toSynthesize.add(text);
+                }
+                break;
+            case TIMED_OUT:
+                speaking.stop();
+                file.delete();
+                break;
+        }
+    }
+
+    private synchronized void countRepeat(final String text) {
+        if (null == cache || text.length() > MAX_CACHED_CHARS) {
+            return;
+        }
+
+        Integer count = timesSpoken.get(text);
+        count = null == count ? 1 : count + 1;
+        timesSpoken.put(text, count);
+        if (CACHE_AFTER_REPEATS == count && toSynthesize.size() < MAX_TRACKED_PHRASES) {
+            toSynthesize.add(text);
+        }
+    }
+
+    // waits for the engine to finish the given utterance, unless a message of the given priority or higher
+    // arrives first, the engine is detached, or the utterance times out.
+    // If preemptedBy is null, the utterance is interrupted only by the detachment of the engine
+    private synchronized Outcome awaitCompletion(final String id,
+                                                 final long timeout,
+                                                 final Priority preemptedBy) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!id.equals(completed)) {
+            if (speaking != textToSpeech) {
+                return Outcome.PREEMPTED;
+            }
+            if (null != preemptedBy && !pending.isEmpty() && pending.peek().priority.compareTo(preemptedBy) >= 0) {
+                return Outcome.PREEMPTED;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                timedOut++;
+                BrainstemLog.w(Brainstem.TAG, "timed out waiting for speech engine");
+                return Outcome.TIMED_OUT;
+            }
+            wait(remaining);
+        }
+
+        return Outcome.COMPLETED;
+    }
+
+    private synchronized void completed(final String utteranceId) {
+        completed = utteranceId;
+        notifyAll();
+    }
+
+    /**
+     * @return the number of messages waiting to be spoken
+     */
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of messages dropped, either because the queue was full or because it was shut down
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    public synchronized void appendTo(final StringBuilder sb) {
+        sb.append("speech: ").append(requested).append(" requested, ")
+                .append(spoken).append(" spoken, ")
+                .append(playedFromCache).append(" from cache, ")
+                .append(deduplicated).append(" duplicates, ")
+                .append(merged).append(" merged, ")
+                .append(interrupted).append(" interrupted, ")
+                .append(timedOut).append(" timed out, ")
+                .append(dropped).append(" dropped, ")
+                .append(pending.size()).append(" waiting\n");
+        sb.append("speech wait ms: ").append(waitTime.summarize(1)).append("\n");
+        if (null != cache) {
+            sb.append("synthesized for cache: ").append(synthesized).append(", ")
+                    .append(synthesisAborted).append(" aborted for speech\n");
+            cache.appendTo(sb);
+        }
+    }
+
+    private static class Utterance {
+        private String text;
+        // the messages merged into this utterance
+        private final List<String> parts = new LinkedList<String>();
+        private Priority priority;
+        private final long sequence;
+        private final long requestedAt;
+        private long lastAddedAt;
+        private final boolean toFile;
+
+        private Utterance(final String text,
+                          final Priority priority,
+                          final long sequence,
+                          final long requestedAt,
+                          final boolean toFile) {
+            this.text = text;
+            this.parts.add(text);
+            this.priority = priority;
+            this.sequence = sequence;
+            this.requestedAt = requestedAt;
+            this.lastAddedAt = requestedAt;
+            this.toFile = toFile;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A device transport over TCP, in which a device is addressed as host:port.
+ * Useful for running the Brainstem's device stack against simulated devices or a loopback bridge.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class TcpTransport implements DeviceTransport {
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+
+    private final int connectTimeout;
+
+    public TcpTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+
+    public TcpTransport(final int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public DeviceLink connect(final String address) throws IOException {
+        int i = address.lastIndexOf(':');
+        if (i < 1) {
+            throw new IOException("bad TCP device address (expected host:port): " + address);
+        }
+
+        String host = address.substring(0, i);
+        int port;
+        try {
+            port = Integer.valueOf(address.substring(i + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad port in TCP device address: " + address);
+        }
+
+        Socket socket = new Socket();
+        try {
+            // device messages are small and latency-sensitive
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        return new TcpLink(address, socket);
+    }
+
+    private static class TcpLink implements DeviceLink {
+        private final String address;
+        private final Socket socket;
+
+        private TcpLink(final String address,
+                        final Socket socket) {
+            this.address = address;
+            this.socket = socket;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return "tcp://" + address;
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
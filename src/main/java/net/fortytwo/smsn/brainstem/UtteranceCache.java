@@ -0,0 +1,197 @@
+package net.fortytwo.smsn.brainstem;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An on-disk, least-recently-used cache of synthesized speech, so that phrases which are spoken again and again
+ * need not be synthesized each time.
+ * Each phrase is stored as an audio file named after a hash of its text.  An index of the phrases, in order of
+ * use, is kept in the same directory, so that the cache survives restarts.
+ * This class only manages files; synthesis and playback are up to the {@link SpeechQueue}.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class UtteranceCache {
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final String
+            INDEX = "index.txt",
+            AUDIO_SUFFIX = ".wav";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    // the cached phrases and the sizes of their files, least recently used first; guarded by this
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+
+    private long hits, misses, evictions;
+
+    public UtteranceCache(final File directory) {
+        this(directory, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES);
+    }
+
+    public UtteranceCache(final File directory,
+                          final int maxEntries,
+                          final long maxBytes) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Reads the index, discarding any phrases whose audio files are missing
+     *
+     * @return the phrases in the cache
+     */
+    public synchronized Iterable<String> load() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("could not create speech cache directory " + directory);
+        }
+
+        entries.clear();
+        totalBytes = 0;
+
+        File index = new File(directory, INDEX);
+        if (index.exists()) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            try {
+                String line;
+                while (null != (line = in.readLine())) {
+                    if (line.length() > 0) {
+                        File f = fileFor(line);
+                        if (f.exists()) {
+                            entries.put(line, f.length());
+                            totalBytes += f.length();
+                        }
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        evict();
+        return new ArrayList<String>(entries.keySet());
+    }
+
+    /**
+     * @return the file in which the audio for the given phrase is, or would be, stored
+     */
+    public File fileFor(final String text) {
+        return new File(directory, hash(text) + AUDIO_SUFFIX);
+    }
+
+    /**
+     * @return a short key which is unique to the given phrase, and which contains no spaces
+     */
+    public String keyFor(final String text) {
+        return "[smsn:" + hash(text) + "]";
+    }
+
+    /**
+     * Looks up a phrase, marking it as recently used if it is present
+     */
+    public synchronized boolean contains(final String text) {
+        if (null != entries.get(text)) {
+            hits++;
+            return true;
+        } else {
+            misses++;
+            return false;
+        }
+    }
+
+    /**
+     * Adds a phrase whose audio has just been written to its file, evicting the least recently used phrases
+     * as necessary
+     */
+    public synchronized void added(final String text) {
+        File f = fileFor(text);
+        if (!f.exists() || 0 == f.length()) {
+            BrainstemLog.w(Brainstem.TAG, "no synthesized audio for phrase: " + text);
+            return;
+        }
+
+        Long previous = entries.put(text, f.length());
+        totalBytes += f.length() - (null == previous ? 0 : previous);
+
+        evict();
+        saveIndex();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> iter = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalBytes > maxBytes) && iter.hasNext()) {
+            Map.Entry<String, Long> eldest = iter.next();
+            iter.remove();
+            totalBytes -= eldest.getValue();
+            evictions++;
+            if (!fileFor(eldest.getKey()).delete()) {
+                BrainstemLog.w(Brainstem.TAG, "failed to delete cached speech for: " + eldest.getKey());
+            }
+        }
+    }
+
+    private void saveIndex() {
+        File index = new File(directory, INDEX);
+        File tmp = new File(directory, INDEX + ".tmp");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            try {
+                for (String text : entries.keySet()) {
+                    out.write(text);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(index)) {
+                throw new IOException("failed to replace speech cache index");
+            }
+        } catch (IOException e) {
+            BrainstemLog.e(Brainstem.TAG, "failed to save speech cache index: " + e.getMessage());
+        }
+    }
+
+    private static String hash(final String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX[(digest[i] >> 4) & 0xF];
+                hex[2 * i + 1] = HEX[digest[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void appendTo(final StringBuilder sb) {
+        sb.append("speech cache: ").append(entries.size()).append(" phrases, ")
+                .append(totalBytes / 1024).append("KB, ")
+                .append(hits).append(" hits, ")
+                .append(misses).append(" misses, ")
+                .append(evictions).append(" evicted\n");
+    }
+}
@@ -0,0 +1,159 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import net.fortytwo.rdfagents.model.Dataset;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class BatchingAgentTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private final ValueFactoryImpl valueFactory = ValueFactoryImpl.getInstance();
+
+    private File directory;
+    private Outbox outbox;
+    private BatchingAgent agent;
+    private QueryWindow window;
+    private TestLink link;
+    private final AtomicInteger answers = new AtomicInteger();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("outbox", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+
+        agent = new BatchingAgent(false);
+        agent.setMaxDelayMillis(0);
+        link = new TestLink();
+        agent.setFacilitatorLink(link);
+
+        window = new QueryWindow(agent.getQueryEngine(), 0);
+        window.addQuery("gesture", "SELECT ?g WHERE { ?g ?p ?o }", new BindingSetHandler() {
+            public void handle(final BindingSet bindings) {
+                answers.incrementAndGet();
+            }
+        });
+        agent.setQueryWindow(window);
+
+        outbox = new Outbox(directory, agent.getFacilitatorLink());
+        outbox.setCommitIntervalMillis(10);
+        outbox.setDrainRate(1000);
+        outbox.open();
+        agent.setOutbox(outbox);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        outbox.close();
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void liveDatasetReachesQueryEngineOnce() throws Exception {
+        link.connected = true;
+        agent.sendDataset(dataset(1), 60);
+
+        link.awaitReceived(1);
+        assertEquals(1, answers.get());
+        assertEquals(1, window.getEventsAdded());
+    }
+
+    @Test
+    public void drainedBatchDoesNotReachQueryEngine() throws Exception {
+        agent.sendDataset(dataset(1), 60);
+        agent.sendDataset(dataset(2), 60);
+        awaitPending(2);
+        assertEquals(0, link.received.size());
+        assertEquals(2, answers.get());
+
+        link.connected = true;
+        link.awaitReceived(2);
+        awaitEmpty();
+
+        assertEquals(list(1, 2), link.received);
+        // the gestures were answered when they were made, and are not answered again when the outbox drains
+        assertEquals(2, answers.get());
+        assertEquals(2, window.getEventsAdded());
+    }
+
+    private Dataset dataset(final int id) {
+        Collection<Statement> statements = Collections.singletonList(valueFactory.createStatement(
+                valueFactory.createURI("http://example.org/gesture"),
+                valueFactory.createURI("http://example.org/id"),
+                valueFactory.createLiteral("" + id)));
+        return new Dataset(statements);
+    }
+
+    private void awaitPending(final long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (outbox.getPending() < count) {
+            assertTrue("outbox has only " + outbox.getPending() + " of " + count + " batches",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitEmpty() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!outbox.isEmpty()) {
+            assertTrue("outbox still has " + outbox.getPending() + " batches",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<Integer> list(final Integer... ids) {
+        List<Integer> l = new ArrayList<Integer>();
+        Collections.addAll(l, ids);
+        return l;
+    }
+
+    private static class TestLink implements Outbox.Link {
+        private volatile boolean connected;
+        private final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public void send(final Collection<Statement> statements,
+                         final int ttl) throws Exception {
+            for (Statement s : statements) {
+                received.add(Integer.valueOf(s.getObject().stringValue()));
+            }
+        }
+
+        private void awaitReceived(final int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (received.size() < count) {
+                assertTrue("received only " + received.size() + " of " + count + " batches",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.Test;
+import org.openrdf.model.BNode;
+import org.openrdf.model.Literal;
+import org.openrdf.model.Resource;
+import org.openrdf.model.Statement;
+import org.openrdf.model.URI;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.rio.RDFParseException;
+import org.openrdf.rio.helpers.StatementCollector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class CompactRDFTest {
+    private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+
+    private final ValueFactoryImpl valueFactory = ValueFactoryImpl.getInstance();
+
+    @Test
+    public void literalsOfEveryKindSurviveRoundTrip() throws Exception {
+        URI person = uri("http://example.org/person/arthur");
+        List<Statement> statements = Arrays.asList(
+                valueFactory.createStatement(person, uri("http://xmlns.com/foaf/0.1/name"),
+                        valueFactory.createLiteral("Arthur Dent")),
+                valueFactory.createStatement(person, uri("http://www.w3.org/2000/01/rdf-schema#label"),
+                        valueFactory.createLiteral("Arthur", "en")),
+                valueFactory.createStatement(person, uri("http://www.w3.org/2000/01/rdf-schema#label"),
+                        valueFactory.createLiteral("Artur", "de")),
+                valueFactory.createStatement(person, uri("http://example.org/age"),
+                        valueFactory.createLiteral("42", uri(XSD + "integer"))),
+                valueFactory.createStatement(person, uri("http://example.org/weight"),
+                        valueFactory.createLiteral("70.5", uri(XSD + "double"))),
+                valueFactory.createStatement(person, uri("http://example.org/note"),
+                        valueFactory.createLiteral("non-ASCII: \u00e9\u00e8 \u65e5\u672c \u2603")),
+                valueFactory.createStatement(person, uri("http://example.org/note"),
+                        valueFactory.createLiteral("")));
+
+        assertRoundTrip(statements);
+    }
+
+    @Test
+    public void contextsAndBlankNodesSurviveRoundTrip() throws Exception {
+        BNode gesture = valueFactory.createBNode("g1");
+        BNode other = valueFactory.createBNode("g2");
+        URI graph = uri("http://example.org/graph/1");
+        List<Statement> statements = Arrays.asList(
+                valueFactory.createStatement(gesture, uri("http://www.w3.org/1999/02/22-rdf-syntax-ns#type"),
+                        uri("http://example.org/Point"), graph),
+                valueFactory.createStatement(gesture, uri("http://example.org/actor"),
+                        uri("http://example.org/person/arthur"), graph),
+                valueFactory.createStatement(gesture, uri("http://example.org/next"), other),
+                valueFactory.createStatement(other, uri("http://example.org/actor"),
+                        uri("http://example.org/person/ford"), other));
+
+        assertRoundTrip(statements);
+    }
+
+    @Test
+    public void stringsLongerThanBufferSurviveRoundTrip() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 3 * 8192) {
+            // multi-byte characters, so that character and byte lengths differ
+            sb.append("long literal \u00e9\u65e5 ").append(sb.length()).append(' ');
+        }
+        String longLabel = sb.toString();
+        URI longUri = uri("http://example.org/" + longLabel.replaceAll("[^a-z0-9]", "x"));
+
+        List<Statement> statements = Arrays.asList(
+                valueFactory.createStatement(longUri, uri("http://example.org/p"),
+                        valueFactory.createLiteral(longLabel)),
+                valueFactory.createStatement(longUri, uri("http://example.org/p"),
+                        valueFactory.createLiteral(longLabel, "en")),
+                valueFactory.createStatement(uri("http://example.org/s"), uri("http://example.org/p"), longUri));
+
+        assertRoundTrip(statements);
+    }
+
+    @Test
+    public void truncatedDocumentIsRejected() throws Exception {
+        List<Statement> statements = Arrays.asList(
+                valueFactory.createStatement(uri("http://example.org/s"), uri("http://example.org/p"),
+                        valueFactory.createLiteral("a literal", "en")),
+                valueFactory.createStatement(valueFactory.createBNode("b"), uri("http://example.org/p"),
+                        valueFactory.createLiteral("1", uri(XSD + "integer")), uri("http://example.org/g")));
+        byte[] document = write(statements);
+
+        // every proper prefix of the document, including one which ends before the END record, is incomplete
+        for (int length = 0; length < document.length; length++) {
+            byte[] truncated = Arrays.copyOf(document, length);
+            try {
+                parse(truncated);
+                fail("parsed a document truncated to " + length + " of " + document.length + " bytes");
+            } catch (IOException e) {
+                // expected
+            } catch (RDFParseException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void documentWithoutMagicNumberIsRejected() throws Exception {
+        byte[] document = write(Arrays.asList(valueFactory.createStatement(
+                uri("http://example.org/s"), uri("http://example.org/p"), uri("http://example.org/o"))));
+        document[0] = 'X';
+        try {
+            parse(document);
+            fail("parsed a document with a bad magic number");
+        } catch (RDFParseException e) {
+            // expected
+        }
+    }
+
+    private void assertRoundTrip(final List<Statement> statements) throws Exception {
+        byte[] document = write(statements);
+        List<Statement> parsed = parse(document);
+
+        assertEquals(canonical(statements), canonical(parsed));
+    }
+
+    private static byte[] write(final List<Statement> statements) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompactRDFWriter writer = new CompactRDFWriter(out);
+        writer.startRDF();
+        for (Statement s : statements) {
+            writer.handleStatement(s);
+        }
+        writer.endRDF();
+        return out.toByteArray();
+    }
+
+    private static List<Statement> parse(final byte[] document) throws Exception {
+        CompactRDFParser parser = new CompactRDFParser();
+        StatementCollector collector = new StatementCollector();
+        parser.setRDFHandler(collector);
+        parser.parse(new ByteArrayInputStream(document), "http://example.org/");
+        return new ArrayList<Statement>(collector.getStatements());
+    }
+
+    // a string form of the statements in which blank nodes are numbered in order of appearance,
+    // as a parser need not preserve their ids
+    private static List<String> canonical(final List<Statement> statements) {
+        Map<String, Integer> bnodes = new HashMap<String, Integer>();
+        List<String> result = new ArrayList<String>();
+        for (Statement s : statements) {
+            Resource c = s.getContext();
+            result.add(canonical(s.getSubject(), bnodes) + " " + canonical(s.getPredicate(), bnodes) + " "
+                    + canonical(s.getObject(), bnodes) + " " + (null == c ? "-" : canonical(c, bnodes)));
+        }
+        return result;
+    }
+
+    private static String canonical(final Value v,
+                                    final Map<String, Integer> bnodes) {
+        if (v instanceof URI) {
+            return "<" + v.stringValue() + ">";
+        } else if (v instanceof BNode) {
+            String id = ((BNode) v).getID();
+            Integer n = bnodes.get(id);
+            if (null == n) {
+                n = bnodes.size();
+                bnodes.put(id, n);
+            }
+            return "_:b" + n;
+        } else {
+            Literal l = (Literal) v;
+            return "\"" + l.getLabel() + "\""
+                    + (null == l.getLanguage() ? "" : "@" + l.getLanguage())
+                    + (null == l.getDatatype() ? "" : "^^<" + l.getDatatype().stringValue() + ">");
+        }
+    }
+
+    private URI uri(final String s) {
+        return valueFactory.createURI(s);
+    }
+}
@@ -0,0 +1,63 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class DeviceRegistryTest {
+    private static final String ADDRESS = "00:06:66:00:00:01";
+
+    private final DeviceRegistry registry = new DeviceRegistry();
+
+    @Test
+    public void newDeviceIsIdle() {
+        DeviceRegistry.Device device = registry.register(ADDRESS, null);
+
+        assertSame(device, registry.get(ADDRESS));
+        assertEquals(DeviceRegistry.State.IDLE, device.getState());
+        assertFalse(device.isManaged());
+        assertNull(registry.get("00:06:66:00:00:02"));
+    }
+
+    @Test
+    public void reRegistrationReplacesDevice() {
+        DeviceRegistry.Device first = registry.register(ADDRESS, null);
+        first.setManaged(true);
+        assertTrue(first.transition(DeviceRegistry.State.IDLE, DeviceRegistry.State.CONNECTING));
+
+        DeviceRegistry.Device second = registry.register(ADDRESS, null);
+
+        assertNotSame(first, second);
+        assertSame(second, registry.get(ADDRESS));
+        assertEquals(1, registry.getDevices().size());
+        assertEquals(1, registry.getAddresses().size());
+
+        // the replaced device can no longer be connected, while its replacement starts afresh
+        assertEquals(DeviceRegistry.State.CLOSED, first.getState());
+        assertFalse(first.transition(DeviceRegistry.State.CLOSED, DeviceRegistry.State.CONNECTING));
+        assertEquals(DeviceRegistry.State.IDLE, second.getState());
+        assertTrue(second.isManaged());
+    }
+
+    @Test
+    public void transitionsRequireExpectedState() {
+        DeviceRegistry.Device device = registry.register(ADDRESS, null);
+
+        assertFalse(device.transition(DeviceRegistry.State.CONNECTED, DeviceRegistry.State.BACKOFF));
+        assertTrue(device.transition(DeviceRegistry.State.IDLE, DeviceRegistry.State.CONNECTING));
+        assertTrue(device.transition(DeviceRegistry.State.CONNECTING, DeviceRegistry.State.CONNECTED));
+        assertEquals(DeviceRegistry.State.CONNECTED, device.getState());
+
+        device.close();
+        assertFalse(device.transition(DeviceRegistry.State.CLOSED, DeviceRegistry.State.IDLE));
+        assertEquals(DeviceRegistry.State.CLOSED, device.getState());
+    }
+}
@@ -0,0 +1,41 @@
+package net.fortytwo.smsn.brainstem;
+
+/**
+ * A desktop benchmark of the cost of synthesizing each earcon, which the Brainstem pays once, at startup.
+ * Synthesis needs no audio device, so, unlike playback (see {@link EarconBenchmark}), it is measured off the device.
+ * <p>
+ * Usage: <code>EarconSynthesisBenchmark [sample-rate] [iterations]</code>.
+ * This class is not part of the app; it runs on any JVM with the test classpath.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class EarconSynthesisBenchmark {
+    private static final int
+            DEFAULT_SAMPLE_RATE = 44100,
+            DEFAULT_ITERATIONS = 1000;
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length > 2) {
+            System.err.println("usage: EarconSynthesisBenchmark [sample-rate] [iterations]");
+            System.exit(1);
+        }
+
+        int sampleRate = args.length > 0 ? Integer.valueOf(args[0]) : DEFAULT_SAMPLE_RATE;
+        int iterations = args.length > 1 ? Integer.valueOf(args[1]) : DEFAULT_ITERATIONS;
+
+        System.out.println("sample rate: " + sampleRate + ", " + iterations + " warmup and measured iterations");
+        for (NotificationToneGenerator.Earcon e : NotificationToneGenerator.Earcon.values()) {
+            for (int i = 0; i < iterations; i++) {
+                NotificationToneGenerator.render(e, sampleRate);
+            }
+
+            LatencyHistogram synthesis = new LatencyHistogram();
+            for (int i = 0; i < iterations; i++) {
+                long before = System.nanoTime();
+                NotificationToneGenerator.render(e, sampleRate);
+                synthesis.record(System.nanoTime() - before);
+            }
+            System.out.println("synthesis of " + e + " us: " + synthesis.summarize(1000));
+        }
+    }
+}
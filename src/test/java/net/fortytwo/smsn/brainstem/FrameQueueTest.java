@@ -0,0 +1,152 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class FrameQueueTest {
+    private static final int CAPACITY = 4;
+    private static final long TIMEOUT_MS = 10000;
+
+    @Test
+    public void capacityIsRoundedUpToPowerOfTwo() {
+        FrameQueue queue = new FrameQueue(new SlipFramePool(1, 1), 5, FrameQueue.OverflowPolicy.BLOCK);
+        assertEquals(8, queue.getCapacity());
+        assertEquals(11, FrameQueue.requiredPoolSize(5, 0));
+    }
+
+    @Test
+    public void blockPolicyWaitsForConsumerAndLosesNothing() throws Exception {
+        final SlipFramePool pool = new SlipFramePool(FrameQueue.requiredPoolSize(CAPACITY, 0), 1);
+        final FrameQueue queue = new FrameQueue(pool, CAPACITY, FrameQueue.OverflowPolicy.BLOCK);
+        final int total = 1000;
+
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 0; i < total; i++) {
+                    queue.offer(frame(pool, i));
+                }
+            }
+        });
+        producer.start();
+
+        // wait for the producer to fill the queue and block, which it does only when the queue is full
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (0 == queue.getBlocked()) {
+            assertTrue("producer never blocked", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertEquals(CAPACITY, queue.getDepth());
+
+        for (int i = 0; i < total; i++) {
+            SlipFrame f = queue.take();
+            assertEquals((byte) i, f.getData()[0]);
+            pool.release(f);
+        }
+        producer.join(5000);
+
+        assertFalse(producer.isAlive());
+        assertTrue(queue.getBlocked() > 0);
+        assertEquals(0, queue.getDropped());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void dropOldestPolicyKeepsNewestFrames() {
+        SlipFramePool pool = new SlipFramePool(FrameQueue.requiredPoolSize(CAPACITY, 0), 1);
+        FrameQueue queue = new FrameQueue(pool, CAPACITY, FrameQueue.OverflowPolicy.DROP_OLDEST);
+
+        for (int i = 0; i < CAPACITY + 2; i++) {
+            assertTrue(queue.offer(frame(pool, i)));
+        }
+
+        assertEquals(2, queue.getDropped());
+        assertEquals(CAPACITY, queue.getDepth());
+        assertEquals(list(2, 3, 4, 5), drain(queue, pool));
+        assertEquals(FrameQueue.requiredPoolSize(CAPACITY, 0), pool.getAvailable());
+    }
+
+    @Test
+    public void coalescePolicyKeepsQueuedFramesAndOnlyLatestOverflow() {
+        SlipFramePool pool = new SlipFramePool(FrameQueue.requiredPoolSize(CAPACITY, 0), 1);
+        FrameQueue queue = new FrameQueue(pool, CAPACITY, FrameQueue.OverflowPolicy.COALESCE);
+
+        for (int i = 0; i < CAPACITY + 3; i++) {
+            assertTrue(queue.offer(frame(pool, i)));
+        }
+
+        assertEquals(2, queue.getCoalesced());
+        assertEquals(CAPACITY + 1, queue.getDepth());
+        assertEquals(list(0, 1, 2, 3, 6), drain(queue, pool));
+        assertEquals(FrameQueue.requiredPoolSize(CAPACITY, 0), pool.getAvailable());
+    }
+
+    @Test
+    public void latestValueSlotsKeepOnlyNewestFramePerKey() {
+        SlipFramePool pool = new SlipFramePool(FrameQueue.requiredPoolSize(CAPACITY, 2), 1);
+        FrameQueue queue = new FrameQueue(pool, CAPACITY, FrameQueue.OverflowPolicy.BLOCK, 2);
+
+        queue.offerLatest(0, frame(pool, 10));
+        queue.offerLatest(0, frame(pool, 11));
+        queue.offerLatest(1, frame(pool, 20));
+        queue.offer(frame(pool, 1));
+
+        assertEquals(1, queue.getCoalesced());
+        List<Integer> received = drain(queue, pool);
+        assertEquals(3, received.size());
+        assertTrue(received.contains(11));
+        assertTrue(received.contains(20));
+        assertTrue(received.contains(1));
+        assertFalse(received.contains(10));
+    }
+
+    @Test
+    public void closedQueueReleasesOfferedFrames() {
+        SlipFramePool pool = new SlipFramePool(FrameQueue.requiredPoolSize(CAPACITY, 0), 1);
+        FrameQueue queue = new FrameQueue(pool, CAPACITY, FrameQueue.OverflowPolicy.BLOCK);
+
+        queue.offer(frame(pool, 1));
+        queue.close();
+        assertFalse(queue.offer(frame(pool, 2)));
+        queue.drain();
+
+        assertNull(queue.take());
+        assertEquals(FrameQueue.requiredPoolSize(CAPACITY, 0), pool.getAvailable());
+    }
+
+    private static SlipFrame frame(final SlipFramePool pool,
+                                   final int id) {
+        SlipFrame f = pool.acquire();
+        f.getData()[0] = (byte) id;
+        f.setLength(1);
+        return f;
+    }
+
+    private static List<Integer> drain(final FrameQueue queue,
+                                       final SlipFramePool pool) {
+        List<Integer> ids = new ArrayList<Integer>();
+        SlipFrame f;
+        while (null != (f = queue.poll())) {
+            ids.add((int) f.getData()[0]);
+            pool.release(f);
+        }
+        return ids;
+    }
+
+    private static List<Integer> list(final Integer... ids) {
+        List<Integer> l = new ArrayList<Integer>();
+        for (Integer i : ids) {
+            l.add(i);
+        }
+        return l;
+    }
+}
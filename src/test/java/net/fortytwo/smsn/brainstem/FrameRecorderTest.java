@@ -0,0 +1,171 @@
+package net.fortytwo.smsn.brainstem;
+
+import net.fortytwo.smsn.p2p.osc.OscReceiver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class FrameRecorderTest {
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("capture", ".slip");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void replayedFramesMatchRecordedFrames() throws Exception {
+        // a buffer smaller than some of the frames, so that frames are both staged and written through
+        FrameRecorder recorder = new FrameRecorder(file, 64);
+        List<byte[]> frames = new ArrayList<byte[]>();
+        long time = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            byte[] frame = frame(i, 0 == i % 10 ? 300 : 1 + i % 40);
+            frames.add(frame);
+            // the receive buffer is reused, so a recorded frame may be followed by stale bytes
+            byte[] data = Arrays.copyOf(frame, frame.length + 8);
+            time += 1000000;
+            recorder.record(data, frame.length, time);
+        }
+        assertEquals(100, recorder.getFramesRecorded());
+        recorder.close();
+
+        CollectingReceiver receiver = new CollectingReceiver();
+        FrameReplayer replayer = new FrameReplayer(file, receiver);
+        assertEquals(100, replayer.replay(FrameReplayer.FULL_SPEED));
+        assertEquals(100, replayer.getFramesReplayed());
+
+        assertEquals(frames.size(), receiver.frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(frames.get(i), receiver.frames.get(i));
+        }
+        long age = System.currentTimeMillis() - replayer.getCaptureStartTime();
+        assertTrue(age >= 0 && age < 60000);
+    }
+
+    @Test
+    public void replayKeepsTheIntervalsBetweenFrames() throws Exception {
+        FrameRecorder recorder = new FrameRecorder(file);
+        long time = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            recorder.record(frame(i, 10), 10, time + i * 50000000L);
+        }
+        recorder.close();
+
+        CollectingReceiver receiver = new CollectingReceiver();
+        long start = System.nanoTime();
+        new FrameReplayer(file, receiver).replay(1);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        assertEquals(5, receiver.frames.size());
+        assertTrue("replayed in " + elapsedMillis + "ms", elapsedMillis >= 200);
+    }
+
+    @Test
+    public void closedRecorderRejectsFrames() throws Exception {
+        FrameRecorder recorder = new FrameRecorder(file);
+        recorder.close();
+
+        try {
+            recorder.record(frame(0, 10), 10, System.nanoTime());
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void otherFilesAreNotReplayed() throws Exception {
+        write(new byte[4]);
+        expectFailure();
+
+        write(new byte[64]);
+        expectFailure();
+    }
+
+    @Test
+    public void truncatedFrameIsReported() throws Exception {
+        FrameRecorder recorder = new FrameRecorder(file);
+        recorder.record(frame(0, 10), 10, System.nanoTime());
+        recorder.record(frame(1, 100), 100, System.nanoTime());
+        recorder.close();
+
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.setLength(f.length() - 50);
+        } finally {
+            f.close();
+        }
+
+        CollectingReceiver receiver = new CollectingReceiver();
+        try {
+            new FrameReplayer(file, receiver).replay(FrameReplayer.FULL_SPEED);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        // frames before the truncation are still delivered
+        assertEquals(1, receiver.frames.size());
+    }
+
+    private void expectFailure() throws InterruptedException {
+        CollectingReceiver receiver = new CollectingReceiver();
+        try {
+            new FrameReplayer(file, receiver).replay(FrameReplayer.FULL_SPEED);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, receiver.frames.size());
+    }
+
+    private void write(final byte[] contents) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(contents);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] frame(final int id,
+                                final int length) {
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++) {
+            frame[i] = (byte) (id + i);
+        }
+        return frame;
+    }
+
+    private static class CollectingReceiver extends OscReceiver {
+        private final List<byte[]> frames = new ArrayList<byte[]>();
+
+        @Override
+        public void receive(final byte[] data,
+                            final int length) {
+            frames.add(Arrays.copyOf(data, length));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import edu.rpi.twc.sesamestream.QueryEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.Value;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class KnowledgeIndexTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private static final String NAME = "http://xmlns.com/foaf/0.1/name";
+
+    private final ValueFactoryImpl valueFactory = ValueFactoryImpl.getInstance();
+
+    private File file;
+    private final List<KnowledgeIndex> opened = new ArrayList<KnowledgeIndex>();
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("index", ".bin");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (KnowledgeIndex index : opened) {
+            index.close();
+        }
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void harvestedFactsArePersistedAndPushedAfterRestart() throws Exception {
+        KnowledgeIndex index = open(KnowledgeIndex.DEFAULT_MAX_AGE_MS);
+        Engine engine = new Engine();
+        index.attach(new QueryWindow(engine.proxy(), 0));
+        engine.answer(person("alice"), valueFactory.createLiteral("Alice"));
+        engine.answer(person("bob"), valueFactory.createLiteral("Bob"));
+        assertEquals(2, index.getFactCount());
+        index.close();
+
+        KnowledgeIndex restarted = open(KnowledgeIndex.DEFAULT_MAX_AGE_MS);
+        restarted.load();
+        assertEquals(2, restarted.getFactCount());
+
+        Engine other = new Engine();
+        restarted.attach(new QueryWindow(other.proxy(), 0));
+        assertEquals(2, other.pushed.size());
+        // facts are pushed with their remaining lifetimes, never without a time-to-live
+        for (int ttl : other.pushedTtls) {
+            assertTrue(ttl > 0);
+        }
+    }
+
+    @Test
+    public void factsNotSeenAgainExpire() throws Exception {
+        KnowledgeIndex index = open(1000);
+        Engine engine = new Engine();
+        index.attach(new QueryWindow(engine.proxy(), 0));
+        engine.answer(person("alice"), valueFactory.createLiteral("Alice"));
+        index.close();
+
+        Thread.sleep(1200);
+
+        KnowledgeIndex restarted = open(1000);
+        restarted.load();
+        assertEquals(0, restarted.getFactCount());
+        assertEquals(1, restarted.getExpired());
+    }
+
+    @Test
+    public void factSeenAgainIsSavedWithItsNewLifetime() throws Exception {
+        KnowledgeIndex index = open(1000);
+        Engine engine = new Engine();
+        index.attach(new QueryWindow(engine.proxy(), 0));
+        engine.answer(person("alice"), valueFactory.createLiteral("Alice"));
+        awaitSave(0);
+
+        Thread.sleep(600);
+        // backdated, so that the next save is seen regardless of the resolution of modification times
+        long backdated = file.lastModified() - 10000;
+        assertTrue(file.setLastModified(backdated));
+        // the fact is seen again, so the index does not grow, but the fact's lifetime starts over
+        engine.answer(person("alice"), valueFactory.createLiteral("Alice"));
+        assertEquals(1, index.getFactCount());
+        awaitSave(backdated);
+
+        // older than the maximum age since it was first seen, but not since it was last seen
+        Thread.sleep(600);
+        KnowledgeIndex restarted = open(1000);
+        restarted.load();
+        assertEquals(1, restarted.getFactCount());
+    }
+
+    private KnowledgeIndex open(final long maxAge) {
+        KnowledgeIndex index = new KnowledgeIndex(file, Collections.singletonList(NAME));
+        index.setMaxAge(maxAge);
+        index.setSaveDelayMillis(10);
+        opened.add(index);
+        return index;
+    }
+
+    // waits for the scheduled save which follows a change, which is seen as a new modification time
+    private void awaitSave(final long before) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!file.exists() || file.lastModified() == before) {
+            assertTrue("index was not saved", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private Value person(final String id) {
+        return valueFactory.createURI("http://example.org/person/" + id);
+    }
+
+    // a stand-in for the engine, which records the facts pushed into it, and through which the index's queries
+    // are answered by hand
+    private static class Engine implements InvocationHandler {
+        private final List<BindingSetHandler> handlers = new ArrayList<BindingSetHandler>();
+        private final List<Statement> pushed = new ArrayList<Statement>();
+        private final List<Integer> pushedTtls = new ArrayList<Integer>();
+
+        private QueryEngine proxy() {
+            return (QueryEngine) Proxy.newProxyInstance(
+                    QueryEngine.class.getClassLoader(), new Class[]{QueryEngine.class}, this);
+        }
+
+        public Object invoke(final Object proxy,
+                             final Method method,
+                             final Object[] args) {
+            if (method.getName().equals("addQuery")) {
+                handlers.add((BindingSetHandler) args[2]);
+            } else if (method.getName().equals("addStatements")) {
+                Statement[] statements = (Statement[]) args[1];
+                pushed.addAll(Arrays.asList(statements));
+                for (int i = 0; i < statements.length; i++) {
+                    pushedTtls.add((Integer) args[0]);
+                }
+            }
+            return null;
+        }
+
+        private void answer(final Value subject,
+                            final Value object) {
+            MapBindingSet bindings = new MapBindingSet();
+            bindings.addBinding("s", subject);
+            bindings.addBinding("o", object);
+            for (BindingSetHandler h : handlers) {
+                h.handle(bindings);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class NotificationDecoderTest {
+
+    @Test
+    public void framedMessagesSplitAtAnyByteAreDecoded() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<String>();
+        frame(stream, NotificationDecoder.TYPE_QUERY_RESULT, "first", expected);
+        frame(stream, NotificationDecoder.TYPE_TEXT, "", expected);
+        // a payload longer than 255 bytes, so that both bytes of the length matter
+        frame(stream, NotificationDecoder.TYPE_QUERY_RESULT, repeat('x', 300), expected);
+        frame(stream, NotificationDecoder.TYPE_TEXT, "last", expected);
+        byte[] bytes = stream.toByteArray();
+
+        for (int split = 0; split <= bytes.length; split++) {
+            Collector collector = new Collector();
+            NotificationDecoder decoder = new NotificationDecoder(NotificationDecoder.Protocol.FRAMED, collector);
+            feed(decoder, bytes, 512, split, bytes.length - split);
+
+            assertEquals("split at " + split, expected, collector.messages);
+            assertEquals(expected.size(), decoder.getMessages());
+        }
+    }
+
+    @Test
+    public void framedMessagesFedOneByteAtATimeAreDecoded() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 10; i++) {
+            frame(stream, i % 2, "message " + i, expected);
+        }
+        byte[] bytes = stream.toByteArray();
+
+        int[] chunks = new int[bytes.length];
+        Arrays.fill(chunks, 1);
+        Collector collector = new Collector();
+        feed(new NotificationDecoder(NotificationDecoder.Protocol.FRAMED, collector), bytes, 64, chunks);
+
+        assertEquals(expected, collector.messages);
+    }
+
+    @Test
+    public void largestFrameFitsInMaximumBuffer() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<String>();
+        frame(stream, NotificationDecoder.TYPE_QUERY_RESULT, repeat('y', 0xFFFF), expected);
+        byte[] bytes = stream.toByteArray();
+        assertEquals(NotificationDecoder.MAX_FRAME_BYTES, bytes.length);
+
+        Collector collector = new Collector();
+        NotificationDecoder decoder = new NotificationDecoder(NotificationDecoder.Protocol.FRAMED, collector);
+        feed(decoder, bytes, NotificationDecoder.MAX_FRAME_BYTES, 2, 1000, bytes.length - 1002);
+
+        assertEquals(expected, collector.messages);
+    }
+
+    @Test
+    public void linesSplitAtAnyByteAreDecoded() throws Exception {
+        // includes a CRLF, which may be split between its two bytes, and an empty line
+        byte[] bytes = "first line\r\n\nsecond line\nthird\r\n".getBytes("UTF-8");
+        List<String> expected = Arrays.asList("0:first line", "0:", "0:second line", "0:third");
+
+        for (int split = 0; split <= bytes.length; split++) {
+            Collector collector = new Collector();
+            NotificationDecoder decoder = new NotificationDecoder(NotificationDecoder.Protocol.LINES, collector);
+            feed(decoder, bytes, 64, split, bytes.length - split);
+
+            assertEquals("split at " + split, expected, collector.messages);
+        }
+    }
+
+    @Test
+    public void incompleteMessageIsLeftInBuffer() throws Exception {
+        Collector collector = new Collector();
+        NotificationDecoder decoder = new NotificationDecoder(NotificationDecoder.Protocol.FRAMED, collector);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<String> expected = new ArrayList<String>();
+        frame(stream, NotificationDecoder.TYPE_TEXT, "complete", expected);
+        int complete = stream.size();
+        frame(stream, NotificationDecoder.TYPE_TEXT, "incomplete", new ArrayList<String>());
+        byte[] bytes = stream.toByteArray();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+        assertEquals(1, decoder.decode(buffer));
+        assertEquals(expected, collector.messages);
+        assertEquals(complete, buffer.position());
+        assertEquals(bytes.length - 1, buffer.limit());
+    }
+
+    // passes the stream to the decoder in chunks of the given sizes, handling the buffer as the listener does
+    private static void feed(final NotificationDecoder decoder,
+                             final byte[] stream,
+                             final int bufferSize,
+                             final int... chunks) {
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        int offset = 0;
+        for (int size : chunks) {
+            buffer.put(stream, offset, size);
+            offset += size;
+            buffer.flip();
+            decoder.decode(buffer);
+            buffer.compact();
+        }
+        assertEquals(stream.length, offset);
+        assertEquals("bytes left undecoded", 0, buffer.position());
+    }
+
+    private static void frame(final ByteArrayOutputStream stream,
+                              final int type,
+                              final String payload,
+                              final List<String> expected) throws Exception {
+        byte[] bytes = payload.getBytes("UTF-8");
+        stream.write(type);
+        stream.write(bytes.length >> 8);
+        stream.write(bytes.length & 0xFF);
+        stream.write(bytes);
+        expected.add(type + ":" + payload);
+    }
+
+    private static String repeat(final char c,
+                                 final int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static class Collector implements NotificationDecoder.Handler {
+        private final List<String> messages = new ArrayList<String>();
+
+        public void handle(final int type,
+                           final ByteBuffer payload) {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            try {
+                messages.add(type + ":" + new String(bytes, "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class NotificationToneGeneratorTest {
+    private static final int SAMPLE_RATE = 8000;
+
+    @Test
+    public void earconLengthIncludesNotesAndGaps() {
+        // 60 ms
+        assertEquals(480, NotificationToneGenerator.render(NotificationToneGenerator.Earcon.TONE, SAMPLE_RATE).length);
+        // 50 ms, a 20 ms gap, then 70 ms
+        assertEquals(1120,
+                NotificationToneGenerator.render(NotificationToneGenerator.Earcon.PERSON, SAMPLE_RATE).length);
+    }
+
+    @Test
+    public void gapBetweenNotesIsSilent() {
+        short[] samples = NotificationToneGenerator.render(NotificationToneGenerator.Earcon.PERSON, SAMPLE_RATE);
+        for (int i = 400; i < 560; i++) {
+            assertEquals("sample " + i, 0, samples[i]);
+        }
+    }
+
+    @Test
+    public void earconsFadeInAndOutWithinHeadroom() {
+        for (NotificationToneGenerator.Earcon e : NotificationToneGenerator.Earcon.values()) {
+            short[] samples = NotificationToneGenerator.render(e, SAMPLE_RATE);
+            assertEquals(e + " starts silent", 0, samples[0]);
+            assertEquals(e + " ends silent", 0, samples[samples.length - 1]);
+
+            int peak = 0;
+            for (short s : samples) {
+                peak = Math.max(peak, Math.abs(s));
+            }
+            // audible, but at no more than half of full scale, so that mixed earcons rarely clip
+            assertTrue(e + " peak " + peak, peak > Short.MAX_VALUE / 4);
+            assertTrue(e + " peak " + peak, peak <= Short.MAX_VALUE / 2);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class OscDeliveryPolicyTest {
+    private final OscDeliveryPolicy policy = new OscDeliveryPolicy(
+            Arrays.asList("/exo/hand/motion", "/exo/tt/photo/data"));
+
+    @Test
+    public void latestValueAddressesHaveTheirOwnKeys() throws Exception {
+        assertEquals(2, policy.getNumberOfLatestValueKeys());
+
+        assertKey(0, "/exo/hand/motion");
+        assertKey(1, "/exo/tt/photo/data");
+    }
+
+    @Test
+    public void extendedAddressesMatch() throws Exception {
+        assertKey(1, "/exo/tt/photo/data/raw");
+        assertKey(0, "/exo/hand/motion/x");
+    }
+
+    @Test
+    public void otherMessagesAreAlwaysDelivered() throws Exception {
+        assertKey(OscDeliveryPolicy.DELIVER_ALL, "/exo/hand/gesture");
+        assertKey(OscDeliveryPolicy.DELIVER_ALL, "/exo/tt/keys");
+        // a common prefix which is not a whole part of the address
+        assertKey(OscDeliveryPolicy.DELIVER_ALL, "/exo/tt/photo/datum");
+        assertKey(OscDeliveryPolicy.DELIVER_ALL, "/exo/hand");
+        assertKey(OscDeliveryPolicy.DELIVER_ALL, "#bundle");
+    }
+
+    @Test
+    public void shortPacketsAreDelivered() throws Exception {
+        byte[] data = message("/exo/tt/photo/data");
+        // the packet ends before the address could be terminated
+        assertEquals(OscDeliveryPolicy.DELIVER_ALL, policy.getKey(data, "/exo/tt/photo/data".length()));
+        assertEquals(OscDeliveryPolicy.DELIVER_ALL, policy.getKey(data, 0));
+    }
+
+    @Test
+    public void defaultPolicyDeliversEverything() throws Exception {
+        assertEquals(0, OscDeliveryPolicy.DELIVER_ALL_POLICY.getNumberOfLatestValueKeys());
+        byte[] data = message("/exo/tt/photo/data");
+        assertEquals(OscDeliveryPolicy.DELIVER_ALL, OscDeliveryPolicy.DELIVER_ALL_POLICY.getKey(data, data.length));
+    }
+
+    @Test
+    public void invalidAddressesAreRejected() {
+        try {
+            new OscDeliveryPolicy(Collections.singletonList("exo/tt/photo/data"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private void assertKey(final int expected,
+                           final String address) throws Exception {
+        byte[] data = message(address);
+        assertEquals(address, expected, policy.getKey(data, data.length));
+    }
+
+    // an OSC message with the given address, a padded type tag string, and one integer argument
+    private static byte[] message(final String address) throws Exception {
+        byte[] a = address.getBytes("US-ASCII");
+        int padded = (a.length / 4 + 1) * 4;
+        byte[] data = new byte[padded + 4 + 4];
+        System.arraycopy(a, 0, data, 0, a.length);
+        data[padded] = ',';
+        data[padded + 1] = 'i';
+        data[data.length - 1] = 42;
+        return data;
+    }
+}
@@ -0,0 +1,241 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class OutboxTest {
+    private static final long TIMEOUT_MS = 10000;
+
+    private final ValueFactoryImpl valueFactory = ValueFactoryImpl.getInstance();
+
+    private File directory;
+    private final List<Outbox> opened = new ArrayList<Outbox>();
+    private final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws IOException {
+        BrainstemLog.setSink(new BrainstemLog.Sink() {
+            public void log(final BrainstemLog.Level level,
+                            final String tag,
+                            final String message) {
+                if (BrainstemLog.Level.INFO != level) {
+                    warnings.add(message);
+                }
+            }
+        });
+
+        directory = File.createTempFile("outbox", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BrainstemLog.setSink(null);
+        for (Outbox o : opened) {
+            o.close();
+        }
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void batchesAreDrainedInOrder() throws Exception {
+        TestLink link = new TestLink(true);
+        Outbox outbox = open(link);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(outbox.append(batch(i), 60));
+        }
+
+        link.awaitReceived(5);
+        assertEquals(list(0, 1, 2, 3, 4), link.received);
+        assertEquals(60, link.lastTtl);
+        awaitEmpty(outbox);
+    }
+
+    @Test
+    public void pendingBatchesAreRecoveredAfterRestart() throws Exception {
+        Outbox outbox = open(new TestLink(false));
+        for (int i = 0; i < 3; i++) {
+            outbox.append(batch(i), 0);
+        }
+        assertFalse(outbox.isEmpty());
+        close(outbox);
+
+        // not yet connected, so that nothing is drained before the recovered batches are counted
+        TestLink link = new TestLink(false);
+        Outbox recovered = open(link);
+        assertEquals(3, recovered.getPending());
+
+        link.connected = true;
+        link.awaitReceived(3);
+        assertEquals(list(0, 1, 2), link.received);
+        awaitEmpty(recovered);
+    }
+
+    @Test
+    public void drainedBatchesAreNotSentAgainAfterRestart() throws Exception {
+        TestLink link = new TestLink(true);
+        Outbox outbox = open(link);
+        outbox.append(batch(0), 0);
+        outbox.append(batch(1), 0);
+        link.awaitReceived(2);
+        awaitEmpty(outbox);
+        close(outbox);
+
+        Outbox reopened = open(new TestLink(false));
+        assertEquals(0, reopened.getPending());
+        assertTrue(reopened.isEmpty());
+    }
+
+    @Test
+    public void tornRecordIsTruncatedOnRecovery() throws Exception {
+        Outbox outbox = open(new TestLink(false));
+        outbox.append(batch(0), 0);
+        outbox.append(batch(1), 0);
+        close(outbox);
+
+        File segment = onlySegment();
+        long validLength = segment.length();
+
+        // a record whose header promises more bytes than follow it, as if the app died in the middle of a write
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(segment, true));
+        try {
+            out.writeInt(100);
+            out.writeInt(0);
+            out.writeInt(12345);
+            out.write(new byte[10]);
+        } finally {
+            out.close();
+        }
+
+        TestLink link = new TestLink(false);
+        Outbox recovered = open(link);
+        assertEquals(2, recovered.getPending());
+        assertEquals(validLength, segment.length());
+        assertEquals(1, warnings.size());
+        assertTrue(warnings.get(0).startsWith("discarding 22 bytes"));
+
+        // a batch appended after recovery follows the surviving ones, rather than the discarded bytes
+        recovered.append(batch(2), 0);
+        link.connected = true;
+        link.awaitReceived(3);
+        assertEquals(list(0, 1, 2), link.received);
+        awaitEmpty(recovered);
+    }
+
+    @Test
+    public void batchesAreRejectedWhenClosed() throws Exception {
+        Outbox outbox = open(new TestLink(false));
+        close(outbox);
+
+        assertFalse(outbox.append(batch(0), 0));
+        assertEquals(1, outbox.getDropped());
+    }
+
+    private Outbox open(final TestLink link) throws IOException {
+        Outbox outbox = new Outbox(directory, link);
+        outbox.setCommitIntervalMillis(10);
+        outbox.setDrainRate(1000);
+        outbox.open();
+        opened.add(outbox);
+        return outbox;
+    }
+
+    private void close(final Outbox outbox) throws InterruptedException {
+        outbox.close();
+        opened.remove(outbox);
+    }
+
+    private File onlySegment() {
+        File segment = null;
+        for (File f : directory.listFiles()) {
+            if (f.getName().endsWith(".seg")) {
+                assertNull(segment);
+                segment = f;
+            }
+        }
+        assertNotNull(segment);
+        return segment;
+    }
+
+    private Collection<Statement> batch(final int id) {
+        return Collections.singletonList(valueFactory.createStatement(
+                valueFactory.createURI("http://example.org/batch"),
+                valueFactory.createURI("http://example.org/id"),
+                valueFactory.createLiteral("" + id)));
+    }
+
+    private static void awaitEmpty(final Outbox outbox) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!outbox.isEmpty()) {
+            assertTrue("outbox still has " + outbox.getPending() + " batches",
+                    System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<Integer> list(final Integer... ids) {
+        List<Integer> l = new ArrayList<Integer>();
+        Collections.addAll(l, ids);
+        return l;
+    }
+
+    private static class TestLink implements Outbox.Link {
+        private volatile boolean connected;
+        private final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        private volatile int lastTtl;
+
+        private TestLink(final boolean connected) {
+            this.connected = connected;
+        }
+
+        public boolean isConnected() {
+            return connected;
+        }
+
+        public void send(final Collection<Statement> statements,
+                         final int ttl) throws Exception {
+            for (Statement s : statements) {
+                received.add(Integer.valueOf(s.getObject().stringValue()));
+            }
+            lastTtl = ttl;
+        }
+
+        private void awaitReceived(final int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (received.size() < count) {
+                assertTrue("received only " + received.size() + " of " + count + " batches",
+                        System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+        }
+    }
+}
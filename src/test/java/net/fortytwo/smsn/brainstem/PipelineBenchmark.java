@@ -0,0 +1,270 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import net.fortytwo.smsn.hand.ExtendoHandControl;
+import net.fortytwo.smsn.p2p.SideEffects;
+import net.fortytwo.smsn.p2p.osc.OscReceiver;
+import net.fortytwo.smsn.rdf.Activities;
+import net.fortytwo.smsn.typeatron.TypeatronControl;
+import org.openrdf.query.BindingSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A desktop benchmark of the gesture-to-answer pipeline: OSC messages from a capture file (see
+ * {@link FrameRecorder}) are replayed as fast as possible through an OSC receiver, the Extend-o-Hand and
+ * Typeatron controls, and a {@link BatchingAgent} which adds their datasets to the query engine through a
+ * {@link QueryWindow} with the Brainstem's four queries, as on the device.
+ * Reports packets, statements and answers per second, and the latency from the arrival of a packet to the handler
+ * which receives the answer it produced.
+ * <p>
+ * Usage: <code>PipelineBenchmark [capture-file | -] [warmup-iterations] [measured-iterations]</code>.
+ * Without a capture file, or with "-", a synthetic capture is generated: ten seconds of motion and light readings,
+ * pointing gestures and keystrokes, addressed as the devices address them.  A capture recorded from the devices
+ * remains the more faithful workload.
+ * The window is reset before each iteration, so that every iteration starts from the same state.
+ * Log messages are counted rather than written while the benchmark runs.
+ * This class is not part of the app; it runs on any JVM with the test classpath.
+ *
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class PipelineBenchmark {
+    private static final int
+            DEFAULT_WARMUP_ITERATIONS = 5,
+            DEFAULT_MEASURED_ITERATIONS = 10;
+
+    private static final String SYNTHETIC = "-";
+
+    // the synthetic capture: its length, and the rates of its streams, in messages per second
+    private static final int
+            SYNTHETIC_SECONDS = 10,
+            MOTION_RATE = 100,
+            PHOTO_RATE = 50,
+            GESTURE_RATE = 1,
+            KEYSTROKE_RATE = 2;
+
+    private static final String[] QUERIES = {
+            Activities.QUERY_FOR_ALL_GB_GESTURES,
+            Activities.QUERY_FOR_THINGS_POINTED_TO,
+            Activities.QUERY_FOR_THINGS_POINTED_TO_WITH_COMMON_ORG,
+            Activities.QUERY_FOR_THINGS_POINTED_TO_WITH_COMMON_INTEREST};
+
+    private final File captureFile;
+    private final BatchingAgent agent;
+    private final QueryWindow window;
+    private final TimingReceiver receiver;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong answers = new AtomicLong();
+    private final AtomicLong logMessages = new AtomicLong();
+
+    private volatile boolean recording;
+
+    private final BindingSetHandler recordingHandler = new BindingSetHandler() {
+        public void handle(final BindingSet bindings) {
+            if (recording) {
+                // answers are produced synchronously, on the thread which delivered the packet
+                latency.record(System.nanoTime() - receiver.lastReceivedAt);
+                answers.incrementAndGet();
+            }
+        }
+    };
+
+    public PipelineBenchmark(final File captureFile) throws Exception {
+        this.captureFile = captureFile;
+
+        // no service discovery, which is not part of the pipeline
+        agent = new BatchingAgent(false);
+        window = new QueryWindow(agent.getQueryEngine(), 0);
+        for (int i = 0; i < QUERIES.length; i++) {
+            window.addQuery("query " + i, QUERIES[i], recordingHandler);
+        }
+        agent.setQueryWindow(window);
+        receiver = new TimingReceiver();
+
+        SideEffects sideEffects = new SideEffects() {
+            public void speak(final String message) {
+                // silent
+            }
+
+            public void setStatus(final String message) {
+                // silent
+            }
+        };
+
+        // the controls register their OSC handlers with the receiver
+        new ExtendoHandControl(receiver, agent);
+        new TypeatronControl(receiver, agent, sideEffects);
+    }
+
+    /**
+     * Runs a single iteration
+     *
+     * @param record whether to record answers and latencies
+     * @return the number of packets replayed, the number of statements added to the query engine,
+     * and the elapsed time in nanoseconds
+     */
+    public long[] runIteration(final boolean record) throws Exception {
+        window.reset();
+        recording = record;
+
+        BrainstemLog.setSink(new BrainstemLog.Sink() {
+            public void log(final BrainstemLog.Level level,
+                            final String tag,
+                            final String message) {
+                logMessages.incrementAndGet();
+            }
+        });
+
+        FrameReplayer replayer = new FrameReplayer(captureFile, receiver);
+        long statementsBefore = window.getEventsAdded();
+        long start = System.nanoTime();
+        long packets;
+        try {
+            packets = replayer.replay(FrameReplayer.FULL_SPEED);
+        } finally {
+            BrainstemLog.setSink(null);
+        }
+        long elapsed = System.nanoTime() - start;
+        agent.flush();
+        return new long[]{packets, window.getEventsAdded() - statementsBefore, elapsed};
+    }
+
+    /**
+     * Writes a synthetic capture of the devices' OSC traffic, with frames spaced as they would arrive
+     *
+     * @param file the file to write
+     * @return the number of frames written
+     */
+    public static long writeSyntheticCapture(final File file) throws IOException {
+        FrameRecorder recorder = new FrameRecorder(file);
+        try {
+            long start = System.nanoTime();
+            // one tick per millisecond; each stream is due every 1000 / rate ticks
+            for (int tick = 0; tick < SYNTHETIC_SECONDS * 1000; tick++) {
+                long time = start + tick * 1000000L;
+                if (0 == tick % (1000 / MOTION_RATE)) {
+                    record(recorder, time, oscMessage("/exo/hand/motion",
+                            (float) Math.sin(tick / 100.0), (float) Math.cos(tick / 100.0), 9.8f));
+                }
+                if (0 == tick % (1000 / PHOTO_RATE)) {
+                    record(recorder, time, oscMessage("/exo/tt/photo/data", 512 + tick % 64));
+                }
+                if (0 == tick % (1000 / GESTURE_RATE)) {
+                    record(recorder, time, oscMessage("/exo/hand/gesture"));
+                }
+                // a key pressed, then released 100ms later
+                if (0 == tick % (1000 / KEYSTROKE_RATE)) {
+                    record(recorder, time, oscMessage("/exo/tt/keys", "10000"));
+                } else if (100 == tick % (1000 / KEYSTROKE_RATE)) {
+                    record(recorder, time, oscMessage("/exo/tt/keys", "00000"));
+                }
+            }
+            return recorder.getFramesRecorded();
+        } finally {
+            recorder.close();
+        }
+    }
+
+    private static void record(final FrameRecorder recorder,
+                               final long time,
+                               final byte[] message) throws IOException {
+        recorder.record(message, message.length, time);
+    }
+
+    // encodes an OSC message with int32, float32 and string arguments
+    private static byte[] oscMessage(final String address,
+                                     final Object... args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        oscString(out, address);
+        StringBuilder tags = new StringBuilder(",");
+        for (Object a : args) {
+            tags.append(a instanceof Integer ? 'i' : a instanceof Float ? 'f' : 's');
+        }
+        oscString(out, tags.toString());
+        for (Object a : args) {
+            if (a instanceof Integer) {
+                out.writeInt((Integer) a);
+            } else if (a instanceof Float) {
+                out.writeFloat((Float) a);
+            } else {
+                oscString(out, a.toString());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    // a null-terminated string, padded with nulls to a multiple of four bytes
+    private static void oscString(final DataOutputStream out,
+                                  final String s) throws IOException {
+        byte[] b = s.getBytes("US-ASCII");
+        out.write(b);
+        for (int i = b.length; i < (b.length / 4 + 1) * 4; i++) {
+            out.write(0);
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length > 3) {
+            System.err.println("usage: PipelineBenchmark [capture-file | -] [warmup-iterations] [measured-iterations]");
+            System.exit(1);
+        }
+
+        File file;
+        if (0 == args.length || SYNTHETIC.equals(args[0])) {
+            file = File.createTempFile("synthetic", ".slipcap");
+            file.deleteOnExit();
+            System.out.println("synthetic capture of " + writeSyntheticCapture(file) + " frames");
+        } else {
+            file = new File(args[0]);
+        }
+        int warmup = args.length > 1 ? Integer.valueOf(args[1]) : DEFAULT_WARMUP_ITERATIONS;
+        int measured = args.length > 2 ? Integer.valueOf(args[2]) : DEFAULT_MEASURED_ITERATIONS;
+
+        PipelineBenchmark benchmark = new PipelineBenchmark(file);
+
+        for (int i = 0; i < warmup; i++) {
+            benchmark.runIteration(false);
+        }
+
+        long totalPackets = 0;
+        long totalStatements = 0;
+        long totalNanos = 0;
+        for (int i = 0; i < measured; i++) {
+            long before = benchmark.answers.get();
+            long[] result = benchmark.runIteration(true);
+            totalPackets += result[0];
+            totalStatements += result[1];
+            totalNanos += result[2];
+            System.out.println("iteration " + (i + 1) + ": " + result[0] + " packets, " + result[1] + " statements, "
+                    + (benchmark.answers.get() - before) + " answers in " + result[2] / 1000000 + "ms");
+        }
+
+        double seconds = totalNanos / 1e9;
+        System.out.println("capture: " + file + ", " + warmup + " warmup and " + measured + " measured iterations");
+        System.out.println("packets/s: " + (long) (totalPackets / seconds));
+        System.out.println("statements/s: " + (long) (totalStatements / seconds));
+        System.out.println("answers/s: " + (long) (benchmark.answers.get() / seconds));
+        System.out.println("packet-to-answer latency us: " + benchmark.latency.summarize(1000));
+        System.out.println("log messages: " + benchmark.logMessages.get());
+        System.exit(0);
+    }
+
+    // notes the time at which each packet arrives, before it is dispatched to the device controls
+    private static class TimingReceiver extends OscReceiver {
+        private volatile long lastReceivedAt;
+
+        @Override
+        public void receive(final byte[] data,
+                            final int length) {
+            lastReceivedAt = System.nanoTime();
+            super.receive(data, length);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import edu.rpi.twc.sesamestream.QueryEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openrdf.query.BindingSet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryCatalogTest {
+    private static final String
+            SELECT_A = "SELECT ?a WHERE { ?a ?p ?o }",
+            SELECT_B = "SELECT ?b WHERE { ?s ?p ?b }";
+
+    private File file;
+    private Engine engine;
+    private QueryWindow window;
+    private QueryCatalog catalog;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("queries", ".properties");
+        assertTrue(file.delete());
+
+        engine = new Engine();
+        window = new QueryWindow(engine.proxy(), 0);
+        catalog = new QueryCatalog(window, file);
+        for (String name : new String[]{"tone", "tone-person", "log-result", "log-pointed-to",
+                "speak-common-org", "speak-common-interest"}) {
+            catalog.registerHandler(name, new NullHandler());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        catalog.stopWatching();
+        file.delete();
+    }
+
+    @Test
+    public void defaultsAreLoadedWhenThereIsNoFile() throws Exception {
+        catalog.load();
+
+        assertTrue(window.getQueryNames().contains("gestures"));
+        assertTrue(window.getQueryNames().contains("pointed-to"));
+        assertEquals(window.getQueryNames().size(), engine.queries.size());
+    }
+
+    @Test
+    public void invalidDeclarationsAreSkipped() throws Exception {
+        write("query.a.sparql = " + SELECT_A,
+                "query.a.handlers = tone",
+                "query.gestures.activity = QUERY_FOR_ALL_GB_GESTURES",
+                "query.gestures.handlers = tone, log-result",
+                "query.no-handler.sparql = " + SELECT_B,
+                "query.no-handler.handlers = no-such-handler",
+                "query.no-query.handlers = tone",
+                "query.no-activity.activity = NO_SUCH_QUERY",
+                "query.no-activity.handlers = tone",
+                "query.bad-rate.sparql = " + SELECT_B,
+                "query.bad-rate.handlers = tone",
+                "query.bad-rate.rate = fast");
+        catalog.load();
+
+        assertEquals(new HashSet<String>(Arrays.asList("a", "gestures")),
+                new HashSet<String>(window.getQueryNames()));
+        assertEquals(2, engine.queries.size());
+        assertTrue(engine.queries.contains(SELECT_A));
+        assertEquals(0, catalog.getSuppressors().size());
+    }
+
+    @Test
+    public void suppressionIsConfiguredPerQuery() throws Exception {
+        write("query.a.sparql = " + SELECT_A,
+                "query.a.handlers = tone",
+                "query.a.dedupKeys = a",
+                "query.b.sparql = " + SELECT_B,
+                "query.b.handlers = tone",
+                "query.b.rate = 0.5");
+        catalog.load();
+
+        assertEquals(2, window.getQueryNames().size());
+        assertEquals(2, catalog.getSuppressors().size());
+    }
+
+    @Test
+    public void reloadAppliesOnlyChangedDeclarations() throws Exception {
+        write("query.a.sparql = " + SELECT_A,
+                "query.a.handlers = tone",
+                "query.b.sparql = " + SELECT_B,
+                "query.b.handlers = tone");
+        catalog.load();
+        assertEquals(2, engine.queries.size());
+
+        // reloading an unchanged file leaves the engine alone
+        catalog.load();
+        assertEquals(2, engine.queries.size());
+        assertEquals(0, engine.clears);
+
+        // a changed query is removed and added again, which resets the engine, while a new query is simply added
+        write("query.a.sparql = " + SELECT_A,
+                "query.a.handlers = tone, log-result",
+                "query.b.sparql = " + SELECT_B,
+                "query.b.handlers = tone",
+                "query.c.sparql = " + SELECT_B,
+                "query.c.handlers = tone");
+        catalog.load();
+        assertEquals(1, engine.clears);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b", "c")),
+                new HashSet<String>(window.getQueryNames()));
+        // b is re-added by the reset, then a and c by the catalog
+        assertEquals(5, engine.queries.size());
+        assertEquals(SELECT_B, engine.queries.get(2));
+        assertEquals(Arrays.asList(SELECT_A, SELECT_B), sorted(engine.queries.subList(3, 5)));
+
+        // a query which is no longer declared is removed
+        write("query.b.sparql = " + SELECT_B,
+                "query.b.handlers = tone");
+        catalog.load();
+        assertEquals(2, engine.clears);
+        assertEquals(Arrays.asList("b"), new ArrayList<String>(window.getQueryNames()));
+    }
+
+    private static List<String> sorted(final List<String> queries) {
+        List<String> l = new ArrayList<String>(queries);
+        Collections.sort(l);
+        return l;
+    }
+
+    private void write(final String... lines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append("\n");
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(sb.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static class NullHandler implements BindingSetHandler {
+        public void handle(final BindingSet bindings) {
+        }
+    }
+
+    // a stand-in for the engine, which records the queries added to it since it was created
+    private static class Engine implements InvocationHandler {
+        private final List<String> queries = new ArrayList<String>();
+        private int clears;
+
+        private QueryEngine proxy() {
+            return (QueryEngine) Proxy.newProxyInstance(
+                    QueryEngine.class.getClassLoader(), new Class[]{QueryEngine.class}, this);
+        }
+
+        public Object invoke(final Object proxy,
+                             final Method method,
+                             final Object[] args) {
+            if (method.getName().equals("addQuery")) {
+                queries.add((String) args[1]);
+            } else if (method.getName().equals("clear")) {
+                clears++;
+            }
+            return null;
+        }
+    }
+}
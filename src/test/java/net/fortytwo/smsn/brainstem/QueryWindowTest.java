@@ -0,0 +1,120 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.QueryEngine;
+import org.junit.Test;
+import org.openrdf.model.Statement;
+import org.openrdf.model.impl.ValueFactoryImpl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class QueryWindowTest {
+    // one gesture every 100ms, for ten minutes
+    private static final int GESTURE_INTERVAL_MS = 100;
+    private static final int GESTURES = 10 * 60 * 1000 / GESTURE_INTERVAL_MS;
+
+    private final ValueFactoryImpl valueFactory = ValueFactoryImpl.getInstance();
+
+    @Test
+    public void eventsExpireWithoutConfiguration() throws Exception {
+        ExpiringEngine engine = new ExpiringEngine();
+        QueryWindow window = new QueryWindow(engine.proxy(), 0);
+
+        for (int i = 0; i < GESTURES; i++) {
+            engine.now += GESTURE_INTERVAL_MS;
+            window.addEvent(gesture(i));
+            assertEquals((int) (QueryWindow.DEFAULT_WINDOW_MS / 1000), engine.lastTtl);
+        }
+
+        assertEquals(GESTURES, window.getEventsAdded());
+        // only the gestures of the last window remain in the engine, and it was never cleared to get there
+        long perWindow = QueryWindow.DEFAULT_WINDOW_MS / GESTURE_INTERVAL_MS;
+        assertTrue("engine retains " + engine.retained.size() + " events",
+                engine.retained.size() <= perWindow + 1);
+        assertTrue(engine.peak <= perWindow + 1);
+        assertEquals(0, engine.clears);
+        assertEquals(0, window.getCountResets());
+        assertEquals(0, window.getHeapResets());
+    }
+
+    @Test
+    public void zeroWindowKeepsEvents() throws Exception {
+        ExpiringEngine engine = new ExpiringEngine();
+        QueryWindow window = new QueryWindow(engine.proxy(), 0);
+        window.setWindowMillis(0);
+
+        for (int i = 0; i < 100; i++) {
+            engine.now += GESTURE_INTERVAL_MS * 1000;
+            window.addEvent(gesture(i));
+        }
+
+        assertEquals(0, engine.lastTtl);
+        assertEquals(100, engine.retained.size());
+    }
+
+    @Test
+    public void windowIsRoundedUpToWholeSeconds() throws Exception {
+        ExpiringEngine engine = new ExpiringEngine();
+        QueryWindow window = new QueryWindow(engine.proxy(), 0);
+        window.setWindowMillis(1500);
+
+        window.addEvent(gesture(0));
+        assertEquals(2, engine.lastTtl);
+    }
+
+    private Statement gesture(final int id) {
+        return valueFactory.createStatement(
+                valueFactory.createURI("http://example.org/gesture" + id),
+                valueFactory.createURI("http://example.org/id"),
+                valueFactory.createLiteral("" + id));
+    }
+
+    // a stand-in for the engine, which expires statements at the end of their time-to-live, on a simulated clock
+    private static class ExpiringEngine implements InvocationHandler {
+        private final LinkedList<Long> retained = new LinkedList<Long>();
+        private long now;
+        private int lastTtl = -1;
+        private int peak;
+        private int clears;
+
+        private QueryEngine proxy() {
+            return (QueryEngine) Proxy.newProxyInstance(
+                    QueryEngine.class.getClassLoader(), new Class[]{QueryEngine.class}, this);
+        }
+
+        public Object invoke(final Object proxy,
+                             final Method method,
+                             final Object[] args) {
+            if (method.getName().equals("addStatements")) {
+                lastTtl = (Integer) args[0];
+                expire();
+                for (int i = 0; i < ((Statement[]) args[1]).length; i++) {
+                    retained.add(0 == lastTtl ? Long.MAX_VALUE : now + lastTtl * 1000L);
+                }
+                peak = Math.max(peak, retained.size());
+            } else if (method.getName().equals("clear")) {
+                retained.clear();
+                clears++;
+            }
+            return null;
+        }
+
+        private void expire() {
+            Iterator<Long> i = retained.iterator();
+            while (i.hasNext()) {
+                if (i.next() <= now) {
+                    i.remove();
+                }
+            }
+        }
+    }
+}
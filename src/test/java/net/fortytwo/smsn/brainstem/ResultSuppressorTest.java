@@ -0,0 +1,131 @@
+package net.fortytwo.smsn.brainstem;
+
+import edu.rpi.twc.sesamestream.BindingSetHandler;
+import org.junit.Test;
+import org.openrdf.model.impl.ValueFactoryImpl;
+import org.openrdf.query.BindingSet;
+import org.openrdf.query.impl.MapBindingSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class ResultSuppressorTest {
+    private final ValueFactoryImpl valueFactory = ValueFactoryImpl.getInstance();
+    private final List<BindingSet> received = new ArrayList<BindingSet>();
+    private final BindingSetHandler collector = new BindingSetHandler() {
+        public void handle(final BindingSet bindings) {
+            received.add(bindings);
+        }
+    };
+
+    @Test
+    public void repeatedKeyIsSuppressedWithinWindow() {
+        ResultSuppressor suppressor = new ResultSuppressor(
+                "test", Arrays.asList("person"), 60000, 0, 0, collector);
+
+        suppressor.handle(result("alice", "1"));
+        suppressor.handle(result("alice", "2"));
+        suppressor.handle(result("bob", "3"));
+
+        assertEquals(2, received.size());
+        assertEquals("1", received.get(0).getValue("x").stringValue());
+        assertEquals("3", received.get(1).getValue("x").stringValue());
+        assertEquals(2, suppressor.getPassed());
+        assertEquals(1, suppressor.getDuplicates());
+        assertEquals(0, suppressor.getRateLimited());
+    }
+
+    @Test
+    public void keyIsPassedAgainAfterWindow() throws Exception {
+        ResultSuppressor suppressor = new ResultSuppressor(
+                "test", Arrays.asList("person"), 50, 0, 0, collector);
+
+        suppressor.handle(result("alice", "1"));
+        Thread.sleep(100);
+        suppressor.handle(result("alice", "2"));
+
+        assertEquals(2, received.size());
+        assertEquals(0, suppressor.getDuplicates());
+    }
+
+    @Test
+    public void keyIsMadeOfAllKeyBindings() {
+        ResultSuppressor suppressor = new ResultSuppressor(
+                "test", Arrays.asList("person", "x"), 60000, 0, 0, collector);
+
+        suppressor.handle(result("alice", "1"));
+        suppressor.handle(result("alice", "2"));
+        suppressor.handle(result("alice", "1"));
+
+        assertEquals(2, received.size());
+        assertEquals(1, suppressor.getDuplicates());
+    }
+
+    @Test
+    public void emptyKeyDisablesDeduplication() {
+        ResultSuppressor suppressor = new ResultSuppressor(
+                "test", Collections.<String>emptyList(), 60000, 0, 0, collector);
+
+        for (int i = 0; i < 10; i++) {
+            suppressor.handle(result("alice", "1"));
+        }
+
+        assertEquals(10, received.size());
+        assertEquals(0, suppressor.getDuplicates());
+    }
+
+    @Test
+    public void rateIsLimitedAfterBurst() throws Exception {
+        ResultSuppressor suppressor = new ResultSuppressor(
+                "test", Collections.<String>emptyList(), 0, 20, 3, collector);
+
+        for (int i = 0; i < 5; i++) {
+            suppressor.handle(result("alice", "" + i));
+        }
+        assertEquals(3, suppressor.getPassed());
+        assertEquals(2, suppressor.getRateLimited());
+
+        // at 20 per second, the bucket refills to no more than the burst
+        Thread.sleep(300);
+        for (int i = 0; i < 5; i++) {
+            suppressor.handle(result("alice", "" + i));
+        }
+        assertEquals(6, suppressor.getPassed());
+        assertEquals(4, suppressor.getRateLimited());
+    }
+
+    @Test
+    public void duplicatesDoNotConsumeTokens() {
+        ResultSuppressor suppressor = new ResultSuppressor(
+                "test", Arrays.asList("person"), 60000, 0.001, 2, collector);
+
+        suppressor.handle(result("alice", "1"));
+        suppressor.handle(result("alice", "2"));
+        suppressor.handle(result("bob", "3"));
+        suppressor.handle(result("carol", "4"));
+
+        assertEquals(2, suppressor.getPassed());
+        assertEquals(1, suppressor.getDuplicates());
+        assertEquals(1, suppressor.getRateLimited());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rateLimitRequiresBurstOfAtLeastOne() {
+        new ResultSuppressor("test", Collections.<String>emptyList(), 0, 1, 0, collector);
+    }
+
+    private BindingSet result(final String person,
+                              final String x) {
+        MapBindingSet bindings = new MapBindingSet();
+        bindings.addBinding("person", valueFactory.createURI("http://example.org/" + person));
+        bindings.addBinding("x", valueFactory.createLiteral(x));
+        return bindings;
+    }
+}
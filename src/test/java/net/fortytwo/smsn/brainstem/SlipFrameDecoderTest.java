@@ -0,0 +1,154 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SlipFrameDecoderTest {
+    private static final int
+            END = 0xC0,
+            ESC = 0xDB,
+            ESC_END = 0xDC,
+            ESC_ESC = 0xDD;
+
+    @Test
+    public void framesAreDecodedAndUnescaped() throws Exception {
+        SlipFramePool pool = new SlipFramePool(4, 16);
+        SlipFrameDecoder decoder = new SlipFrameDecoder(pool);
+        Collector collector = new Collector(pool);
+
+        byte[] input = bytes(END, 'a', 'b', END, 'c', ESC, ESC_END, ESC, ESC_ESC, 'd', END, END, END);
+        decoder.decode(new ByteArrayInputStream(input), collector);
+
+        assertEquals(2, collector.frames.size());
+        assertEquals("ab", new String(collector.frames.get(0), "ISO-8859-1"));
+        byte[] second = collector.frames.get(1);
+        assertEquals(4, second.length);
+        assertEquals('c', second[0]);
+        assertEquals((byte) END, second[1]);
+        assertEquals((byte) ESC, second[2]);
+        assertEquals('d', second[3]);
+        assertEquals(2, decoder.getFramesDecoded());
+        assertEquals(0, decoder.getFramesDiscarded());
+        assertEquals(4, pool.getAvailable());
+    }
+
+    @Test
+    public void decoderResynchronizesAfterOversizedFrame() throws Exception {
+        SlipFramePool pool = new SlipFramePool(2, 8);
+        SlipFrameDecoder decoder = new SlipFrameDecoder(pool);
+        Collector collector = new Collector(pool);
+
+        ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(END);
+        for (int i = 0; i < 20; i++) {
+            input.write('x');
+        }
+        // an END which is escaped within the oversized frame must not end it
+        input.write(ESC);
+        input.write(ESC_END);
+        input.write('x');
+        input.write(END);
+        input.write("ok".getBytes("ISO-8859-1"));
+        input.write(END);
+
+        decoder.decode(new ByteArrayInputStream(input.toByteArray()), collector);
+
+        assertEquals(1, collector.frames.size());
+        assertEquals("ok", new String(collector.frames.get(0), "ISO-8859-1"));
+        assertEquals(1, decoder.getFramesDecoded());
+        assertEquals(1, decoder.getFramesDiscarded());
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test
+    public void incompleteFrameIsReturnedToPoolAtEndOfStream() throws Exception {
+        SlipFramePool pool = new SlipFramePool(1, 8);
+        SlipFrameDecoder decoder = new SlipFrameDecoder(pool);
+
+        decoder.decode(new ByteArrayInputStream(bytes(END, 'a', 'b')), new Collector(pool));
+
+        assertEquals(0, decoder.getFramesDecoded());
+        assertEquals(1, pool.getAvailable());
+    }
+
+    @Test
+    public void steadyStateDecodingDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        int frames = 10000;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < frames; i++) {
+            out.write(END);
+            for (int j = 0; j < 32; j++) {
+                out.write(j);
+            }
+            out.write(ESC);
+            out.write(ESC_END);
+        }
+        out.write(END);
+        byte[] input = out.toByteArray();
+
+        final SlipFramePool pool = new SlipFramePool(4, 64);
+        SlipFrameDecoder decoder = new SlipFrameDecoder(pool);
+        SlipFrameDecoder.FrameHandler handler = new SlipFrameDecoder.FrameHandler() {
+            public void handle(final SlipFrame frame) {
+                pool.release(frame);
+            }
+        };
+
+        // warm up, so that class loading and compilation are not counted
+        for (int i = 0; i < 5; i++) {
+            decoder.decode(new ByteArrayInputStream(input), handler);
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(input);
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        decoder.decode(in, handler);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(6L * frames, decoder.getFramesDecoded());
+        // a constant overhead is tolerated, but nothing may be allocated per frame
+        assertTrue("allocated " + allocated + " bytes for " + frames + " frames", allocated < frames);
+    }
+
+    private static byte[] bytes(final int... values) {
+        byte[] b = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            b[i] = (byte) values[i];
+        }
+        return b;
+    }
+
+    private static class Collector implements SlipFrameDecoder.FrameHandler {
+        private final SlipFramePool pool;
+        private final List<byte[]> frames = new ArrayList<byte[]>();
+
+        private Collector(final SlipFramePool pool) {
+            this.pool = pool;
+        }
+
+        public void handle(final SlipFrame frame) {
+            byte[] copy = new byte[frame.getLength()];
+            System.arraycopy(frame.getData(), 0, copy, 0, frame.getLength());
+            frames.add(copy);
+            pool.release(frame);
+        }
+    }
+}
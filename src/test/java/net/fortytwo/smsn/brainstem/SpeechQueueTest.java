@@ -0,0 +1,73 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class SpeechQueueTest {
+    private SpeechQueue queue;
+
+    @Before
+    public void setUp() {
+        // no engine is set, so that messages wait
+        queue = new SpeechQueue(null);
+    }
+
+    @After
+    public void tearDown() {
+        queue.shutdown();
+    }
+
+    @Test
+    public void waitingMessagesAreBounded() {
+        for (int i = 0; i < SpeechQueue.MAX_PENDING + 8; i++) {
+            queue.speak("message " + i, SpeechQueue.Priority.NORMAL);
+        }
+
+        assertEquals(SpeechQueue.MAX_PENDING, queue.getPending());
+        assertEquals(8, queue.getDropped());
+    }
+
+    @Test
+    public void fullQueueGivesWayOnlyToHigherOrEqualPriority() {
+        for (int i = 0; i < SpeechQueue.MAX_PENDING; i++) {
+            queue.speak("status " + i, SpeechQueue.Priority.NORMAL);
+        }
+
+        // a low-priority message is dropped rather than displacing anything
+        queue.speak("battery low", SpeechQueue.Priority.LOW);
+        assertEquals(SpeechQueue.MAX_PENDING, queue.getPending());
+        assertEquals(1, queue.getDropped());
+
+        // a high-priority message displaces the oldest normal-priority one
+        queue.speak("query answer", SpeechQueue.Priority.HIGH);
+        assertEquals(SpeechQueue.MAX_PENDING, queue.getPending());
+        assertEquals(2, queue.getDropped());
+    }
+
+    @Test
+    public void duplicateMessagesAreNotQueued() {
+        queue.speak("connected", SpeechQueue.Priority.NORMAL);
+        queue.speak("connected", SpeechQueue.Priority.NORMAL);
+        queue.speak("connected", SpeechQueue.Priority.HIGH);
+
+        assertEquals(1, queue.getPending());
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void shutdownDropsWaitingAndLaterMessages() {
+        queue.speak("first", SpeechQueue.Priority.NORMAL);
+        queue.speak("second", SpeechQueue.Priority.HIGH);
+        queue.shutdown();
+        queue.speak("third", SpeechQueue.Priority.HIGH);
+
+        assertEquals(0, queue.getPending());
+        assertEquals(3, queue.getDropped());
+    }
+}
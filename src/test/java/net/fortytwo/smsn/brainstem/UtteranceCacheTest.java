@@ -0,0 +1,144 @@
+package net.fortytwo.smsn.brainstem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Joshua Shinavier (http://fortytwo.net)
+ */
+public class UtteranceCacheTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("speech", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void addedPhrasesAreHitsAndOthersMisses() throws Exception {
+        UtteranceCache cache = new UtteranceCache(directory);
+        assertFalse(cache.load().iterator().hasNext());
+
+        synthesize(cache, "connected", 100);
+        assertTrue(cache.contains("connected"));
+        assertFalse(cache.contains("disconnected"));
+
+        StringBuilder sb = new StringBuilder();
+        cache.appendTo(sb);
+        assertTrue(sb.toString(), sb.toString().contains("1 phrases, 0KB, 1 hits, 1 misses, 0 evicted"));
+    }
+
+    @Test
+    public void phraseWithoutAudioIsNotAdded() throws Exception {
+        UtteranceCache cache = new UtteranceCache(directory);
+        cache.load();
+
+        cache.added("never synthesized");
+        assertFalse(cache.contains("never synthesized"));
+    }
+
+    @Test
+    public void leastRecentlyUsedPhraseIsEvicted() throws Exception {
+        UtteranceCache cache = new UtteranceCache(directory, 2, UtteranceCache.DEFAULT_MAX_BYTES);
+        cache.load();
+
+        synthesize(cache, "one", 10);
+        synthesize(cache, "two", 10);
+        // "one" is now more recently used than "two"
+        assertTrue(cache.contains("one"));
+        synthesize(cache, "three", 10);
+
+        assertTrue(cache.contains("one"));
+        assertFalse(cache.contains("two"));
+        assertTrue(cache.contains("three"));
+        assertFalse(cache.fileFor("two").exists());
+    }
+
+    @Test
+    public void cacheIsBoundedInBytes() throws Exception {
+        UtteranceCache cache = new UtteranceCache(directory, 100, 250);
+        cache.load();
+
+        synthesize(cache, "one", 100);
+        synthesize(cache, "two", 100);
+        synthesize(cache, "three", 100);
+
+        assertFalse(cache.contains("one"));
+        assertTrue(cache.contains("two"));
+        assertTrue(cache.contains("three"));
+    }
+
+    @Test
+    public void cacheSurvivesRestart() throws Exception {
+        UtteranceCache cache = new UtteranceCache(directory);
+        cache.load();
+        synthesize(cache, "one", 10);
+        synthesize(cache, "two", 10);
+        synthesize(cache, "three", 10);
+
+        // a phrase whose audio has gone missing is discarded
+        assertTrue(cache.fileFor("two").delete());
+
+        UtteranceCache restarted = new UtteranceCache(directory);
+        assertEquals(Arrays.asList("one", "three"), list(restarted.load()));
+        assertTrue(restarted.contains("one"));
+        assertFalse(restarted.contains("two"));
+    }
+
+    @Test
+    public void keysAreDistinctAndFreeOfSpaces() {
+        UtteranceCache cache = new UtteranceCache(directory);
+        String a = cache.keyFor("hello world");
+        String b = cache.keyFor("hello, world");
+
+        assertFalse(a.equals(b));
+        assertFalse(a.contains(" "));
+        assertEquals(a, cache.keyFor("hello world"));
+    }
+
+    // does what the engine does when it synthesizes a phrase to its file
+    private static void synthesize(final UtteranceCache cache,
+                                   final String text,
+                                   final int bytes) throws IOException {
+        OutputStream out = new FileOutputStream(cache.fileFor(text));
+        try {
+            out.write(new byte[bytes]);
+        } finally {
+            out.close();
+        }
+        cache.added(text);
+    }
+
+    private static List<String> list(final Iterable<String> phrases) {
+        List<String> l = new ArrayList<String>();
+        for (String s : phrases) {
+            l.add(s);
+        }
+        return l;
+    }
+}